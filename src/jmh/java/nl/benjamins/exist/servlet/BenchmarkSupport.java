@@ -0,0 +1,146 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// In-memory servlet objects and generated resource trees for the benchmarks.
+//
+// The requests, responses and filter chain are dynamic proxies that only implement what the filter uses. Responses
+// discard their content, so that the benchmarks measure the filter and not a network.
+
+final class BenchmarkSupport
+{
+
+  private BenchmarkSupport()
+  {
+  }
+
+  // A base path with a mappings file of `count` mappings `/sectionN/(.*)\.css` to `sectionN/$1.css`, and a file
+  // `sectionN/page.css` for each of them. URLs starting with `/webdav/` are ignored.
+  static Path mappedTree(int count) throws IOException
+  {
+    Path base = Files.createTempDirectory("jb-resource-benchmark");
+    StringBuilder mappings = new StringBuilder("<mappings ignore=\"^/webdav/.*\">\n");
+    for (int i = 0; i < count; ++i)
+    {
+      mappings.append("  <map url=\"/section").append(i).append("/(.*)\\.css\" to=\"section").append(i).append("/$1.css\"/>\n");
+      Path section = Files.createDirectories(base.resolve("section" + i));
+      Files.write(section.resolve("page.css"), "body { color: black; }\n".getBytes(StandardCharsets.UTF_8));
+    }
+    mappings.append("</mappings>\n");
+    Files.write(base.resolve("mappings.xml"), mappings.toString().getBytes(StandardCharsets.UTF_8));
+    return base;
+  }
+
+  static void delete(Path base) throws IOException
+  {
+    try (Stream<Path> paths = Files.walk(base))
+    {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  static FilterConfig filterConfig(Map<String, String> parameters)
+  {
+    return (FilterConfig) Proxy.newProxyInstance(BenchmarkSupport.class.getClassLoader(), new Class<?>[] {FilterConfig.class},
+        (proxy, method, args) -> {
+          switch (method.getName())
+          {
+          case "getInitParameter": return parameters.get((String) args[0]);
+          case "getInitParameterNames": return Collections.enumeration(parameters.keySet());
+          case "getFilterName": return "benchmark";
+          default: return defaultValue(method.getReturnType());
+          }
+        });
+  }
+
+  // A GET request for a URL path, without conditional or range headers.
+  static HttpServletRequest request(String urlPath)
+  {
+    return (HttpServletRequest) Proxy.newProxyInstance(BenchmarkSupport.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+        (proxy, method, args) -> {
+          switch (method.getName())
+          {
+          case "getRequestURI": return urlPath;
+          case "getContextPath": return "";
+          case "getMethod": return "GET";
+          case "getHeaders": return Collections.emptyEnumeration();
+          case "getDateHeader": return -1L;
+          case "isAsyncSupported": return false;
+          default: return defaultValue(method.getReturnType());
+          }
+        });
+  }
+
+  // A response that discards its content.
+  static HttpServletResponse response()
+  {
+    ServletOutputStream out = new NullOutputStream();
+    return (HttpServletResponse) Proxy.newProxyInstance(BenchmarkSupport.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+        (proxy, method, args) -> {
+          switch (method.getName())
+          {
+          case "getOutputStream": return out;
+          case "getStatus": return 200;
+          case "containsHeader": return false;
+          case "isCommitted": return false;
+          default: return defaultValue(method.getReturnType());
+          }
+        });
+  }
+
+  // A filter chain that does nothing, as if eXist answered instantly.
+  static FilterChain chain()
+  {
+    return (request, response) -> {};
+  }
+
+  // The value that a method of a proxy returns if it is not implemented.
+  private static Object defaultValue(Class<?> type)
+  {
+    if (type == boolean.class) return false;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    return null;
+  }
+
+  private static final class NullOutputStream extends ServletOutputStream
+  {
+    @Override
+    public void write(int b)
+    {
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+    {
+    }
+
+    @Override
+    public boolean isReady()
+    {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener)
+    {
+    }
+  }
+
+}
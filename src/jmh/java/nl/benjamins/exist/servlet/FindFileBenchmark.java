@@ -0,0 +1,158 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Throughput of matching request URLs with the mappings.
+//
+// `findFile` matches a URL with the mappings and checks the file, without the resolution cache; this is what every
+// request did before there was a resolution cache, and what a request for a new URL still does.
+// `doFilter` is the whole filter, with the resolution cache, for the same URLs.
+// The URLs are hits (the file exists), misses (a mapping matches, but there is no file), unmapped (no mapping matches),
+// ignored (only for `doFilter`), or a mix of 70% hits and 10% of each of the others.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FindFileBenchmark
+{
+
+  private static final int URLS = 1024;
+
+  @Param({"10", "100", "1000"})
+  public int mappingCount;
+
+  @Param({"hit", "miss", "unmapped", "mixed"})
+  public String mix;
+
+  @Param({"true", "false"})
+  public boolean compileMappings;
+
+  private Path base;
+  private JBResourceServletFilter filter;
+  private ResourceMappings snapshot;
+  private String[] urls;
+  private HttpServletRequest[] requests;
+  private HttpServletResponse response;
+  private FilterChain chain;
+
+  @State(Scope.Thread)
+  public static class Cursor
+  {
+    private int next = 0;
+  }
+
+  @Setup
+  public void setUp() throws IOException, ServletException
+  {
+    base = BenchmarkSupport.mappedTree(mappingCount);
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put("loggerName", "jb-resource-benchmark");
+    parameters.put("basePath", base.toString());
+    parameters.put("mappingsPath", "mappings.xml");
+    parameters.put("compileMappings", Boolean.toString(compileMappings));
+    parameters.put("statistics", "false");
+    filter = new JBResourceServletFilter();
+    filter.init(BenchmarkSupport.filterConfig(parameters));
+    // Misses are logged as warnings; only measure the matching.
+    Logger.getLogger("jb-resource-benchmark").setLevel(Level.SEVERE);
+
+    List<Pair<Pattern, String>> mappings = new ArrayList<>();
+    for (int i = 0; i < mappingCount; ++i)
+    {
+      mappings.add(Pair.of(Pattern.compile("/section" + i + "/(.*)\\.css"), "section" + i + "/$1.css"));
+    }
+    snapshot = new ResourceMappings(Pattern.compile("^/webdav/.*"), mappings, null, null, compileMappings, 0L);
+
+    Random random = new Random(42);
+    urls = new String[URLS];
+    requests = new HttpServletRequest[URLS];
+    for (int i = 0; i < URLS; ++i)
+    {
+      String kind = mix;
+      if (kind.equals("mixed"))
+      {
+        int r = random.nextInt(10);
+        kind = r < 7 ? "hit" : r == 7 ? "miss" : r == 8 ? "unmapped" : "ignored";
+      }
+      int section = random.nextInt(mappingCount);
+      switch (kind)
+      {
+      case "hit": urls[i] = "/section" + section + "/page.css"; break;
+      case "miss": urls[i] = "/section" + section + "/missing" + i + ".css"; break;
+      case "unmapped": urls[i] = "/images/" + i + ".png"; break;
+      default: urls[i] = "/webdav/" + i; break;
+      }
+      requests[i] = BenchmarkSupport.request(urls[i]);
+    }
+    response = BenchmarkSupport.response();
+    chain = BenchmarkSupport.chain();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException
+  {
+    filter.destroy();
+    BenchmarkSupport.delete(base);
+  }
+
+  @Benchmark
+  public Object findFile(Cursor cursor) throws ServletException, IOException
+  {
+    String url = urls[cursor.next++ & (URLS - 1)];
+    return snapshot.isIgnored(url) ? null : filter.findFile(snapshot, url);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public Object findFileContended(Cursor cursor) throws ServletException, IOException
+  {
+    return findFile(cursor);
+  }
+
+  @Benchmark
+  public void doFilter(Cursor cursor) throws ServletException, IOException
+  {
+    filter.doFilter(requests[cursor.next++ & (URLS - 1)], response, chain);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void doFilterContended(Cursor cursor) throws ServletException, IOException
+  {
+    doFilter(cursor);
+  }
+
+}
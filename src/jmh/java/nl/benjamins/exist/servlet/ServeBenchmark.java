@@ -0,0 +1,170 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.BufferUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Throughput of serving a file, i.e. `returnFileContent` and everything before it. The file is small (1 KB, which fits
+// in the content cache) or large (4 MB, which is above the zero-copy threshold), and the content cache is off or on.
+//
+// With `response=mock`, the filter writes to a proxy response that discards the content, which measures the filter
+// alone, but only through its stream fallback. With `response=jetty`, the request goes through an embedded Jetty with a
+// LocalConnector, so that the filter writes to a real Jetty Response with `HttpOutput.sendContent` and memory-mapped
+// files, as in eXist. That includes Jetty's HTTP handling and the copy of the response into the LocalConnector's buffer.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServeBenchmark
+{
+
+  @Param({"1024", "4194304"})
+  public int fileSize;
+
+  @Param({"0", "67108864"})
+  public long contentCacheMaxBytes;
+
+  @Param({"mock", "jetty"})
+  public String response;
+
+  private Path base;
+  private JBResourceServletFilter filter;
+  private HttpServletRequest servletRequest;
+  private HttpServletResponse servletResponse;
+  private FilterChain chain;
+  private Server server;
+  private LocalConnector connector;
+  private ByteBuffer httpRequest;
+
+  @Setup
+  public void setUp() throws IOException, ServletException
+  {
+    base = Files.createTempDirectory("jb-resource-benchmark");
+    byte[] content = new byte[fileSize];
+    new Random(42).nextBytes(content);
+    Files.write(Files.createDirectories(base.resolve("files")).resolve("file.bin"), content);
+    Files.write(base.resolve("mappings.xml"),
+        "<mappings><map url=\"/files/(.*)\" to=\"files/$1\"/></mappings>".getBytes(StandardCharsets.UTF_8));
+
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put("loggerName", "jb-resource-benchmark");
+    parameters.put("basePath", base.toString());
+    parameters.put("mappingsPath", "mappings.xml");
+    parameters.put("contentCacheMaxBytes", Long.toString(contentCacheMaxBytes));
+    parameters.put("statistics", "false");
+    Logger.getLogger("jb-resource-benchmark").setLevel(Level.SEVERE);
+
+    if ("jetty".equals(response)) {
+      startJetty(parameters);
+    } else {
+      filter = new JBResourceServletFilter();
+      filter.init(BenchmarkSupport.filterConfig(parameters));
+      servletRequest = BenchmarkSupport.request("/files/file.bin");
+      servletResponse = BenchmarkSupport.response();
+      chain = BenchmarkSupport.chain();
+    }
+  }
+
+  private void startJetty(Map<String, String> parameters) throws IOException
+  {
+    server = new Server();
+    connector = new LocalConnector(server);
+    server.addConnector(connector);
+    ServletContextHandler context = new ServletContextHandler();
+    FilterHolder holder = new FilterHolder(JBResourceServletFilter.class);
+    holder.setInitParameters(parameters);
+    context.addFilter(holder, "/*", EnumSet.of(DispatcherType.REQUEST));
+    server.setHandler(context);
+    try
+    {
+      server.start();
+    }
+    catch (Exception e)
+    {
+      throw new IOException("Cannot start Jetty", e);
+    }
+    httpRequest = BufferUtil.toBuffer("GET /files/file.bin HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n",
+        StandardCharsets.ISO_8859_1);
+    // Make sure that the file is served, and not a 404 or an error page.
+    ByteBuffer check;
+    try
+    {
+      check = connector.getResponse(httpRequest.duplicate());
+    }
+    catch (Exception e)
+    {
+      throw new IOException("Cannot get a response from Jetty", e);
+    }
+    String status = BufferUtil.toString(check.duplicate(), StandardCharsets.ISO_8859_1);
+    if (!status.startsWith("HTTP/1.1 200") || check.remaining() < fileSize) {
+      throw new IOException("Jetty does not serve the file: " + status.substring(0, Math.min(200, status.length())));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception
+  {
+    if (server != null) server.stop();
+    if (filter != null) filter.destroy();
+    BenchmarkSupport.delete(base);
+  }
+
+  @Benchmark
+  public Object serve() throws Exception
+  {
+    return doServe();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public Object serveContended() throws Exception
+  {
+    return doServe();
+  }
+
+  // The response of Jetty, which is returned so that it is not optimized away.
+  private Object doServe() throws Exception
+  {
+    if (connector != null) return connector.getResponse(httpRequest.duplicate());
+    filter.doFilter(servletRequest, servletResponse, chain);
+    return null;
+  }
+
+}
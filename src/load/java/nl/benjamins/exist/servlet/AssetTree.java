@@ -0,0 +1,163 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// A generated base path for the load test, with its mappings file and the content that each URL should get.
+//
+// - `/sN/fileK.txt` is mapped to `sectionN/fileK.txt`, which exists. These are static hits.
+// - `/sN/missingK.txt` is mapped, but does not exist; `/api/K` is ignored; `/apps/pageK.html` is not mapped.
+//   These are passed on to the stub servlet.
+// - `/v/fileK.txt` is mapped to `variant-a/fileK.txt` or to `variant-b/fileK.txt`, depending on which of the two
+//   versions of the mappings file has been written last. These are the URLs whose mapping changes during reloads.
+// File sizes are random, between 1 byte and `maxFileSize`, with as many small files as large ones on a log scale.
+
+final class AssetTree
+{
+
+  static final String MAPPINGS_FILE = "mappings.xml";
+  static final int VARIANT_FILES = 16;
+
+  final Path base;
+  private final int mappingCount;
+  // The content of every static hit, by URL path.
+  private final Map<String, byte[]> content = new HashMap<>();
+  // The content of `/v/fileK.txt` in variant a and b.
+  private final byte[][][] variants = new byte[2][VARIANT_FILES][];
+  private final List<String> staticUrls = new ArrayList<>();
+  private final List<String> passUrls = new ArrayList<>();
+  private final List<String> variantUrls = new ArrayList<>();
+
+  private AssetTree(Path base, int mappingCount)
+  {
+    this.base = base;
+    this.mappingCount = mappingCount;
+  }
+
+  static AssetTree generate(int mappingCount, int filesPerMapping, int maxFileSize, long seed) throws IOException
+  {
+    AssetTree tree = new AssetTree(Files.createTempDirectory("jb-resource-load"), mappingCount);
+    Random random = new Random(seed);
+    for (int i = 0; i < mappingCount; ++i)
+    {
+      Path section = Files.createDirectories(tree.base.resolve("section" + i));
+      for (int k = 0; k < filesPerMapping; ++k)
+      {
+        String url = "/s" + i + "/file" + k + ".txt";
+        tree.content.put(url, write(section.resolve("file" + k + ".txt"), url, maxFileSize, -1, random));
+        tree.staticUrls.add(url);
+        tree.passUrls.add("/s" + i + "/missing" + k + ".txt");
+      }
+    }
+    for (int k = 0; k < filesPerMapping * mappingCount / 10 + 1; ++k)
+    {
+      tree.passUrls.add("/api/" + k);
+      tree.passUrls.add("/apps/page" + k + ".html");
+    }
+    for (int v = 0; v < 2; ++v)
+    {
+      Path directory = Files.createDirectories(tree.base.resolve(variantDirectory(v)));
+      for (int k = 0; k < VARIANT_FILES; ++k)
+      {
+        // The files of both versions are written in the same millisecond. Their sizes differ, so that their ETags,
+        // which are made from the modification time and size, differ as well.
+        int avoidSize = v == 0 ? -1 : tree.variants[0][k].length;
+        tree.variants[v][k] = write(directory.resolve("file" + k + ".txt"), variantDirectory(v) + " " + k, maxFileSize, avoidSize, random);
+      }
+    }
+    for (int k = 0; k < VARIANT_FILES; ++k) tree.variantUrls.add("/v/file" + k + ".txt");
+    tree.writeMappings(0);
+    return tree;
+  }
+
+  // Write a file with a first line that identifies it, followed by random printable characters.
+  // The size of the file is not `avoidSize`.
+  private static byte[] write(Path file, String label, int maxFileSize, int avoidSize, Random random) throws IOException
+  {
+    int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, maxFileSize));
+    int size = Math.min(maxFileSize, Math.max(1, random.nextInt(1 << random.nextInt(bits))));
+    if (size == avoidSize) size = size > 1 ? size - 1 : size + 1;
+    byte[] bytes = new byte[size];
+    byte[] header = (label + "\n").getBytes(StandardCharsets.US_ASCII);
+    System.arraycopy(header, 0, bytes, 0, Math.min(size, header.length));
+    for (int i = header.length; i < size; ++i) bytes[i] = (byte) (' ' + random.nextInt(95));
+    Files.write(file, bytes);
+    return bytes;
+  }
+
+  private static String variantDirectory(int variant)
+  {
+    return variant == 0 ? "variant-a" : "variant-b";
+  }
+
+  // Replace the mappings file by version 0 or 1. The file is written next to the mappings file and moved over it, as
+  // most editors and deployment tools do, so that the filter never sees a half-written file.
+  void writeMappings(int variant) throws IOException
+  {
+    StringBuilder mappings = new StringBuilder("<mappings ignore=\"^/api/.*\">\n");
+    String variantMapping = "  <map url=\"/v/(.*)\" to=\"" + variantDirectory(variant) + "/$1\"/>\n";
+    // The mapping of `/v/` is the first one in version 0, and the last one in version 1.
+    if (variant == 0) mappings.append(variantMapping);
+    for (int i = 0; i < mappingCount; ++i)
+    {
+      mappings.append("  <map url=\"/s").append(i).append("/(.*)\" to=\"section").append(i).append("/$1\"/>\n");
+    }
+    if (variant == 1) mappings.append(variantMapping);
+    mappings.append("</mappings>\n");
+    Path temporary = base.resolve(MAPPINGS_FILE + ".tmp");
+    Files.write(temporary, mappings.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(temporary, base.resolve(MAPPINGS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  List<String> staticUrls()
+  {
+    return staticUrls;
+  }
+
+  List<String> passUrls()
+  {
+    return passUrls;
+  }
+
+  List<String> variantUrls()
+  {
+    return variantUrls;
+  }
+
+  // The content of a static hit, or null if the URL is not a static hit.
+  byte[] content(String url)
+  {
+    return content.get(url);
+  }
+
+  // The version of the mappings (0 or 1) with which `/v/fileK.txt` gets this content, or -1 if neither does.
+  int variantOf(int k, byte[] body)
+  {
+    for (int v = 0; v < 2; ++v)
+    {
+      if (Arrays.equals(variants[v][k], body)) return v;
+    }
+    return -1;
+  }
+
+  void delete() throws IOException
+  {
+    try (Stream<Path> paths = Files.walk(base))
+    {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+}
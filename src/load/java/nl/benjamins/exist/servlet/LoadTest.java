@@ -0,0 +1,431 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+// An end-to-end load test of the filter, in an embedded Jetty, with a stub servlet that stands in for eXist.
+//
+// Client threads send requests for a generated base path (see `AssetTree`) over HTTP, with one connection per thread,
+// while another thread replaces the mappings file every `reloadInterval` ms. Every response is checked:
+// - a static hit must have status 200 and exactly the content of its file;
+// - a passed request must have been answered by the stub servlet;
+// - a URL whose mapping changes with every reload must have the complete content of the file in one of the two
+//   versions of the mappings, and the same ETag for that URL must always come with the same content.
+// After the load, the mappings file is replaced once more, and the new mapping must be used within `reloadTimeout` ms.
+// The report has the throughput and latency percentiles of static hits, passed requests and reloaded mappings, measured
+// after `warmup` seconds. The exit status is 1 if any check failed, so that a release can be gated on it.
+//
+// Run it with `mvn -Pload test-compile exec:exec`, with options as `-Dload.args="threads=64 duration=60"`.
+// Options are name=value; names starting with `filter.` set init-params of the filter, e.g. `filter.contentCacheMaxBytes=0`.
+// Everything runs on localhost, without network access.
+
+public final class LoadTest
+{
+
+  private static final String LOGGER_NAME = "jb-resource-load-test";
+  // The logger of the filter, kept here so that its level is not lost.
+  private static final Logger filterLogger = Logger.getLogger(LOGGER_NAME);
+  private static final int MAX_FAILURE_MESSAGES = 20;
+
+  private enum Kind { STATIC, PASSED, RELOADED }
+
+  private final Map<String, String> options = new LinkedHashMap<>();
+  private final Map<String, String> filterParameters = new LinkedHashMap<>();
+  private AssetTree tree;
+  private Server server;
+  private String baseUri;
+
+  private volatile boolean measuring = false;
+  private volatile boolean stopping = false;
+  private final LongAdder failures = new LongAdder();
+  private final ConcurrentLinkedQueue<String> failureMessages = new ConcurrentLinkedQueue<>();
+  // The version of the mappings whose content came with each URL and ETag of a reloaded URL.
+  private final ConcurrentHashMap<String, Integer> etagContent = new ConcurrentHashMap<>();
+  private final LongAdder[] variantsServed = {new LongAdder(), new LongAdder()};
+  private final AtomicLong reloads = new AtomicLong();
+  // The version of the mappings file that was written last; the tree starts with version 0.
+  private volatile int lastVariant = 0;
+
+  public static void main(String[] args) throws Exception
+  {
+    LoadTest test = new LoadTest();
+    test.options.put("threads", "32");
+    test.options.put("warmup", "5");
+    test.options.put("duration", "20");
+    test.options.put("mappings", "100");
+    test.options.put("files", "20");
+    test.options.put("maxFileSize", "65536");
+    test.options.put("passPercent", "20");
+    test.options.put("reloadPercent", "10");
+    test.options.put("reloadInterval", "250");
+    test.options.put("reloadTimeout", "15000");
+    test.options.put("seed", "1");
+    for (String arg : args)
+    {
+      int is = arg.indexOf('=');
+      if (is <= 0) throw new IllegalArgumentException("Options must be name=value, not [" + arg + "].");
+      String name = arg.substring(0, is);
+      if (name.startsWith("filter.")) {
+        test.filterParameters.put(name.substring("filter.".length()), arg.substring(is + 1));
+      } else if (test.options.containsKey(name)) {
+        test.options.put(name, arg.substring(is + 1));
+      } else {
+        throw new IllegalArgumentException("Unknown option [" + name + "]; the options are " + test.options.keySet() + ".");
+      }
+    }
+    boolean passed;
+    try
+    {
+      passed = test.run();
+    }
+    finally
+    {
+      test.stop();
+    }
+    System.exit(passed ? 0 : 1);
+  }
+
+  private int option(String name)
+  {
+    return Integer.parseInt(options.get(name));
+  }
+
+  private boolean run() throws Exception
+  {
+    System.out.println("Options: " + options + (filterParameters.isEmpty() ? "" : ", filter " + filterParameters));
+    tree = AssetTree.generate(option("mappings"), option("files"), option("maxFileSize"), option("seed"));
+    startServer();
+
+    int threads = option("threads");
+    Recorder[] recorders = new Recorder[threads];
+    CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; ++t)
+    {
+      Recorder recorder = recorders[t] = new Recorder();
+      long seed = option("seed") * 1000 + t;
+      Thread thread = new Thread(() -> {
+        try
+        {
+          client(recorder, new Random(seed));
+        }
+        finally
+        {
+          done.countDown();
+        }
+      }, "load client " + t);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    Thread reloader = new Thread(this::reload, "mappings reloader");
+    reloader.setDaemon(true);
+    if (option("reloadInterval") > 0) reloader.start();
+
+    Thread.sleep(option("warmup") * 1000L);
+    measuring = true;
+    long start = System.nanoTime();
+    Thread.sleep(option("duration") * 1000L);
+    measuring = false;
+    double seconds = (System.nanoTime() - start) / 1e9;
+    stopping = true;
+    done.await();
+    reloader.join();
+
+    report(recorders, seconds);
+    checkFinalReload();
+    if (option("reloadInterval") > 0 && option("reloadPercent") > 0 && reloads.get() > 1 &&
+        (variantsServed[0].sum() == 0 || variantsServed[1].sum() == 0))
+    {
+      fail("After " + reloads.get() + " reloads, the content of only one version of the mappings was served.");
+    }
+    System.out.println();
+    System.out.println("Reloads of the mappings file: " + reloads.get() + "; reloaded URLs served from version a: " +
+        variantsServed[0].sum() + ", version b: " + variantsServed[1].sum() + ".");
+    if (failures.sum() == 0)
+    {
+      System.out.println("All checks passed.");
+      return true;
+    }
+    System.out.println(failures.sum() + " checks failed, for example:");
+    for (String message : failureMessages) System.out.println("  " + message);
+    return false;
+  }
+
+  private void startServer() throws Exception
+  {
+    // Messages about single requests and reloads would slow down the filter and flood the output.
+    filterLogger.setLevel(Level.SEVERE);
+    server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    connector.setHost("127.0.0.1");
+    connector.setPort(0);
+    server.addConnector(connector);
+    ServletContextHandler context = new ServletContextHandler();
+    context.setContextPath("/");
+    FilterHolder filter = new FilterHolder(JBResourceServletFilter.class);
+    filter.setAsyncSupported(true);
+    filter.setInitParameter("loggerName", LOGGER_NAME);
+    filter.setInitParameter("basePath", tree.base.toString());
+    filter.setInitParameter("mappingsPath", AssetTree.MAPPINGS_FILE);
+    filterParameters.forEach(filter::setInitParameter);
+    context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST));
+    context.addServlet(new ServletHolder(new StubServlet()), "/*");
+    server.setHandler(context);
+    server.start();
+    baseUri = "http://127.0.0.1:" + connector.getLocalPort();
+  }
+
+  private void stop() throws Exception
+  {
+    if (server != null) server.stop();
+    if (tree != null) tree.delete();
+  }
+
+  // Send requests until the test stops, and check and record their responses.
+  private void client(Recorder recorder, Random random)
+  {
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(10)).build();
+    List<String> staticUrls = tree.staticUrls();
+    List<String> passUrls = tree.passUrls();
+    List<String> variantUrls = tree.variantUrls();
+    int passPercent = option("passPercent");
+    int reloadPercent = option("reloadPercent");
+    while (!stopping)
+    {
+      int dice = random.nextInt(100);
+      Kind kind = dice < passPercent ? Kind.PASSED : dice < passPercent + reloadPercent ? Kind.RELOADED : Kind.STATIC;
+      List<String> urls = kind == Kind.PASSED ? passUrls : kind == Kind.RELOADED ? variantUrls : staticUrls;
+      int index = random.nextInt(urls.size());
+      String url = urls.get(index);
+      HttpRequest request = HttpRequest.newBuilder(URI.create(baseUri + url)).timeout(Duration.ofSeconds(30)).build();
+      boolean measured = measuring;
+      long start = System.nanoTime();
+      boolean ok;
+      try
+      {
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        ok = check(kind, url, index, response);
+      }
+      catch (IOException e)
+      {
+        ok = false;
+        fail(url + ": " + e);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      if (measured && measuring) recorder.record(kind, (System.nanoTime() - start) / 1000, ok);
+    }
+  }
+
+  private boolean check(Kind kind, String url, int index, HttpResponse<byte[]> response)
+  {
+    byte[] body = response.body();
+    if (response.statusCode() != 200) return fail(url + ": status " + response.statusCode() + " for a " + kind + " request.");
+    boolean fromStub = response.headers().firstValue(StubServlet.HEADER).isPresent();
+    switch (kind)
+    {
+    case STATIC:
+      if (fromStub) return fail(url + ": passed to the stub servlet instead of served.");
+      if (!Arrays.equals(tree.content(url), body)) return fail(url + ": wrong content (" + body.length + " bytes).");
+      return true;
+    case PASSED:
+      if (!fromStub || !new String(body, StandardCharsets.UTF_8).equals(StubServlet.body(url)))
+      {
+        return fail(url + ": served by the filter instead of passed on.");
+      }
+      return true;
+    default:
+      if (fromStub) return fail(url + ": passed to the stub servlet, while it is mapped in both versions of the mappings.");
+      int variant = tree.variantOf(index, body);
+      if (variant < 0) return fail(url + ": content of neither version of the mappings (" + body.length + " bytes).");
+      variantsServed[variant].increment();
+      Optional<String> etag = response.headers().firstValue("ETag");
+      if (etag.isPresent())
+      {
+        Integer previous = etagContent.putIfAbsent(url + " " + etag.get(), variant);
+        if (previous != null && previous != variant) return fail(url + ": ETag " + etag.get() + " came with different contents.");
+      }
+      return true;
+    }
+  }
+
+  private boolean fail(String message)
+  {
+    failures.increment();
+    if (failureMessages.size() < MAX_FAILURE_MESSAGES) failureMessages.add(message);
+    return false;
+  }
+
+  // Alternate between the two versions of the mappings file.
+  private void reload()
+  {
+    int variant = 0;
+    try
+    {
+      while (!stopping)
+      {
+        Thread.sleep(option("reloadInterval"));
+        variant = 1 - variant;
+        tree.writeMappings(variant);
+        lastVariant = variant;
+        reloads.incrementAndGet();
+      }
+    }
+    catch (IOException e)
+    {
+      fail("Cannot write the mappings file: " + e);
+    }
+    catch (InterruptedException e)
+    {
+      // Stopped.
+    }
+  }
+
+  // Wait until the filter uses the version of the mappings that the reloader wrote last, then replace the mappings
+  // once more with the other version, and wait until the filter uses that. The reloader has stopped.
+  private void checkFinalReload() throws IOException, InterruptedException
+  {
+    if (option("reloadInterval") <= 0) return;
+    HttpClient client = HttpClient.newHttpClient();
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUri + tree.variantUrls().get(0))).build();
+    int last = lastVariant;
+    if (!awaitVariant(client, request, last, "The mappings file was replaced during the load")) return;
+    Thread.sleep(1000); // Make sure that the modification time changes on file systems that only have seconds.
+    tree.writeMappings(1 - last);
+    long start = System.currentTimeMillis();
+    if (!awaitVariant(client, request, 1 - last, "The mappings file was replaced after the load")) return;
+    System.out.println("The last replacement of the mappings file was used after " + (System.currentTimeMillis() - start) + " ms.");
+  }
+
+  // Wait at most `reloadTimeout` ms until a reloaded URL is served with a version of the mappings.
+  private boolean awaitVariant(HttpClient client, HttpRequest request, int variant, String what)
+      throws IOException, InterruptedException
+  {
+    long start = System.currentTimeMillis();
+    while (tree.variantOf(0, client.send(request, HttpResponse.BodyHandlers.ofByteArray()).body()) != variant)
+    {
+      if (System.currentTimeMillis() - start > option("reloadTimeout"))
+      {
+        fail(what + ", but version " + (variant == 0 ? "a" : "b") + " of the mappings was not used after " +
+            option("reloadTimeout") + " ms.");
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  private void report(Recorder[] recorders, double seconds)
+  {
+    System.out.println();
+    System.out.printf("%-9s %10s %8s %10s %9s %9s %9s %9s %9s%n",
+        "", "requests", "failed", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    long total = 0;
+    for (Kind kind : Kind.values())
+    {
+      long[] latencies = Recorder.merge(recorders, kind);
+      long failed = 0;
+      for (Recorder recorder : recorders) failed += recorder.failed[kind.ordinal()];
+      total += latencies.length;
+      if (latencies.length == 0) continue;
+      Arrays.sort(latencies);
+      System.out.printf("%-9s %10d %8d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+          kind.name().toLowerCase(), latencies.length, failed, latencies.length / seconds,
+          percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+          percentile(latencies, 99.9), latencies[latencies.length - 1] / 1000.0);
+    }
+    System.out.printf("%-9s %10d %8s %10.1f%n", "total", total, "", total / seconds);
+  }
+
+  // A percentile of sorted latencies in microseconds, in milliseconds.
+  private static double percentile(long[] sorted, double percentile)
+  {
+    int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000.0;
+  }
+
+  // The latencies (in microseconds) and failures of one client thread, per kind of request.
+  private static final class Recorder
+  {
+    private final long[][] latencies = new long[Kind.values().length][1024];
+    private final int[] counts = new int[Kind.values().length];
+    private final long[] failed = new long[Kind.values().length];
+
+    void record(Kind kind, long micros, boolean ok)
+    {
+      int k = kind.ordinal();
+      if (counts[k] == latencies[k].length) latencies[k] = Arrays.copyOf(latencies[k], counts[k] * 2);
+      latencies[k][counts[k]++] = micros;
+      if (!ok) ++failed[k];
+    }
+
+    static long[] merge(Recorder[] recorders, Kind kind)
+    {
+      int k = kind.ordinal();
+      int size = 0;
+      for (Recorder recorder : recorders) size += recorder.counts[k];
+      long[] merged = new long[size];
+      int at = 0;
+      for (Recorder recorder : recorders)
+      {
+        System.arraycopy(recorder.latencies[k], 0, merged, at, recorder.counts[k]);
+        at += recorder.counts[k];
+      }
+      return merged;
+    }
+  }
+
+  // Stands in for eXist: answers every request with its URL path.
+  private static final class StubServlet extends HttpServlet
+  {
+    private static final long serialVersionUID = 1L;
+    static final String HEADER = "X-Stub";
+
+    static String body(String urlPath)
+    {
+      return "eXist " + urlPath;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+      response.setStatus(200);
+      response.setHeader(HEADER, "true");
+      response.setContentType("text/plain;charset=UTF-8");
+      response.getWriter().print(body(request.getRequestURI()));
+    }
+  }
+
+}
@@ -2,6 +2,8 @@ package com.rakensi;
 
 import static org.exist.xquery.FunctionDSL.functionDefs;
 
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -26,11 +28,81 @@ public class ExtensionFunctionsModule extends AbstractInternalModule {
     public static final FunctionDef[] functions = functionDefs(
         functionDefs(SVGQRFunctions.class, SVGQRFunctions.FS_GENERATE),
         functionDefs(SVGQRFunctions.class, SVGQRFunctions.FS_GENERATE_TEXT),
-        functionDefs(FnInvisibleXml.class, FnInvisibleXml.FS_INVISIBLE_XML)
+        functionDefs(FnInvisibleXml.class, FnInvisibleXml.FS_INVISIBLE_XML),
+        functionDefs(FnInvisibleXmlParseMany.class, FnInvisibleXmlParseMany.FS_INVISIBLE_XML_PARSE_MANY),
+        functionDefs(FnInvisibleXmlParseRecords.class, FnInvisibleXmlParseRecords.FS_INVISIBLE_XML_PARSE_RECORDS)
     );
 
+    // Module parameters for the limits of the cache of ixml parsers, see ParserCache, for the directory of the
+    // GrammarStore, for the number of threads of rxf:invisible-xml-parse-many, and for the limits of parsing an input
+    // and the number of threads for parsing with a timeout, see ParseLimits.
+    static final String PARSER_CACHE_MAX_COUNT = "parser-cache-max-count";
+    static final String PARSER_CACHE_MAX_SIZE = "parser-cache-max-size";
+    static final String GRAMMAR_STORE = "grammar-store";
+    static final String PARSE_PARALLELISM = "parse-parallelism";
+    static final String PARSE_MAX_INPUT_LENGTH = "parse-max-input-length";
+    static final String PARSE_TIMEOUT = "parse-timeout";
+    static final String PARSE_MAX_NODES = "parse-max-nodes";
+    static final String PARSE_TIMEOUT_THREADS = "parse-timeout-threads";
+
+    // The values of the module parameters that the shared parser cache, pool and limits were last configured with.
+    private static volatile List<Object> configuration;
+
     public ExtensionFunctionsModule(final Map<String, List<? extends Object>> parameters) {
         super(functions, parameters);
+        configure();
+    }
+
+    // eXist creates a module for every query that imports it, but the parser cache, the grammar store, the pool of
+    // rxf:invisible-xml-parse-many and the parse limits and their threads are shared by all queries. They are only configured when the
+    // module parameters differ from the ones they were configured with.
+    private void configure() {
+        final long maxCount = longParameter(PARSER_CACHE_MAX_COUNT, ParserCache.DEFAULT_MAX_COUNT);
+        final long maxSize = longParameter(PARSER_CACHE_MAX_SIZE, ParserCache.DEFAULT_MAX_SIZE);
+        final String grammarStore = stringParameter(GRAMMAR_STORE);
+        final long parallelism = longParameter(PARSE_PARALLELISM, 0);
+        final long maxInputLength = longParameter(PARSE_MAX_INPUT_LENGTH, 0);
+        final long timeout = longParameter(PARSE_TIMEOUT, 0);
+        final long maxNodes = longParameter(PARSE_MAX_NODES, 0);
+        final long timeoutThreads = longParameter(PARSE_TIMEOUT_THREADS, 0);
+        final List<Object> values = Arrays.asList(maxCount, maxSize, grammarStore, parallelism, maxInputLength, timeout, maxNodes,
+            timeoutThreads);
+        if (values.equals(configuration)) {
+            return;
+        }
+        synchronized (ExtensionFunctionsModule.class) {
+            if (values.equals(configuration)) {
+                return;
+            }
+            ParserCache.getInstance().setLimits((int) maxCount, maxSize);
+            ParserCache.getInstance().setStoreDirectory(grammarStore == null ? null : Paths.get(grammarStore));
+            FnInvisibleXmlParseMany.setParallelism((int) parallelism);
+            ParseLimits.setDefaults(maxInputLength, timeout, maxNodes);
+            ParseLimits.setTimeoutThreads((int) timeoutThreads);
+            configuration = values;
+        }
+    }
+
+    // The value of a module parameter, or null if the parameter is not set.
+    private String stringParameter(final String name) {
+        final List<? extends Object> values = getParameter(name);
+        if (values == null || values.isEmpty() || values.get(0).toString().trim().isEmpty()) {
+            return null;
+        }
+        return values.get(0).toString().trim();
+    }
+
+    // The value of a numeric module parameter, or the default value if the parameter is not set.
+    private long longParameter(final String name, final long defaultValue) {
+        final String value = stringParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0L, Math.min(Integer.MAX_VALUE, Long.parseLong(value)));
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("The module parameter " + name + " must be a number, not " + value, e);
+        }
     }
 
     @Override
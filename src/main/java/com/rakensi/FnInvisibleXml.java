@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.xquery.BasicFunction;
 import org.exist.xquery.Cardinality;
 import org.exist.xquery.ErrorCodes;
@@ -24,7 +25,6 @@ import org.exist.xquery.FunctionFactory;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
-import org.exist.xquery.functions.fn.ParsingFunctions;
 import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.BooleanValue;
 import org.exist.xquery.value.FunctionReference;
@@ -44,8 +44,7 @@ import de.bottlecaps.markup.blitz.Parser;
  *   )  as fn(xs:string) as item()
  * @see https://qt4cg.org/specifications/xpath-functions-40/Overview.html#ixml-functions
  *
- * To do:
- * - Use the Markup Blitz serializer instead of parsing serialized XML.
+ * Markup Blitz gives the parse tree as serialized XML, which IxmlTreeBuilder reads into an in-memory document.
  */
 public class FnInvisibleXml extends BasicFunction
 {
@@ -63,6 +62,8 @@ public class FnInvisibleXml extends BasicFunction
 
   private static final String IXML_GRAMMAR_RESOURCE = "org/exist/xquery/lib/ixml.ixml";
 
+  static final ErrorCodes.ErrorCode FOIX0002 = new ErrorCodes.ErrorCode("FOIX0002", "The input cannot be parsed with the ixml grammar.");
+
 
   public FnInvisibleXml(final XQueryContext context, final FunctionSignature signature) {
       super(context, signature);
@@ -71,20 +72,12 @@ public class FnInvisibleXml extends BasicFunction
   @Override
   public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
       // Handle $grammar and $options parameters.
-      final String grammar;
-      if (args[0].isEmpty()) {
-        grammar = getIxmlGrammar();
-      } else {
-        grammar = ((StringValue)args[0].itemAt(0)).getStringValue();
-      }
-      final Blitz.Option[] options;
-      if (args[1].isEmpty()) {
-        options = new Blitz.Option[0];
-      } else {
-        options = getOptions((MapType) args[1].itemAt(0));
-      }
-      // Generate the Markup Blitz parser for the grammar.
-      final Parser parser = Blitz.generate(grammar, options);
+      final Blitz.Option[] options = getOptions(args[1]);
+      final String grammar = getGrammar(args[0]);
+      // Get the Markup Blitz parser for the grammar from the cache, or generate it.
+      final Parser parser = ParserCache.getInstance().get(grammar, options);
+      // The limits for parsing an input, see ParseLimits.
+      final ParseLimits limits = ParseLimits.get(this, args[1]);
       // Make an IxmlParser function from the Markup Blitz parser. The signature is fn(xs:string) as item()
       FunctionSignature parserSignature = FunctionDSL.functionSignature(
           new QName("generated-ixml-parser", "https://invisiblexml.org/"),
@@ -92,14 +85,26 @@ public class FnInvisibleXml extends BasicFunction
           new FunctionReturnSequenceType(Type.ITEM, Cardinality.EXACTLY_ONE, "The result of parsing the input string"),
           param("input", Type.STRING, "The input string")
       );
-      final IxmlParser ixmlParser = new IxmlParser(context, parserSignature, parser);
+      final IxmlParser ixmlParser = new IxmlParser(context, parserSignature, grammar, parser, limits);
       // Make a function reference that can be used as the result.
       FunctionCall functionCall = FunctionFactory.wrap(context, ixmlParser);
       return new FunctionReference(functionCall);
   }
 
+  // The ixml grammar, which is read from a resource when it is first used.
+  private static volatile String ixmlGrammar;
+
+  private static String getIxmlGrammar() throws XPathException {
+    String grammar = ixmlGrammar;
+    if (grammar == null) {
+      grammar = readIxmlGrammar();
+      ixmlGrammar = grammar;
+    }
+    return grammar;
+  }
+
   // Read the ixml grammar from a resource.
-  private String getIxmlGrammar() throws XPathException {
+  private static String readIxmlGrammar() throws XPathException {
     try (final InputStream ixmlGrammarStream = FnInvisibleXml.class.getClassLoader().getResourceAsStream(IXML_GRAMMAR_RESOURCE)) {
       if (ixmlGrammarStream == null) {
           throw new XPathException(ErrorCodes.FODC0002, "The ixml grammar resource cannot be found at "+IXML_GRAMMAR_RESOURCE);
@@ -115,8 +120,35 @@ public class FnInvisibleXml extends BasicFunction
     }
   }
 
+  // Get the grammar for a $grammar parameter, which is a grammar string, or empty for the ixml grammar.
+  private static String getGrammar(final Sequence grammar) throws XPathException {
+      return grammar.isEmpty() ? getIxmlGrammar() : ((StringValue)grammar.itemAt(0)).getStringValue();
+  }
+
+  // Get the Markup Blitz parser for a $parser parameter, which is a function that was returned by fn:invisible-xml,
+  // a grammar string, or empty for the ixml grammar.
+  // Markup Blitz parses with the options that a parser was generated with, unless other options are given, and an
+  // empty array of options is not a different set. So the parser of a function is not used as it is: the parser for
+  // its grammar and the options of this call is taken from the cache, and a fail-on-error of the call always wins.
+  static Parser getParser(final Expression caller, final Sequence parser, final Blitz.Option[] options) throws XPathException {
+      if (parser.isEmpty() || !Type.subTypeOf(parser.itemAt(0).getType(), Type.FUNCTION_REFERENCE)) {
+          return ParserCache.getInstance().get(getGrammar(parser), options);
+      }
+      final Expression body = ((FunctionReference) parser.itemAt(0)).getCall().getFunction().getFunctionBody();
+      if (!(body instanceof IxmlParser)) {
+          throw new XPathException(caller, ErrorCodes.XPTY0004,
+              "The $parser must be a function returned by rxf:invisible-xml, a grammar, or empty.");
+      }
+      return ParserCache.getInstance().get(((IxmlParser) body).grammar, options);
+  }
+
+  // Get Markup Blitz options from an $options as map(*)? parameter.
+  static Blitz.Option[] getOptions(final Sequence options) throws XPathException {
+      return options.isEmpty() ? new Blitz.Option[0] : getOptions((MapType) options.itemAt(0));
+  }
+
   // Get Markup Blitz options from the $options as map(*) parameter.
-  private Blitz.Option[] getOptions(final MapType options) throws XPathException {
+  private static Blitz.Option[] getOptions(final MapType options) throws XPathException {
       List<Blitz.Option> optionsList = new ArrayList<Blitz.Option>();
       Sequence failOnError = options.get(new StringValue("fail-on-error"));
       if (!failOnError.isEmpty() && ((BooleanValue)failOnError.itemAt(0).convertTo(Type.BOOLEAN)).getValue()) {
@@ -128,15 +160,26 @@ public class FnInvisibleXml extends BasicFunction
 
   /**
    * A BasicFunction for the generated ixml parser.
+   *
+   * The Markup Blitz parser is shared by every function that rxf:invisible-xml returns for the same grammar and
+   * options, in all queries (see ParserCache), so it is used by many threads at the same time. This is safe: its tables
+   * are immutable, and every call of `Parser.parse` makes its own parsing state. The only mutable field of a parser is
+   * the writer for the TRACE option, which is never set. The document is built with a reader for each thread, see
+   * IxmlTreeBuilder.
    */
   private static final class IxmlParser extends BasicFunction {
 
-    private Parser parser;
+    // The grammar, for rxf:invisible-xml-parse-many and rxf:invisible-xml-parse-records, which use their own options.
+    private final String grammar;
+    private final Parser parser;
+    private final ParseLimits limits;
 
-    public IxmlParser(XQueryContext context, FunctionSignature signature, Parser parser) throws XPathException
+    public IxmlParser(XQueryContext context, FunctionSignature signature, String grammar, Parser parser, ParseLimits limits) throws XPathException
     {
         super(context, signature);
+        this.grammar = grammar;
         this.parser = parser;
+        this.limits = limits;
         // We must set the arguments, which is not done automatically from the signature.
         final List<Expression> ixmlParserArgs = new ArrayList<>(1);
         ixmlParserArgs.add(new Function.Placeholder(context));
@@ -147,13 +190,10 @@ public class FnInvisibleXml extends BasicFunction
     public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException
     {
         final String input = ((StringValue)args[0].itemAt(0)).getStringValue();
-        // Parse the input string.
-        final String output = parser.parse(input);
-        // The output is serialized XML, which we need to parse.
-        ParsingFunctions xmlParser = new ParsingFunctions(context, ParsingFunctions.signatures[0]);
-        final Sequence[] xmlParserArgs = new Sequence[1];
-        xmlParserArgs[0] = new StringValue(output).toSequence();
-        return xmlParser.eval(xmlParserArgs, contextSequence);
+        // Parse the input string, within the limits of the options.
+        final String output = limits.parse(this, parser, input, "The input");
+        // The output is serialized XML, which is read into a document without an XML parser.
+        return IxmlTreeBuilder.build(output, new MemTreeBuilder(this, context), limits, "The input");
     }
 
   }
@@ -0,0 +1,232 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignature;
+import static org.exist.xquery.FunctionDSL.optManyParam;
+import static org.exist.xquery.FunctionDSL.optParam;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.BlitzException;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * Implementation of
+ *   rxf:invisible-xml-parse-many(
+ *     $parser   as item()?,
+ *     $inputs   as xs:string*,
+ *     $options  as map(*)?  := {}
+ *   )  as document-node()*
+ *
+ * Parses many strings with the same ixml parser, in parallel. The parser is a function returned by rxf:invisible-xml,
+ * a grammar, or empty for the ixml grammar. The results are in the order of the inputs.
+ *
+ * The strings are parsed by Markup Blitz on a pool of threads that is shared by all queries. Its size is the module
+ * parameter `parse-parallelism`, which is the number of processors by default. The option `parallelism` limits the
+ * number of threads that one call uses. The documents are built on the thread of the query, since the XQuery context
+ * is not thread-safe; this takes a small part of the time.
+ *
+ * Every input is parsed with the option `fail-on-error` of the call. If it is true, the first input (in input order)
+ * that cannot be parsed raises an error, and the other inputs are not parsed further. If it is false, such an input
+ * gives a document with `ixml:state="failed"`, like the function that rxf:invisible-xml returns.
+ *
+ * The options `max-input-length` and `max-nodes` apply to every input (see ParseLimits), and `timeout` to the whole
+ * call: after it, no more inputs are parsed, and the call raises an error. With a timeout, all inputs are parsed on
+ * the threads for parsing with a timeout instead of the pool (see ParseLimits), and the thread of the query only
+ * waits. Markup Blitz cannot be interrupted, so the inputs that are being parsed at the timeout go on, and those
+ * threads are bounded: the call uses as many of them as are free, up to its parallelism, and fails at once if none is.
+ */
+public class FnInvisibleXmlParseMany extends BasicFunction
+{
+
+  private static final String FS_INVISIBLE_XML_PARSE_MANY_NAME = "invisible-xml-parse-many";
+
+  static final FunctionSignature FS_INVISIBLE_XML_PARSE_MANY =
+      functionSignature(
+          FS_INVISIBLE_XML_PARSE_MANY_NAME,
+          "Parses a sequence of strings in parallel with an ixml parser, and returns their XML representations in the same order.",
+          new FunctionReturnSequenceType(Type.DOCUMENT, Cardinality.ZERO_OR_MORE, "The results of parsing the input strings"),
+          optParam("parser", Type.ITEM, "A parser returned by rxf:invisible-xml, or an ixml grammar, or empty for the ixml grammar"),
+          optManyParam("inputs", Type.STRING, "The input strings"),
+          optParam("options", Type.MAP, "The options for the parser generator and the parser, and the parallelism")
+      );
+
+  private static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+  private static ForkJoinPool pool;
+  private static int poolParallelism = DEFAULT_PARALLELISM;
+
+
+  public FnInvisibleXmlParseMany(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  /**
+   * Set the number of threads of the shared pool; 0 means the number of processors.
+   * A pool of another size is replaced, and shut down when the calls that use it are done.
+   */
+  static synchronized void setParallelism(final int parallelism) {
+      final int size = parallelism <= 0 ? DEFAULT_PARALLELISM : parallelism;
+      if (size != poolParallelism) {
+          poolParallelism = size;
+          if (pool != null) {
+              pool.shutdown();
+              pool = null;
+          }
+      }
+  }
+
+  private static synchronized ForkJoinPool getPool() {
+      if (pool == null) {
+          pool = new ForkJoinPool(poolParallelism);
+      }
+      return pool;
+  }
+
+  /**
+   * Run a task on the shared pool. If the pool has been replaced and shut down in the meantime, the task is submitted
+   * to the new pool.
+   */
+  private static <T> Future<T> submit(final Callable<T> task) {
+      try {
+          return getPool().submit(task);
+      } catch (final RejectedExecutionException e) {
+          return getPool().submit(task);
+      }
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      final Blitz.Option[] options = FnInvisibleXml.getOptions(args[2]);
+      final Parser parser = FnInvisibleXml.getParser(this, args[0], options);
+      final ParseLimits limits = ParseLimits.get(this, args[2]);
+      final List<String> inputs = new ArrayList<>(args[1].getItemCount());
+      for (final SequenceIterator i = args[1].iterate(); i.hasNext(); ) {
+          final String input = i.nextItem().getStringValue();
+          limits.checkInputLength(this, input, describe(inputs.size()));
+          inputs.add(input);
+      }
+      final String[] outputs = parse(parser, inputs, options, getParallelism(args[2]), limits);
+      final ValueSequence result = new ValueSequence(outputs.length);
+      for (int i = 0; i < outputs.length; ++i) {
+          result.add(IxmlTreeBuilder.build(outputs[i], new MemTreeBuilder(this, context), limits, describe(i)));
+      }
+      return result;
+  }
+
+  private static String describe(final int index) {
+      return "Input " + (index + 1);
+  }
+
+  // The option `parallelism`, or the size of the pool.
+  private int getParallelism(final Sequence options) throws XPathException {
+      if (!options.isEmpty()) {
+          final Sequence parallelism = ((MapType) options.itemAt(0)).get(new StringValue("parallelism"));
+          if (!parallelism.isEmpty()) {
+              final long value = ((IntegerValue) parallelism.itemAt(0).convertTo(Type.INTEGER)).getLong();
+              if (value < 1) {
+                  throw new XPathException(this, ErrorCodes.XPTY0004, "The option parallelism must be at least 1, not " + value);
+              }
+              return (int) Math.min(value, Integer.MAX_VALUE);
+          }
+      }
+      return Integer.MAX_VALUE;
+  }
+
+  // Parse the inputs with at most `parallelism` tasks, which take the inputs in order, on the pool or, with a timeout,
+  // on the threads for parsing with a timeout.
+  private String[] parse(final Parser parser, final List<String> inputs, final Blitz.Option[] options, final int parallelism,
+      final ParseLimits limits) throws XPathException {
+      final String[] outputs = new String[inputs.size()];
+      final BlitzException[] failures = new BlitzException[inputs.size()];
+      final AtomicInteger next = new AtomicInteger();
+      final AtomicBoolean failed = new AtomicBoolean();
+      final Runnable task = () -> {
+          int i;
+          while (!failed.get() && (i = next.getAndIncrement()) < outputs.length) {
+              try {
+                  outputs[i] = parser.parse(inputs.get(i), options);
+              } catch (final BlitzException e) {
+                  failures[i] = e;
+                  failed.set(true);
+              }
+          }
+      };
+      if (!limits.hasTimeout() && (outputs.length <= 1 || parallelism == 1)) {
+          task.run();
+      } else if (outputs.length > 0) {
+          final long start = System.nanoTime();
+          final long timeout = TimeUnit.MILLISECONDS.toNanos(limits.timeout);
+          final int taskCount = Math.min(Math.min(parallelism, getPool().getParallelism()), outputs.length);
+          final List<Future<?>> futures = new ArrayList<>(taskCount);
+          if (limits.hasTimeout()) {
+              Future<?> future;
+              while (futures.size() < taskCount && (future = ParseLimits.trySubmit(() -> { task.run(); return null; })) != null) {
+                  futures.add(future);
+              }
+              if (futures.isEmpty()) {
+                  throw limits.busyError(this, "The inputs");
+              }
+          } else {
+              // The thread of the query runs one of the tasks.
+              for (int t = 0; t < taskCount - 1; ++t) {
+                  futures.add(submit(() -> { task.run(); return null; }));
+              }
+              task.run();
+          }
+          try {
+              for (final Future<?> future : futures) {
+                  if (limits.hasTimeout()) {
+                      future.get(timeout - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+                  } else {
+                      future.get();
+                  }
+              }
+          } catch (final TimeoutException e) {
+              // The tasks take no more inputs, but the inputs that are being parsed cannot be interrupted.
+              failed.set(true);
+              throw limits.timeoutError(this, "The inputs");
+          } catch (final InterruptedException e) {
+              failed.set(true);
+              Thread.currentThread().interrupt();
+              throw new XPathException(this, ErrorCodes.ERROR, "Interrupted while parsing", e);
+          } catch (final ExecutionException e) {
+              throw new XPathException(this, ErrorCodes.ERROR, "Parsing failed: " + e.getCause().getMessage(), e.getCause());
+          }
+      }
+      // An input before a failed one was taken by a task before it, and has been parsed, so the first failure that is
+      // found is the first one in input order.
+      for (int i = 0; i < failures.length; ++i) {
+          if (failures[i] != null) {
+              throw new XPathException(this, FnInvisibleXml.FOIX0002, "Input " + (i + 1) + " cannot be parsed: " + failures[i].getMessage());
+          }
+      }
+      return outputs;
+  }
+
+}
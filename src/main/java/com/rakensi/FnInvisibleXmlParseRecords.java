@@ -0,0 +1,224 @@
+package com.rakensi;
+
+import static com.rakensi.ExtensionFunctionsModule.functionSignatures;
+import static org.exist.xquery.FunctionDSL.optParam;
+import static org.exist.xquery.FunctionDSL.param;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.AnalyzeContextInfo;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.AnyURIValue;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReference;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.BlitzException;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * Implementation of
+ *   rxf:invisible-xml-parse-records(
+ *     $parser   as item()?,
+ *     $input    as item(),
+ *     $options  as map(*)?,
+ *     $action   as function(document-node(), xs:integer) as item()*  := ()
+ *   )  as item()*
+ *
+ * Reads records from a large input, one at a time, and parses every record with an ixml parser. The parser is a
+ * function returned by rxf:invisible-xml, a grammar, or empty for the ixml grammar. The input is an xs:base64Binary or
+ * xs:hexBinary, such as the result of util:binary-doc, which is read as a stream; an xs:string; or an xs:anyURI of a
+ * file on the server, which only a DBA may read.
+ *
+ * eXist does not have lazily evaluated sequences, so the parsed records are given to the function $action, one at a
+ * time, with the number of the record, and the result is the sequence of what $action returns. When $action only
+ * stores or summarizes its document, the memory that is used does not depend on the size of the input. Without
+ * $action, the result is the sequence of all parsed records.
+ *
+ * Options, besides those of rxf:invisible-xml:
+ * - `record-separator`: a regular expression that separates records; by default, a line end.
+ * - `record-length`: the number of characters of every record, instead of a separator.
+ * - `encoding`: the encoding of a binary or file input; UTF-8 by default.
+ * Empty records are skipped, but counted, so that the number of a line record is its line number.
+ * If `fail-on-error` is true, the first record that cannot be parsed raises an error with its number.
+ * The options `max-input-length`, `timeout` and `max-nodes` apply to every record, see ParseLimits.
+ */
+public class FnInvisibleXmlParseRecords extends BasicFunction
+{
+
+  private static final String FS_INVISIBLE_XML_PARSE_RECORDS_NAME = "invisible-xml-parse-records";
+
+  static final FunctionSignature[] FS_INVISIBLE_XML_PARSE_RECORDS =
+      functionSignatures(
+          FS_INVISIBLE_XML_PARSE_RECORDS_NAME,
+          "Parses the records of a large input one by one with an ixml parser, and returns the parsed records, or what the function $action returns for each of them.",
+          new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_MORE, "The parsed records, or the results of $action"),
+          arities(
+              optParam("parser", Type.ITEM, "A parser returned by rxf:invisible-xml, or an ixml grammar, or empty for the ixml grammar"),
+              param("input", Type.ITEM, "The input as xs:base64Binary, xs:hexBinary, xs:string, or the xs:anyURI of a file"),
+              optParam("options", Type.MAP, "The options for the parser generator and the parser, and how to read records"),
+              optParam("action", Type.FUNCTION_REFERENCE, "The function that is called with every parsed record and its number")
+          )
+      );
+
+  // The signatures with and without $action.
+  private static FunctionParameterSequenceType[][] arities(final FunctionParameterSequenceType... params) {
+      return new FunctionParameterSequenceType[][] { Arrays.copyOf(params, params.length - 1), params };
+  }
+
+
+  public FnInvisibleXmlParseRecords(final XQueryContext context, final FunctionSignature signature) {
+      super(context, signature);
+  }
+
+  @Override
+  public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+      final Blitz.Option[] options = FnInvisibleXml.getOptions(args[2]);
+      final Parser parser = FnInvisibleXml.getParser(this, args[0], options);
+      final ParseLimits limits = ParseLimits.get(this, args[2]);
+      final FunctionReference action = args.length > 3 && !args[3].isEmpty() ? (FunctionReference) args[3].itemAt(0) : null;
+      final MapType optionsMap = args[2].isEmpty() ? null : (MapType) args[2].itemAt(0);
+      final Charset encoding = getEncoding(optionsMap);
+      final ValueSequence result = new ValueSequence();
+      try (final RecordReader records = openRecords(args[1].itemAt(0), optionsMap, encoding)) {
+          if (action != null) {
+              action.analyze(new AnalyzeContextInfo(this, 0));
+          }
+          String record;
+          while ((record = records.next()) != null) {
+              if (record.isEmpty()) {
+                  continue;
+              }
+              final String description = "Record " + records.getNumber();
+              final String output;
+              try {
+                  output = limits.parse(this, parser, record, description, options);
+              } catch (final BlitzException e) {
+                  throw new XPathException(this, FnInvisibleXml.FOIX0002, description + " cannot be parsed: " + e.getMessage());
+              }
+              final Sequence document = IxmlTreeBuilder.build(output, new MemTreeBuilder(this, context), limits, description);
+              if (action == null) {
+                  result.addAll(document);
+              } else {
+                  result.addAll(action.evalFunction(contextSequence, null,
+                      new Sequence[] {document, new IntegerValue(this, records.getNumber())}));
+              }
+          }
+      } catch (final CharacterCodingException e) {
+          throw new XPathException(this, ErrorCodes.FOUT1190, "The input is not valid " + encoding.name() + ": " + e.getMessage(), e);
+      } catch (final IOException e) {
+          throw new XPathException(this, ErrorCodes.FODC0002, "The input cannot be read: " + e.getMessage(), e);
+      } finally {
+          if (action != null) {
+              action.close();
+          }
+      }
+      return result;
+  }
+
+  // Open the input, and read records from it as the options say. Binary and file input that is not valid in the
+  // encoding raises an error while it is read, instead of giving replacement characters.
+  private RecordReader openRecords(final Item input, final MapType options, final Charset encoding) throws XPathException, IOException {
+      final Reader reader;
+      if (Type.subTypeOf(input.getType(), Type.ANY_URI)) {
+          reader = new InputStreamReader(openFile((AnyURIValue) input), decoder(encoding));
+      } else if (input instanceof BinaryValue) {
+          reader = new InputStreamReader(((BinaryValue) input).getInputStream(), decoder(encoding));
+      } else if (Type.subTypeOf(input.getType(), Type.STRING)) {
+          reader = new StringReader(input.getStringValue());
+      } else {
+          throw new XPathException(this, ErrorCodes.XPTY0004, "The $input of " + FS_INVISIBLE_XML_PARSE_RECORDS_NAME +
+              " must be an xs:base64Binary, xs:hexBinary, xs:string or xs:anyURI, not " + Type.getTypeName(input.getType()));
+      }
+      final Sequence length = option(options, "record-length");
+      if (!length.isEmpty()) {
+          final long value = ((IntegerValue) length.itemAt(0).convertTo(Type.INTEGER)).getLong();
+          if (value < 1 || value > Integer.MAX_VALUE - 8) {
+              reader.close();
+              throw new XPathException(this, ErrorCodes.XPTY0004, "The option record-length must be a positive integer, not " + value);
+          }
+          return RecordReader.fixedLength(reader, (int) value);
+      }
+      final Sequence separator = option(options, "record-separator");
+      if (separator.isEmpty()) {
+          return RecordReader.separated(reader, RecordReader.LINES);
+      }
+      try {
+          return RecordReader.separated(reader, Pattern.compile(separator.itemAt(0).getStringValue()));
+      } catch (final PatternSyntaxException e) {
+          reader.close();
+          throw new XPathException(this, ErrorCodes.FORX0002, "The option record-separator is not a valid regular expression: " + e.getMessage());
+      }
+  }
+
+  // Open a file on the server, which only a DBA may do.
+  private InputStream openFile(final AnyURIValue uri) throws XPathException, IOException {
+      if (!context.getSubject().hasDbaRole()) {
+          throw new XPathException(this, ErrorCodes.ERROR, "Permission denied: only a DBA may read a file with " + FS_INVISIBLE_XML_PARSE_RECORDS_NAME);
+      }
+      final URI fileUri = uri.toURI();
+      final Path path;
+      try {
+          path = fileUri.getScheme() == null ? Paths.get(fileUri.getPath()) : Paths.get(fileUri);
+      } catch (final IllegalArgumentException | FileSystemNotFoundException e) {
+          // Such as a URI with the xmldb: scheme.
+          throw new XPathException(this, ErrorCodes.FODC0002, "The input " + fileUri + " is not a file on the server: " + e.getMessage(), e);
+      }
+      return Files.newInputStream(path);
+  }
+
+  private static CharsetDecoder decoder(final Charset encoding) {
+      return encoding.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPORT)
+          .onUnmappableCharacter(CodingErrorAction.REPORT);
+  }
+
+  private Charset getEncoding(final MapType options) throws XPathException {
+      final Sequence encoding = option(options, "encoding");
+      if (encoding.isEmpty()) {
+          return StandardCharsets.UTF_8;
+      }
+      try {
+          return Charset.forName(encoding.itemAt(0).getStringValue());
+      } catch (final IllegalArgumentException e) {
+          throw new XPathException(this, ErrorCodes.FOUT1190, "Unknown encoding " + encoding.itemAt(0).getStringValue());
+      }
+  }
+
+  private static Sequence option(final MapType options, final String name) throws XPathException {
+      return options == null ? Sequence.EMPTY_SEQUENCE : options.get(new StringValue(name));
+  }
+
+}
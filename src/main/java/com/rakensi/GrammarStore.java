@@ -0,0 +1,403 @@
+package com.rakensi;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.blitz.Parser;
+import de.bottlecaps.markup.blitz.codepoints.Range;
+import de.bottlecaps.markup.blitz.codepoints.RangeSet;
+import de.bottlecaps.markup.blitz.grammar.Mark;
+import de.bottlecaps.markup.blitz.parser.ReduceArgument;
+import de.bottlecaps.markup.blitz.transform.CompressedMap;
+import de.bottlecaps.markup.blitz.transform.TileIterator;
+
+/**
+ * A directory of the tables of generated Markup Blitz parsers, so that a grammar does not have to be compiled again
+ * after eXist has been restarted.
+ *
+ * Markup Blitz parsers are not serializable, but a parser is nothing more than the tables that are passed to its
+ * constructor. This store writes those tables to a file per grammar and options, named after the key of the parser in
+ * the ParserCache, and makes a parser from them when it is needed again.
+ * The tables are private fields of the parser, so the layout of the files depends on the version of Markup Blitz.
+ * Every file starts with the Markup Blitz version, the SHA-256 of the grammar and the options, and ends with a CRC32.
+ * Files for another version of Markup Blitz, or that are damaged, are deleted when the store is opened.
+ * If the tables of a parser cannot be read, because a new version of Markup Blitz has changed them, the store is not
+ * used, and parsers are generated as before.
+ */
+final class GrammarStore {
+
+    private static final Logger LOG = LogManager.getLogger(GrammarStore.class);
+
+    private static final int MAGIC = 0x69786d6c; // "ixml"
+    private static final int FORMAT = 1;
+    private static final String SUFFIX = ".blitz";
+
+    private final Path directory;
+    private final String blitzVersion;
+
+    private GrammarStore(final Path directory, final String blitzVersion) {
+        this.directory = directory;
+        this.blitzVersion = blitzVersion;
+    }
+
+    /**
+     * Open the store in a directory, which is made if it does not exist, and delete the files in it that cannot be used.
+     * Returns null if the store cannot be used with this version of Markup Blitz, or the directory cannot be made.
+     */
+    static GrammarStore open(final Path directory) {
+        final String blitzVersion = Blitz.class.getPackage().getImplementationVersion();
+        if (blitzVersion == null || !Tables.isAvailable()) {
+            LOG.warn("The grammar store is not used, because the tables of this version of Markup Blitz are not known.");
+            return null;
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (final IOException e) {
+            LOG.warn("The grammar store " + directory + " cannot be made: " + e.getMessage());
+            return null;
+        }
+        final GrammarStore store = new GrammarStore(directory, blitzVersion);
+        store.validate();
+        return store;
+    }
+
+    /**
+     * Read the parser for a key, or return null if the store does not have it.
+     */
+    Parser load(final ParserCache.Key key) {
+        final Path file = directory.resolve(key.toString() + SUFFIX);
+        try {
+            return read(Files.readAllBytes(file), key);
+        } catch (final NoSuchFileException e) {
+            return null;
+        } catch (final IOException | RuntimeException e) {
+            LOG.warn("The stored parser " + file + " cannot be read, and is deleted: " + e.getMessage());
+            delete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Write the parser for a key. The file is written next to its final name and moved there, so that a parser is never
+     * read from a half-written file.
+     */
+    void save(final ParserCache.Key key, final Parser parser) {
+        final Path file = directory.resolve(key.toString() + SUFFIX);
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(directory, key.toString(), ".tmp");
+            try (final OutputStream out = Files.newOutputStream(temporary)) {
+                write(out, key, parser);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException | RuntimeException e) {
+            LOG.warn("The parser cannot be stored in " + file + ": " + e.getMessage());
+            if (temporary != null) {
+                delete(temporary);
+            }
+        }
+    }
+
+    // Read the header of every file, and delete the files for another version of Markup Blitz, the damaged files, and
+    // the temporary files that were left behind.
+    private void validate() {
+        int count = 0;
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    delete(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    try {
+                        read(Files.readAllBytes(file), null);
+                        ++count;
+                    } catch (final IOException | RuntimeException e) {
+                        LOG.info("The stored parser " + file + " is deleted: " + e.getMessage());
+                        delete(file);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            LOG.warn("The grammar store " + directory + " cannot be read: " + e.getMessage());
+        }
+        LOG.info("The grammar store " + directory + " has " + count + " parsers for Markup Blitz " + blitzVersion + ".");
+    }
+
+    private static void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            LOG.warn("The file " + file + " cannot be deleted: " + e.getMessage());
+        }
+    }
+
+    private void write(final OutputStream stream, final ParserCache.Key key, final Parser parser) throws IOException {
+        final CRC32 crc = new CRC32();
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, crc)));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeUTF(blitzVersion);
+        out.writeUTF(key.toString());
+        Tables.write(parser, out);
+        out.flush();
+        // The checksum of everything before it.
+        new DataOutputStream(stream).writeLong(crc.getValue());
+    }
+
+    // Read a parser from the content of a file. If the key is null, the file is only checked, and null is returned.
+    private Parser read(final byte[] bytes, final ParserCache.Key key) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, Math.max(0, bytes.length - 8));
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < 16 || in.readInt() != MAGIC || in.readInt() != FORMAT) {
+            throw new IOException("not a stored parser");
+        }
+        final String version = in.readUTF();
+        if (!version.equals(blitzVersion)) {
+            throw new IOException("stored by Markup Blitz " + version);
+        }
+        if (ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != crc.getValue()) {
+            throw new IOException("damaged");
+        }
+        final String name = in.readUTF();
+        if (key == null) {
+            return null;
+        }
+        if (!name.equals(key.toString())) {
+            throw new IOException("stored for another grammar");
+        }
+        return Tables.read(in);
+    }
+
+    /**
+     * Reads and writes the tables of a parser. The tables are taken from the private fields of the parser, in the order
+     * of the arguments of its constructor.
+     */
+    private static final class Tables {
+
+        private static final String[] NAMES = {
+            "defaultOptions", "asciiMap", "bmpMap", "smpMap", "terminalTransitions", "numberOfTokens",
+            "nonterminalTransitions", "numberOfNonterminals", "reduceArguments", "nonterminal", "terminal", "forks",
+            "expectedTokens", "isVersionMismatch"
+        };
+
+        // The fields of the parser, or null if this version of Markup Blitz does not have them.
+        static final Field[] FIELDS = fields();
+        private static final Field COMPRESSED_MAP_DATA = field(CompressedMap.class, "data");
+        private static final Field COMPRESSED_MAP_SHIFT = field(CompressedMap.class, "shift");
+
+        private static Field[] fields() {
+            try {
+                final Field[] fields = new Field[NAMES.length];
+                for (int i = 0; i < NAMES.length; ++i) {
+                    fields[i] = Parser.class.getDeclaredField(NAMES[i]);
+                    fields[i].setAccessible(true);
+                }
+                Parser.class.getConstructor(Set.class, int[].class, CompressedMap.class, int[].class, CompressedMap.class,
+                    int.class, CompressedMap.class, int.class, ReduceArgument[].class, String[].class, RangeSet[].class,
+                    int[].class, BitSet[].class, boolean.class);
+                return fields;
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        private static Field field(final Class<?> type, final String name) {
+            try {
+                final Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        static boolean isAvailable() {
+            return FIELDS != null && COMPRESSED_MAP_DATA != null && COMPRESSED_MAP_SHIFT != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        static void write(final Parser parser, final DataOutputStream out) throws IOException {
+            try {
+                final Set<Blitz.Option> options = (Set<Blitz.Option>) FIELDS[0].get(parser);
+                out.writeInt(options.size());
+                for (final Blitz.Option option : options) {
+                    out.writeUTF(option.name());
+                }
+                writeInts(out, (int[]) FIELDS[1].get(parser));
+                writeMap(out, (CompressedMap) FIELDS[2].get(parser));
+                writeInts(out, (int[]) FIELDS[3].get(parser));
+                writeMap(out, (CompressedMap) FIELDS[4].get(parser));
+                out.writeInt(FIELDS[5].getInt(parser));
+                writeMap(out, (CompressedMap) FIELDS[6].get(parser));
+                out.writeInt(FIELDS[7].getInt(parser));
+                final ReduceArgument[] reduceArguments = (ReduceArgument[]) FIELDS[8].get(parser);
+                out.writeInt(reduceArguments.length);
+                for (final ReduceArgument reduceArgument : reduceArguments) {
+                    final Mark[] marks = reduceArgument.getMarks();
+                    out.writeInt(marks == null ? -1 : marks.length);
+                    if (marks != null) {
+                        for (final Mark mark : marks) {
+                            out.writeUTF(mark.name());
+                        }
+                    }
+                    writeInts(out, reduceArgument.getAliases());
+                    writeInts(out, reduceArgument.getInsertion());
+                    out.writeInt(reduceArgument.getNonterminalId());
+                }
+                final String[] nonterminals = (String[]) FIELDS[9].get(parser);
+                out.writeInt(nonterminals.length);
+                for (final String nonterminal : nonterminals) {
+                    out.writeUTF(nonterminal);
+                }
+                final RangeSet[] terminals = (RangeSet[]) FIELDS[10].get(parser);
+                out.writeInt(terminals.length);
+                for (final RangeSet terminal : terminals) {
+                    out.writeInt(terminal.size());
+                    for (final Range range : terminal) {
+                        out.writeInt(range.getFirstCodepoint());
+                        out.writeInt(range.getLastCodepoint());
+                    }
+                }
+                writeInts(out, (int[]) FIELDS[11].get(parser));
+                final BitSet[] expectedTokens = (BitSet[]) FIELDS[12].get(parser);
+                out.writeInt(expectedTokens.length);
+                for (final BitSet bits : expectedTokens) {
+                    writeLongs(out, bits == null ? null : bits.toLongArray());
+                }
+                out.writeBoolean(FIELDS[13].getBoolean(parser));
+            } catch (final IllegalAccessException e) {
+                throw new IOException(e);
+            }
+        }
+
+        static Parser read(final DataInputStream in) throws IOException {
+            final Set<Blitz.Option> options = EnumSet.noneOf(Blitz.Option.class);
+            for (int i = in.readInt(); i > 0; --i) {
+                options.add(Blitz.Option.valueOf(in.readUTF()));
+            }
+            final int[] asciiMap = readInts(in);
+            final CompressedMap bmpMap = readMap(in);
+            final int[] smpMap = readInts(in);
+            final CompressedMap terminalTransitions = readMap(in);
+            final int numberOfTokens = in.readInt();
+            final CompressedMap nonterminalTransitions = readMap(in);
+            final int numberOfNonterminals = in.readInt();
+            final ReduceArgument[] reduceArguments = new ReduceArgument[in.readInt()];
+            for (int i = 0; i < reduceArguments.length; ++i) {
+                final int markCount = in.readInt();
+                final Mark[] marks = markCount < 0 ? null : new Mark[markCount];
+                for (int m = 0; m < markCount; ++m) {
+                    marks[m] = Mark.valueOf(in.readUTF());
+                }
+                final int[] aliases = readInts(in);
+                final int[] insertion = readInts(in);
+                reduceArguments[i] = new ReduceArgument(marks, aliases, insertion, in.readInt());
+            }
+            final String[] nonterminals = new String[in.readInt()];
+            for (int i = 0; i < nonterminals.length; ++i) {
+                nonterminals[i] = in.readUTF();
+            }
+            final RangeSet[] terminals = new RangeSet[in.readInt()];
+            for (int i = 0; i < terminals.length; ++i) {
+                final RangeSet.Builder builder = RangeSet.builder();
+                for (int r = in.readInt(); r > 0; --r) {
+                    builder.add(in.readInt(), in.readInt());
+                }
+                final RangeSet terminal = builder.build();
+                // Markup Blitz recognizes the end of the input by identity.
+                terminals[i] = terminal.equals(RangeSet.EOF) ? RangeSet.EOF : terminal.equals(RangeSet.EMPTY) ? RangeSet.EMPTY : terminal;
+            }
+            final int[] forks = readInts(in);
+            final BitSet[] expectedTokens = new BitSet[in.readInt()];
+            for (int i = 0; i < expectedTokens.length; ++i) {
+                final long[] bits = readLongs(in);
+                expectedTokens[i] = bits == null ? null : BitSet.valueOf(bits);
+            }
+            final boolean isVersionMismatch = in.readBoolean();
+            return new Parser(options, asciiMap, bmpMap, smpMap, terminalTransitions, numberOfTokens, nonterminalTransitions,
+                numberOfNonterminals, reduceArguments, nonterminals, terminals, forks, expectedTokens, isVersionMismatch);
+        }
+
+        private static void writeMap(final DataOutputStream out, final CompressedMap map) throws IOException {
+            writeInts(out, map.data());
+            writeInts(out, map.shift());
+        }
+
+        // A compressed map cannot be made from its data, so a trivial one is made, and its data are replaced.
+        private static CompressedMap readMap(final DataInputStream in) throws IOException {
+            final int[] data = readInts(in);
+            final int[] shift = readInts(in);
+            final CompressedMap map = new CompressedMap(bits -> TileIterator.of(new int[] {0}, 1, bits, 0), 1);
+            try {
+                COMPRESSED_MAP_DATA.set(map, data);
+                COMPRESSED_MAP_SHIFT.set(map, shift);
+            } catch (final IllegalAccessException e) {
+                throw new IOException(e);
+            }
+            return map;
+        }
+
+        private static void writeInts(final DataOutputStream out, final int[] values) throws IOException {
+            out.writeInt(values == null ? -1 : values.length);
+            if (values != null) {
+                for (final int value : values) {
+                    out.writeInt(value);
+                }
+            }
+        }
+
+        private static int[] readInts(final DataInputStream in) throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            final int[] values = new int[length];
+            for (int i = 0; i < length; ++i) {
+                values[i] = in.readInt();
+            }
+            return values;
+        }
+
+        private static void writeLongs(final DataOutputStream out, final long[] values) throws IOException {
+            out.writeInt(values == null ? -1 : values.length);
+            if (values != null) {
+                for (final long value : values) {
+                    out.writeLong(value);
+                }
+            }
+        }
+
+        private static long[] readLongs(final DataInputStream in) throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            final long[] values = new long[length];
+            for (int i = 0; i < length; ++i) {
+                values[i] = in.readLong();
+            }
+            return values;
+        }
+    }
+}
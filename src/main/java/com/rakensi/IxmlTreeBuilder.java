@@ -0,0 +1,347 @@
+package com.rakensi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.XPathException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Builds an in-memory document from the output of a Markup Blitz parser.
+ *
+ * Markup Blitz only gives its parse tree as serialized XML. Instead of parsing that with a general XML parser, this
+ * class reads it directly into a MemTreeBuilder. It only knows what Markup Blitz writes: elements, attributes, text,
+ * the predefined entities and character references, and the namespace declaration of the `ixml` prefix. There are no
+ * comments, processing instructions, CDATA sections or DOCTYPE declarations.
+ * Markup Blitz writes a control character in an attribute value as `&amp;xN;` instead of `&amp;#xN;`, which is also
+ * accepted.
+ *
+ * Every thread reuses the text buffer and the cached names of its own instance.
+ *
+ * The number of nodes of the document can be limited, see ParseLimits; it is counted while the document is built.
+ * Parse trees can be nested very deeply, e.g. by a right-recursive rule, so the output is read in a loop that only
+ * counts the open elements, and not recursively.
+ */
+final class IxmlTreeBuilder {
+
+    private static final AttributesImpl NO_ATTRIBUTES = new AttributesImpl();
+    // A text buffer larger than this, and more cached names than this, are not kept for the next document.
+    private static final int MAX_KEPT_TEXT = 1 << 16;
+    private static final int MAX_KEPT_NAMES = 4096;
+
+    // Every thread has its own builder, so that its buffer and names are reused, and documents can be built by
+    // several threads at the same time.
+    private static final ThreadLocal<IxmlTreeBuilder> BUILDERS = ThreadLocal.withInitial(IxmlTreeBuilder::new);
+
+    private String xml;
+    private MemTreeBuilder builder;
+    private final Map<String, String> namespaces = new HashMap<>();
+    // The names of the elements and attributes, which are few and repeated many times.
+    private final Map<String, QName> elementNames = new HashMap<>();
+    private final Map<String, QName> attributeNames = new HashMap<>();
+    // The unescaped text of a text node or attribute value is put in `text`, of which `length` characters are used.
+    private char[] text = new char[256];
+    private int length;
+    private int position;
+    // The number of nodes that may still be built, and the limits and the description of the input for the error.
+    private long remainingNodes;
+    private ParseLimits limits;
+    private String description;
+
+    private IxmlTreeBuilder() {
+        namespaces.put(XMLConstants.XML_NS_PREFIX, XMLConstants.XML_NS_URI);
+    }
+
+    /**
+     * Build a document from the output of a Markup Blitz parser.
+     */
+    static DocumentImpl build(final String xml, final MemTreeBuilder builder) throws XPathException {
+        return build(xml, builder, null, null);
+    }
+
+    /**
+     * Build a document from the output of a Markup Blitz parser, with at most `limits.maxNodes` nodes. The description
+     * of the input is used in the error when there are more.
+     */
+    static DocumentImpl build(final String xml, final MemTreeBuilder builder, final ParseLimits limits, final String description) throws XPathException {
+        final IxmlTreeBuilder reader = BUILDERS.get();
+        reader.start(xml, builder);
+        reader.limits = limits;
+        reader.description = description;
+        reader.remainingNodes = limits == null ? Long.MAX_VALUE : limits.maxNodes;
+        try {
+            builder.startDocument();
+            reader.content();
+            builder.endDocument();
+            return builder.getDocument();
+        } finally {
+            reader.finish();
+        }
+    }
+
+    private void start(final String xml, final MemTreeBuilder builder) {
+        this.xml = xml;
+        this.builder = builder;
+        this.position = 0;
+        // The names that were cached for the namespace declarations of another document may not apply.
+        if (namespaces.size() > 1 || elementNames.size() + attributeNames.size() > MAX_KEPT_NAMES) {
+            namespaces.clear();
+            namespaces.put(XMLConstants.XML_NS_PREFIX, XMLConstants.XML_NS_URI);
+            elementNames.clear();
+            attributeNames.clear();
+        }
+    }
+
+    // Do not keep the output and the document.
+    private void finish() {
+        xml = null;
+        builder = null;
+        limits = null;
+        description = null;
+        if (text.length > MAX_KEPT_TEXT) {
+            text = new char[256];
+        }
+    }
+
+    // Read the content of the document. End tags are not checked against the names of their start tags, since Markup
+    // Blitz writes them, so the open elements are only counted.
+    private void content() throws XPathException {
+        int depth = 0;
+        while (position < xml.length()) {
+            final int tag = xml.indexOf('<', position);
+            final int end = tag < 0 ? xml.length() : tag;
+            if (end > position) {
+                unescape(position, end);
+                // Markup Blitz does not write whitespace around the document element, but a parser with the indent option does.
+                if (depth > 0 || !isWhitespace()) {
+                    count(1);
+                    builder.characters(text, 0, length);
+                }
+                position = end;
+            }
+            if (tag < 0) {
+                break;
+            }
+            if (xml.startsWith("</", tag)) {
+                if (depth == 0) {
+                    throw error("unexpected end tag");
+                }
+                position = expect('>', xml.indexOf('>', tag)) + 1;
+                builder.endElement();
+                --depth;
+            } else if (startElement()) {
+                ++depth;
+            }
+        }
+        if (depth > 0) {
+            throw error("unexpected end of the output");
+        }
+    }
+
+    // Read a start tag, and return whether its element is open, or ended because it is empty.
+    private boolean startElement() throws XPathException {
+        ++position;
+        final String name = name();
+        AttributesImpl attributes = null;
+        Map<String, String> declarations = null;
+        boolean hasPrefixedAttributes = false;
+        while (true) {
+            skipWhitespace();
+            if (position >= xml.length()) {
+                throw error("unexpected end of the output");
+            }
+            final char c = xml.charAt(position);
+            if (c == '>' || c == '/') {
+                break;
+            }
+            final String attributeName = name();
+            skipWhitespace();
+            expect('=', position);
+            ++position;
+            skipWhitespace();
+            final char quote = position < xml.length() ? xml.charAt(position) : 0;
+            if (quote != '"' && quote != '\'') {
+                throw error("expected a quoted attribute value");
+            }
+            final int valueEnd = expect(quote, xml.indexOf(quote, position + 1));
+            unescape(position + 1, valueEnd);
+            position = valueEnd + 1;
+            final String value = new String(text, 0, length);
+            if (attributeName.equals(XMLConstants.XMLNS_ATTRIBUTE) || attributeName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")) {
+                if (declarations == null) {
+                    declarations = new HashMap<>();
+                }
+                declarations.put(attributeName.length() == XMLConstants.XMLNS_ATTRIBUTE.length() ? XMLConstants.DEFAULT_NS_PREFIX :
+                    attributeName.substring(XMLConstants.XMLNS_ATTRIBUTE.length() + 1), value);
+            } else {
+                if (attributes == null) {
+                    attributes = new AttributesImpl();
+                }
+                // The namespace of a prefixed attribute is known after all namespace declarations of the element.
+                if (attributeName.indexOf(':') >= 0) {
+                    hasPrefixedAttributes = true;
+                    attributes.addAttribute(null, null, attributeName, "CDATA", value);
+                } else {
+                    attributes.addAttribute(XMLConstants.NULL_NS_URI, attributeName, attributeName, "CDATA", value);
+                }
+            }
+        }
+        // Namespace declarations apply to the element itself and its attributes, and are not undone after it, since
+        // Markup Blitz only declares the ixml prefix on the document element.
+        if (declarations != null) {
+            namespaces.putAll(declarations);
+            elementNames.clear();
+            attributeNames.clear();
+        }
+        if (hasPrefixedAttributes) {
+            for (int i = 0; i < attributes.getLength(); ++i) {
+                if (attributes.getLocalName(i) == null) {
+                    final QName attribute = qname(attributes.getQName(i), false);
+                    attributes.setURI(i, attribute.getNamespaceURI());
+                    attributes.setLocalName(i, attribute.getLocalPart());
+                }
+            }
+        }
+        count(attributes == null ? 1 : 1 + attributes.getLength());
+        builder.startElement(qname(name, true), attributes == null ? NO_ATTRIBUTES : attributes);
+        if (declarations != null) {
+            for (final Map.Entry<String, String> declaration : declarations.entrySet()) {
+                builder.namespaceNode(declaration.getKey(), declaration.getValue());
+            }
+        }
+        if (xml.charAt(position) == '/') {
+            ++position;
+            expect('>', position);
+            ++position;
+            builder.endElement();
+            return false;
+        }
+        ++position;
+        return true;
+    }
+
+    // Count nodes that will be built.
+    private void count(final int nodes) throws XPathException {
+        remainingNodes -= nodes;
+        if (remainingNodes < 0) {
+            throw limits.nodesError(description);
+        }
+    }
+
+    // Read a name, which may have a prefix.
+    private String name() throws XPathException {
+        final int start = position;
+        while (position < xml.length()) {
+            final char c = xml.charAt(position);
+            if (c == '>' || c == '/' || c == '=' || c == '<' || c == '"' || c == '\'' || Character.isWhitespace(c)) {
+                break;
+            }
+            ++position;
+        }
+        if (position == start) {
+            throw error("expected a name");
+        }
+        return xml.substring(start, position);
+    }
+
+    private QName qname(final String name, final boolean isElement) throws XPathException {
+        final Map<String, QName> names = isElement ? elementNames : attributeNames;
+        QName qname = names.get(name);
+        if (qname == null) {
+            qname = newQName(name, isElement);
+            names.put(name, qname);
+        }
+        return qname;
+    }
+
+    private QName newQName(final String name, final boolean isElement) throws XPathException {
+        final int colon = name.indexOf(':');
+        final String prefix = colon < 0 ? XMLConstants.DEFAULT_NS_PREFIX : name.substring(0, colon);
+        // Unprefixed attributes are in no namespace.
+        final String uri = colon < 0 && !isElement ? XMLConstants.NULL_NS_URI : namespaces.get(prefix);
+        if (uri == null && colon >= 0) {
+            throw error("undeclared prefix " + prefix);
+        }
+        return new QName(name.substring(colon + 1), uri == null ? XMLConstants.NULL_NS_URI : uri, prefix);
+    }
+
+    // Put the text between two positions in `text`, with entities and character references replaced.
+    private void unescape(final int start, final int end) throws XPathException {
+        if (text.length < end - start) {
+            text = new char[Math.max(end - start, 2 * text.length)];
+        }
+        length = 0;
+        int from = start;
+        int amp;
+        while ((amp = xml.indexOf('&', from)) >= 0 && amp < end) {
+            xml.getChars(from, amp, text, length);
+            length += amp - from;
+            final int semicolon = expect(';', xml.indexOf(';', amp));
+            if (semicolon > end) {
+                throw error("unterminated reference");
+            }
+            final String reference = xml.substring(amp + 1, semicolon);
+            switch (reference) {
+                case "lt": text[length++] = '<'; break;
+                case "gt": text[length++] = '>'; break;
+                case "amp": text[length++] = '&'; break;
+                case "quot": text[length++] = '"'; break;
+                case "apos": text[length++] = '\''; break;
+                default:
+                    // A character reference is longer than the one or two chars of its character.
+                    try {
+                        final int codepoint;
+                        if (reference.startsWith("#x") || reference.startsWith("#X")) {
+                            codepoint = Integer.parseInt(reference.substring(2), 16);
+                        } else if (reference.startsWith("#")) {
+                            codepoint = Integer.parseInt(reference.substring(1));
+                        } else if (reference.startsWith("x")) {
+                            codepoint = Integer.parseInt(reference.substring(1), 16);
+                        } else {
+                            throw error("unknown entity &" + reference + ";");
+                        }
+                        length += Character.toChars(codepoint, text, length);
+                    } catch (final IllegalArgumentException e) {
+                        throw error("invalid character reference &" + reference + ";");
+                    }
+            }
+            from = semicolon + 1;
+        }
+        xml.getChars(from, end, text, length);
+        length += end - from;
+    }
+
+    private void skipWhitespace() {
+        while (position < xml.length() && Character.isWhitespace(xml.charAt(position))) {
+            ++position;
+        }
+    }
+
+    private boolean isWhitespace() {
+        for (int i = 0; i < length; ++i) {
+            if (!Character.isWhitespace(text[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Check that a character is at an index, and return the index.
+    private int expect(final char c, final int index) throws XPathException {
+        if (index < 0 || index >= xml.length() || xml.charAt(index) != c) {
+            throw error("expected '" + c + "'");
+        }
+        return index;
+    }
+
+    private XPathException error(final String message) {
+        return new XPathException(ErrorCodes.FODC0006, "The output of the ixml parser is not well-formed at position " +
+            position + ": " + message);
+    }
+}
@@ -0,0 +1,200 @@
+package com.rakensi;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.exist.dom.QName;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.Expression;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * Limits on the resources that parsing an input may use, so that a large or pathological input cannot keep a query
+ * thread busy for a long time.
+ *
+ * - `max-input-length`: the number of characters of an input, which is checked before it is parsed.
+ * - `timeout`: the number of milliseconds that parsing an input may take. The input is parsed on a thread of its own,
+ *   and the query waits at most this long for it. Markup Blitz cannot be interrupted, so a parse that takes too long
+ *   goes on in the background. There are at most `parse-timeout-threads` such threads, which are not shared with
+ *   the pool of rxf:invisible-xml-parse-many, which uses them for its calls with a timeout; when all of them are busy,
+ *   a parse with a timeout fails at once instead of waiting, so that runaway parses cannot hold up other queries.
+ * - `max-nodes`: the number of elements, attributes and text nodes of the document that is built from the parse tree,
+ *   which grows with the size of the input and with the nesting of the grammar.
+ *
+ * The module parameters `parse-max-input-length`, `parse-timeout` and `parse-max-nodes` are limits for all queries,
+ * which the options of a call can only make lower. Exceeding a limit raises the error rxf:RXIX0001.
+ */
+final class ParseLimits {
+
+    static final ErrorCodes.ErrorCode RXIX0001 = new ErrorCodes.ErrorCode(
+        new QName("RXIX0001", ExtensionFunctionsModule.NAMESPACE_URI, ExtensionFunctionsModule.PREFIX),
+        "A limit for parsing an input with an ixml parser was exceeded.");
+
+    static final String MAX_INPUT_LENGTH = "max-input-length";
+    static final String TIMEOUT = "timeout";
+    static final String MAX_NODES = "max-nodes";
+
+    // No limit is Long.MAX_VALUE, so that a limit is checked with a single comparison.
+    private static final long NONE = Long.MAX_VALUE;
+
+    private static volatile ParseLimits defaults = new ParseLimits(NONE, NONE, NONE);
+
+    private static final int DEFAULT_TIMEOUT_THREADS = Runtime.getRuntime().availableProcessors();
+    // The threads for parses with a timeout. Their number is bounded by the permits of `timeoutSlots`, which a parse
+    // holds until it ends, also when the query has stopped waiting for it.
+    private static final ExecutorService timeoutExecutor = Executors.newCachedThreadPool(task -> {
+        final Thread thread = new Thread(task, "ixml parse with timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static volatile Semaphore timeoutSlots = new Semaphore(DEFAULT_TIMEOUT_THREADS);
+    private static volatile int timeoutThreads = DEFAULT_TIMEOUT_THREADS;
+
+    final long maxInputLength;
+    final long timeout;
+    final long maxNodes;
+
+    private ParseLimits(final long maxInputLength, final long timeout, final long maxNodes) {
+        this.maxInputLength = maxInputLength;
+        this.timeout = timeout;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Set the limits for all queries; 0 means no limit.
+     */
+    static void setDefaults(final long maxInputLength, final long timeout, final long maxNodes) {
+        defaults = new ParseLimits(orNone(maxInputLength), orNone(timeout), orNone(maxNodes));
+    }
+
+    /**
+     * Set the number of parses with a timeout that can run at the same time; 0 means the number of processors.
+     * Parses that are running keep the permits of the previous number.
+     */
+    static synchronized void setTimeoutThreads(final int threads) {
+        final int size = threads <= 0 ? DEFAULT_TIMEOUT_THREADS : threads;
+        if (size != timeoutThreads) {
+            timeoutSlots = new Semaphore(size);
+            timeoutThreads = size;
+        }
+    }
+
+    private static long orNone(final long limit) {
+        return limit <= 0 ? NONE : limit;
+    }
+
+    /**
+     * The limits for an $options as map(*)? parameter.
+     */
+    static ParseLimits get(final Expression caller, final Sequence options) throws XPathException {
+        final ParseLimits limits = defaults;
+        if (options.isEmpty()) {
+            return limits;
+        }
+        final MapType map = (MapType) options.itemAt(0);
+        return new ParseLimits(
+            option(caller, map, MAX_INPUT_LENGTH, limits.maxInputLength),
+            option(caller, map, TIMEOUT, limits.timeout),
+            option(caller, map, MAX_NODES, limits.maxNodes));
+    }
+
+    // The value of a limit option, which cannot be more than the limit for all queries.
+    private static long option(final Expression caller, final MapType options, final String name, final long limit) throws XPathException {
+        final Sequence option = options.get(new StringValue(name));
+        if (option.isEmpty()) {
+            return limit;
+        }
+        final long value = ((IntegerValue) option.itemAt(0).convertTo(Type.INTEGER)).getLong();
+        if (value < 1) {
+            throw new XPathException(caller, ErrorCodes.XPTY0004, "The option " + name + " must be at least 1, not " + value);
+        }
+        return Math.min(value, limit);
+    }
+
+    boolean hasTimeout() {
+        return timeout != NONE;
+    }
+
+    /**
+     * Check the length of an input, which is described in the error message.
+     */
+    void checkInputLength(final Expression caller, final String input, final String description) throws XPathException {
+        if (input.length() > maxInputLength) {
+            throw new XPathException(caller, RXIX0001, description + " has " + input.length() +
+                " characters, which is more than " + MAX_INPUT_LENGTH + " " + maxInputLength);
+        }
+    }
+
+    /**
+     * Parse an input within these limits. The errors of Markup Blitz are thrown as they are.
+     */
+    String parse(final Expression caller, final Parser parser, final String input, final String description,
+        final Blitz.Option... options) throws XPathException {
+        checkInputLength(caller, input, description);
+        if (!hasTimeout()) {
+            return parser.parse(input, options);
+        }
+        final Future<String> future = trySubmit(() -> parser.parse(input, options));
+        if (future == null) {
+            throw busyError(caller, description);
+        }
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            throw timeoutError(caller, description);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(caller, ErrorCodes.ERROR, "Interrupted while parsing", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new XPathException(caller, ErrorCodes.ERROR, "Parsing failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Run a task on one of the threads for parsing with a timeout, or return null if all of them are busy. The task is
+     * never cancelled: Markup Blitz cannot be interrupted, and the thread is only free again when the task has ended.
+     */
+    static <T> Future<T> trySubmit(final Callable<T> task) {
+        final Semaphore slots = timeoutSlots;
+        if (!slots.tryAcquire()) {
+            return null;
+        }
+        return timeoutExecutor.submit(() -> {
+            try {
+                return task.call();
+            } finally {
+                slots.release();
+            }
+        });
+    }
+
+    XPathException busyError(final Expression caller, final String description) {
+        return new XPathException(caller, RXIX0001, description + " cannot be parsed with a " + TIMEOUT + ", because all " +
+            timeoutThreads + " threads for parsing with a " + TIMEOUT + " are busy");
+    }
+
+    XPathException timeoutError(final Expression caller, final String description) {
+        return new XPathException(caller, RXIX0001, description + " could not be parsed within " + TIMEOUT + " " + timeout + " ms");
+    }
+
+    XPathException nodesError(final String description) {
+        return new XPathException(RXIX0001, description + " gives a document of more than " + MAX_NODES + " " + maxNodes + " nodes");
+    }
+}
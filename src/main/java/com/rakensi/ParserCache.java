@@ -0,0 +1,217 @@
+package com.rakensi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.BlitzException;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * A bounded, least-recently-used cache of generated Markup Blitz parsers, shared by all queries.
+ *
+ * Parsers are keyed by the SHA-256 hash of the grammar and the set of options that they were generated with.
+ * A Markup Blitz parser can be used by several threads at the same time, so the same instance is given to every query
+ * that asks for the same grammar and options.
+ * The cache holds at most `maxCount` parsers, and parsers for grammars of at most `maxSize` characters in total.
+ * The size of a grammar stands in for the size of its parser, which cannot be measured.
+ * When a limit is exceeded, the least recently used parsers are removed.
+ *
+ * A parser is generated outside the lock of the cache. When several queries ask for the same parser at the same time,
+ * it is generated once, and the other queries wait for it.
+ * If the cache has a GrammarStore, a parser that is not in the cache is read from the store before it is generated,
+ * and a generated parser is written to the store.
+ */
+final class ParserCache {
+
+    static final int DEFAULT_MAX_COUNT = 32;
+    static final long DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    private static final ParserCache INSTANCE = new ParserCache(DEFAULT_MAX_COUNT, DEFAULT_MAX_SIZE);
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxCount;
+    private long maxSize;
+    // The total size of the grammars of the entries.
+    private long size = 0L;
+    // The persistent store of parsers and its directory, or null.
+    private volatile GrammarStore store;
+    private Path storeDirectory;
+
+    ParserCache(final int maxCount, final long maxSize) {
+        this.maxCount = maxCount;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * The cache that is shared by all queries.
+     */
+    static ParserCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the limits of the cache, and remove parsers until they are met. A limit of 0 disables the cache.
+     */
+    synchronized void setLimits(final int maxCount, final long maxSize) {
+        this.maxCount = maxCount;
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Use the GrammarStore in a directory, or none if the directory is null.
+     * The store is only opened when the directory is not the one that is already used.
+     */
+    synchronized void setStoreDirectory(final Path directory) {
+        if (!Objects.equals(directory, storeDirectory)) {
+            storeDirectory = directory;
+            store = directory == null ? null : GrammarStore.open(directory);
+        }
+    }
+
+    /**
+     * Get the parser for a grammar and options from the cache, or generate it.
+     * @throws BlitzException if the grammar is not valid.
+     */
+    Parser get(final String grammar, final Blitz.Option... options) throws BlitzException {
+        final Key key = new Key(grammar, options);
+        final Entry entry;
+        final boolean generate;
+        synchronized (this) {
+            if (maxCount <= 0 || grammar.length() > maxSize) {
+                return generate(key, grammar, options);
+            }
+            final Entry cached = entries.get(key);
+            if (cached != null) {
+                entry = cached;
+                generate = false;
+            } else {
+                entry = new Entry(grammar.length(), new FutureTask<>(() -> generate(key, grammar, options)));
+                entries.put(key, entry);
+                size += entry.size;
+                evict();
+                generate = true;
+            }
+        }
+        if (generate) {
+            entry.parser.run();
+        }
+        try {
+            return entry.parser.get();
+        } catch (final ExecutionException e) {
+            // Do not keep a failed grammar, so that an error that depends on the state of the system is not remembered.
+            remove(key, entry);
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new BlitzException(cause);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlitzException("Interrupted while waiting for the parser to be generated", e);
+        }
+    }
+
+    // Read a parser from the store, or generate it and write it to the store.
+    private Parser generate(final Key key, final String grammar, final Blitz.Option[] options) {
+        final GrammarStore store = this.store;
+        if (store == null) {
+            return Blitz.generate(grammar, options);
+        }
+        Parser parser = store.load(key);
+        if (parser == null) {
+            parser = Blitz.generate(grammar, options);
+            store.save(key, parser);
+        }
+        return parser;
+    }
+
+    synchronized int count() {
+        return entries.size();
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    private synchronized void remove(final Key key, final Entry entry) {
+        if (entries.remove(key, entry)) {
+            size -= entry.size;
+        }
+    }
+
+    // Remove the least recently used entries until the limits are met.
+    private void evict() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() && (entries.size() > maxCount || size > maxSize)) {
+            size -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final FutureTask<Parser> parser;
+
+        private Entry(final long size, final FutureTask<Parser> parser) {
+            this.size = size;
+            this.parser = parser;
+        }
+    }
+
+    /**
+     * The key of a parser: the SHA-256 of its grammar and its options.
+     * Its string form, the hexadecimal hash followed by the options, is the name of the parser in the GrammarStore.
+     */
+    static final class Key {
+        private final byte[] hash;
+        private final Set<Blitz.Option> options;
+
+        private Key(final String grammar, final Blitz.Option[] options) {
+            try {
+                this.hash = MessageDigest.getInstance("SHA-256").digest(grammar.getBytes(StandardCharsets.UTF_8));
+            } catch (final NoSuchAlgorithmException e) {
+                // Every Java platform supports SHA-256.
+                throw new IllegalStateException(e);
+            }
+            this.options = options.length == 0 ? EnumSet.noneOf(Blitz.Option.class) : EnumSet.copyOf(Arrays.asList(options));
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Key && Arrays.equals(hash, ((Key) other).hash) && options.equals(((Key) other).options);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(hash) + options.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder name = new StringBuilder(64 + 16 * options.size());
+            for (final byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            for (final Blitz.Option option : options) {
+                name.append('-').append(option.name().toLowerCase());
+            }
+            return name.toString();
+        }
+    }
+}
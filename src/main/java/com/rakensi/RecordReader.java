@@ -0,0 +1,125 @@
+package com.rakensi;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads records from a character stream, one at a time, so that only the current record is in memory.
+ *
+ * Records are separated by a regular expression, by default a line end (`\n`, `\r\n` or `\r`), or they have a fixed
+ * number of characters, of which the last record may have fewer.
+ * Every separator ends a record, so an input that starts with a separator starts with an empty record, and two
+ * separators in a row have an empty record between them. A separator at the end of the input does not start another
+ * record. This is how the records are counted, so that the number of a line is its line number.
+ */
+final class RecordReader implements Closeable {
+
+    static final Pattern LINES = Pattern.compile("\r\n|[\n\r]");
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Reader reader;
+    // Lines are read with `lines`, other separators with `separator`, and records of a fixed length with `buffer`.
+    private final BufferedReader lines;
+    private final Matcher separator;
+    private final char[] buffer;
+    // The characters that have been read but not returned, for a separator.
+    private final StringBuilder pending = new StringBuilder();
+    private boolean end = false;
+    private int number = 0;
+
+    private RecordReader(final Reader reader, final BufferedReader lines, final Pattern separator, final char[] buffer) {
+        this.reader = reader;
+        this.lines = lines;
+        this.separator = separator == null ? null : separator.matcher(pending);
+        this.buffer = buffer;
+    }
+
+    /**
+     * Records that are separated by a regular expression.
+     */
+    static RecordReader separated(final Reader reader, final Pattern separator) {
+        if (separator == LINES) {
+            // BufferedReader knows the same line ends, without a regular expression.
+            return new RecordReader(reader, new BufferedReader(reader, CHUNK_SIZE), null, null);
+        }
+        return new RecordReader(reader, null, separator, new char[CHUNK_SIZE]);
+    }
+
+    /**
+     * Records of a fixed number of characters.
+     */
+    static RecordReader fixedLength(final Reader reader, final int length) {
+        return new RecordReader(reader, null, null, new char[length]);
+    }
+
+    /**
+     * The next record, or null at the end of the input.
+     */
+    String next() throws IOException {
+        final String record = lines != null ? lines.readLine() : separator != null ? nextSeparated() : nextFixedLength();
+        if (record != null) {
+            ++number;
+        }
+        return record;
+    }
+
+    // The characters up to the next separator that is not empty. A separator that reaches the end of what has been read
+    // could be longer, such as `\r` of `\r\n`, so more is read before it is used.
+    private String nextSeparated() throws IOException {
+        while (true) {
+            separator.reset(pending);
+            boolean found;
+            while ((found = separator.find()) && separator.end() == separator.start()) {
+                // An empty match does not separate records.
+            }
+            if (found && (end || !separator.hitEnd())) {
+                final String record = pending.substring(0, separator.start());
+                pending.delete(0, separator.end());
+                return record;
+            }
+            if (end) {
+                if (pending.length() == 0) {
+                    return null;
+                }
+                final String record = pending.toString();
+                pending.setLength(0);
+                return record;
+            }
+            final int read = reader.read(buffer);
+            if (read < 0) {
+                end = true;
+            } else {
+                pending.append(buffer, 0, read);
+            }
+        }
+    }
+
+    private String nextFixedLength() throws IOException {
+        int length = 0;
+        int read;
+        while (length < buffer.length && (read = reader.read(buffer, length, buffer.length - length)) >= 0) {
+            length += read;
+        }
+        if (length == 0) {
+            return null;
+        }
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * The number of the last record that `next` returned, starting at 1.
+     */
+    int getNumber() {
+        return number;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,141 @@
+package nl.benjamins.exist.servlet;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+// An asynchronous access log, with one line per request that went through the filter.
+//
+// Requests put their entries into a fixed ring buffer of preallocated entries, without taking a lock and without
+// allocating anything. A background thread takes the entries out of the buffer, formats them and writes them to the
+// logger. A request never waits for the logger: if the buffer is full, because the logger cannot keep up, the entry is
+// dropped and counted, and the number of dropped entries is logged later.
+//
+// A request claims the next sequence number with a compare-and-set, fills the entry in its slot, and then publishes it
+// by writing the sequence number into the entry. The writer thread only reads entries that have been published, in the
+// order of their sequence numbers, and frees their slots by advancing the consumed sequence.
+
+final class AccessLog implements Runnable
+{
+
+  // How long the writer thread waits when there are no entries.
+  private static final long IDLE_NANOS = 10_000_000L;
+
+  private static final DateTimeFormatter TIME_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+  private final Logger logger;
+  private final Entry[] ring;
+  private final int mask;
+  // The sequence number of the next entry to be claimed.
+  private final AtomicLong next = new AtomicLong(0L);
+  // The sequence number of the next entry to be written. Only the writer thread changes it.
+  private volatile long consumed = 0L;
+  private final AtomicLong dropped = new AtomicLong(0L);
+  private volatile boolean stopped = false;
+  private Thread thread;
+
+  private static final class Entry
+  {
+    // The sequence number of the entry in this slot, when it has been published.
+    private volatile long sequence = -1L;
+    private long time;
+    private String urlPath;
+    private String outcome;
+    private int status;
+    private long nanos;
+  }
+
+  // The size of the ring buffer is rounded up to a power of two.
+  AccessLog(Logger logger, int size)
+  {
+    int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+    this.logger = logger;
+    this.ring = new Entry[capacity];
+    for (int i = 0; i < capacity; ++i) ring[i] = new Entry();
+    this.mask = capacity - 1;
+  }
+
+  void start()
+  {
+    thread = new Thread(this, "JBResourceServletFilter access log");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Stop the writer thread, after it has written the entries that are in the buffer.
+  void stop()
+  {
+    stopped = true;
+    if (thread != null) LockSupport.unpark(thread);
+  }
+
+  // Put an entry into the log. The outcome should be a constant string.
+  void record(String urlPath, String outcome, int status, long nanos)
+  {
+    long sequence;
+    do
+    {
+      sequence = next.get();
+      if (sequence - consumed >= ring.length)
+      {
+        dropped.incrementAndGet();
+        return;
+      }
+    }
+    while (!next.compareAndSet(sequence, sequence + 1));
+    Entry entry = ring[(int) (sequence & mask)];
+    entry.time = System.currentTimeMillis();
+    entry.urlPath = urlPath;
+    entry.outcome = outcome;
+    entry.status = status;
+    entry.nanos = nanos;
+    entry.sequence = sequence;
+  }
+
+  long getDropped()
+  {
+    return dropped.get();
+  }
+
+  @Override
+  public void run()
+  {
+    StringBuilder line = new StringBuilder(256);
+    long reportedDropped = 0L;
+    while (true)
+    {
+      boolean idle = true;
+      long sequence = consumed;
+      Entry entry = ring[(int) (sequence & mask)];
+      while (entry.sequence == sequence)
+      {
+        idle = false;
+        line.setLength(0);
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), line);
+        line.append(' ').append(entry.status).append(' ').append(entry.outcome).append(' ')
+            .append(entry.nanos / 1000).append("us ").append(entry.urlPath);
+        entry.urlPath = null;
+        // Free the slot.
+        consumed = ++sequence;
+        logger.info(line.toString());
+        entry = ring[(int) (sequence & mask)];
+      }
+      long droppedNow = dropped.get();
+      if (droppedNow != reportedDropped)
+      {
+        logger.warning((droppedNow - reportedDropped) + " access log entries were dropped, because the log could not keep up.");
+        reportedDropped = droppedNow;
+      }
+      if (idle)
+      {
+        if (stopped) return;
+        LockSupport.parkNanos(this, IDLE_NANOS);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,336 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.http.CompressedContentFormat;
+
+// A zip (or jar) archive under the base path, from which resources are served without opening files.
+//
+// The archive is memory-mapped as a whole when it is opened, and its central directory is read into an index from
+// entry name to the position and size of the entry's data. After that, serving an entry only needs a slice of the
+// mapped buffer: the archive is not opened again, and there is no file system lookup per entry.
+// Entries that are stored (not compressed) are sent as they are. Entries that are deflated can be sent as gzip
+// without decompressing them, because a gzip stream is the same deflated data with a small header and trailer, and
+// the trailer's CRC-32 and size are in the central directory. For clients that do not accept gzip, they are inflated.
+//
+// An archive is an immutable snapshot of one version of the archive file (its modification time and size). When the
+// file has changed, the filter opens it again. Archives must be replaced by moving a new file over them; an archive
+// that is rewritten in place while it is mapped can make requests fail.
+// Archives of up to 2 GB are supported, with zip64 directories (for more than 65535 entries). Encrypted entries and
+// compression methods other than stored and deflated are ignored.
+
+final class Archive
+{
+
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int END_SIZE = 22;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int CENTRAL_SIGNATURE = 0x02014b50;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int LOCAL_SIGNATURE = 0x04034b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int ZIP64_EXTRA = 0x0001;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+  private static final Charset CP437 = cp437();
+  // The header of a gzip stream without a file name or modification time (RFC 1952), and the size of its trailer.
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+  private static final int GZIP_TRAILER_SIZE = 8;
+
+  private final File file;
+  private final long lastModified;
+  private final long length;
+  // The mapped archive, in little-endian order, or null for an archive that could not be read.
+  private final ByteBuffer mapped;
+  private final Map<String, Entry> entries;
+
+  // An entry of the archive. Its data is found through its local header, the first time it is needed.
+  static final class Entry
+  {
+    private final Archive archive;
+    private final boolean deflated;
+    private final int crc;
+    private final int compressedSize;
+    private final int size;
+    private final int localHeaderOffset;
+    // The position of the data in the archive, or -1 if it has not been found yet.
+    private volatile int dataOffset = -1;
+    private volatile ResourceVersion version;
+    private volatile ResourceVersion gzipVersion;
+
+    private Entry(Archive archive, boolean deflated, int crc, int compressedSize, int size, int localHeaderOffset)
+    {
+      this.archive = archive;
+      this.deflated = deflated;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    boolean isDeflated()
+    {
+      return deflated;
+    }
+
+    // The validators of the entry. Its ETag combines the version of the archive with the CRC-32 of the entry, so that
+    // it only changes when the entry has changed, or when the archive has been replaced.
+    ResourceVersion getVersion()
+    {
+      ResourceVersion current = version;
+      if (current == null)
+      {
+        current = new ResourceVersion(archive.lastModified, size, "\"" + Long.toHexString(archive.lastModified) + "-" +
+            Integer.toHexString(size) + "-" + Integer.toHexString(crc) + "\"");
+        version = current;
+      }
+      return current;
+    }
+
+    // The validators of a deflated entry that is sent as gzip.
+    ResourceVersion getGzipVersion()
+    {
+      ResourceVersion current = gzipVersion;
+      if (current == null)
+      {
+        current = new ResourceVersion(archive.lastModified, GZIP_HEADER.length + compressedSize + GZIP_TRAILER_SIZE,
+            CompressedContentFormat.GZIP.etag(getVersion().getETag()));
+        gzipVersion = current;
+      }
+      return current;
+    }
+
+    // A deflated entry as a gzip stream: a header, the deflated data from the archive, and a trailer with the CRC-32
+    // and size of the uncompressed content.
+    ByteBuffer[] gzip() throws IOException
+    {
+      ByteBuffer trailer = ByteBuffer.allocate(GZIP_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      trailer.putInt(crc).putInt(size).flip();
+      return new ByteBuffer[] {ByteBuffer.wrap(GZIP_HEADER).asReadOnlyBuffer(), data(), trailer};
+    }
+
+    // The data of the entry as it is stored in the archive: uncompressed, or raw deflated data.
+    ByteBuffer data() throws IOException
+    {
+      int offset = dataOffset;
+      if (offset < 0)
+      {
+        ByteBuffer mapped = archive.mapped;
+        if (localHeaderOffset + LOCAL_HEADER_SIZE > mapped.limit() || mapped.getInt(localHeaderOffset) != LOCAL_SIGNATURE)
+        {
+          throw new IOException("Invalid local header in [" + archive.file + "] at " + localHeaderOffset);
+        }
+        offset = localHeaderOffset + LOCAL_HEADER_SIZE + (mapped.getShort(localHeaderOffset + 26) & 0xFFFF) +
+            (mapped.getShort(localHeaderOffset + 28) & 0xFFFF);
+        if ((long) offset + compressedSize > mapped.limit()) throw new IOException("Truncated entry in [" + archive.file + "]");
+        dataOffset = offset;
+      }
+      ByteBuffer data = archive.mapped.duplicate();
+      data.position(offset).limit(offset + compressedSize);
+      return data.slice();
+    }
+
+    // The uncompressed content of the entry.
+    ByteBuffer content() throws IOException
+    {
+      if (!deflated) return data();
+      Inflater inflater = new Inflater(true);
+      try
+      {
+        inflater.setInput(data());
+        byte[] content = new byte[size];
+        int inflated = 0;
+        while (inflated < size && !inflater.finished())
+        {
+          int n = inflater.inflate(content, inflated, size - inflated);
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+          inflated += n;
+        }
+        if (inflated != size) throw new IOException("Invalid deflated entry in [" + archive.file + "]");
+        return ByteBuffer.wrap(content);
+      }
+      catch (DataFormatException e)
+      {
+        throw new IOException("Invalid deflated entry in [" + archive.file + "]: " + e.getMessage(), e);
+      }
+      finally
+      {
+        inflater.end();
+      }
+    }
+  }
+
+  private Archive(File file, BasicFileAttributes attributes, ByteBuffer mapped, Map<String, Entry> entries)
+  {
+    this.file = file;
+    this.lastModified = attributes.lastModifiedTime().toMillis();
+    this.length = attributes.size();
+    this.mapped = mapped;
+    this.entries = entries;
+  }
+
+  // Map an archive file and read its central directory. The attributes are those of the file before it was opened.
+  static Archive open(File file, BasicFileAttributes attributes) throws IOException
+  {
+    if (attributes.size() > Integer.MAX_VALUE) throw new IOException("[" + file + "] is larger than 2 GB.");
+    ByteBuffer mapped;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    Archive archive = new Archive(file, attributes, mapped, Collections.unmodifiableMap(entries));
+    archive.readCentralDirectory(entries);
+    return archive;
+  }
+
+  // An archive without entries, for a file that could not be read. It is used until the file changes.
+  static Archive unreadable(File file, BasicFileAttributes attributes)
+  {
+    return new Archive(file, attributes, null, Collections.<String, Entry>emptyMap());
+  }
+
+  // Is this archive the version of the file with these attributes?
+  boolean matches(BasicFileAttributes attributes)
+  {
+    return lastModified == attributes.lastModifiedTime().toMillis() && length == attributes.size();
+  }
+
+  // The entry with this name, or null if there is none. Directories are not entries.
+  Entry entry(String name)
+  {
+    return entries.get(name);
+  }
+
+  int size()
+  {
+    return entries.size();
+  }
+
+  private void readCentralDirectory(Map<String, Entry> entries) throws IOException
+  {
+    int end = findEnd();
+    long count = mapped.getShort(end + 10) & 0xFFFF;
+    long directoryOffset = mapped.getInt(end + 16) & ZIP64_MAGIC;
+    if (count == 0xFFFF || directoryOffset == ZIP64_MAGIC)
+    {
+      int locator = end - ZIP64_LOCATOR_SIZE;
+      if (locator >= 0 && mapped.getInt(locator) == ZIP64_LOCATOR_SIGNATURE)
+      {
+        long zip64End = mapped.getLong(locator + 8);
+        if (zip64End < 0 || zip64End + 56 > end || mapped.getInt((int) zip64End) != ZIP64_END_SIGNATURE)
+        {
+          throw new IOException("Invalid zip64 end of central directory in [" + file + "]");
+        }
+        count = mapped.getLong((int) zip64End + 32);
+        directoryOffset = mapped.getLong((int) zip64End + 48);
+      }
+    }
+    if (directoryOffset < 0 || directoryOffset > end) throw new IOException("Invalid central directory offset in [" + file + "]");
+    int position = (int) directoryOffset;
+    for (long i = 0; i < count; ++i)
+    {
+      if (position + CENTRAL_HEADER_SIZE > end || mapped.getInt(position) != CENTRAL_SIGNATURE)
+      {
+        throw new IOException("Invalid central directory in [" + file + "] at " + position);
+      }
+      int flags = mapped.getShort(position + 8) & 0xFFFF;
+      int method = mapped.getShort(position + 10) & 0xFFFF;
+      int crc = mapped.getInt(position + 16);
+      long compressedSize = mapped.getInt(position + 20) & ZIP64_MAGIC;
+      long size = mapped.getInt(position + 24) & ZIP64_MAGIC;
+      int nameLength = mapped.getShort(position + 28) & 0xFFFF;
+      int extraLength = mapped.getShort(position + 30) & 0xFFFF;
+      int commentLength = mapped.getShort(position + 32) & 0xFFFF;
+      long localHeaderOffset = mapped.getInt(position + 42) & ZIP64_MAGIC;
+      int next = position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+      if (next > end) throw new IOException("Invalid central directory in [" + file + "] at " + position);
+      // Values that do not fit in 32 bits are in the zip64 extra field, in this order.
+      if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC)
+      {
+        int extra = findExtra(position + CENTRAL_HEADER_SIZE + nameLength, extraLength, ZIP64_EXTRA);
+        if (extra >= 0)
+        {
+          if (size == ZIP64_MAGIC) { size = mapped.getLong(extra); extra += 8; }
+          if (compressedSize == ZIP64_MAGIC) { compressedSize = mapped.getLong(extra); extra += 8; }
+          if (localHeaderOffset == ZIP64_MAGIC) { localHeaderOffset = mapped.getLong(extra); }
+        }
+      }
+      String name = name(position + CENTRAL_HEADER_SIZE, nameLength, (flags & 0x800) != 0);
+      boolean encrypted = (flags & 0x1) != 0;
+      if (!encrypted && !name.endsWith("/") && (method == METHOD_STORED || method == METHOD_DEFLATED) &&
+          size <= Integer.MAX_VALUE && compressedSize <= Integer.MAX_VALUE && localHeaderOffset < end)
+      {
+        entries.put(name, new Entry(this, method == METHOD_DEFLATED, crc, (int) compressedSize, (int) size, (int) localHeaderOffset));
+      }
+      position = next;
+    }
+  }
+
+  // The position of the end of central directory record, which is followed by a comment of at most 65535 bytes.
+  private int findEnd() throws IOException
+  {
+    int last = mapped.limit() - END_SIZE;
+    for (int position = last; position >= 0 && position >= last - 0xFFFF; --position)
+    {
+      if (mapped.getInt(position) == END_SIGNATURE && position + END_SIZE + (mapped.getShort(position + 20) & 0xFFFF) == mapped.limit())
+      {
+        return position;
+      }
+    }
+    throw new IOException("[" + file + "] is not a zip archive.");
+  }
+
+  // The position of the data of an extra field with this id, or -1 if there is none.
+  private int findExtra(int start, int length, int id)
+  {
+    int position = start;
+    while (position + 4 <= start + length)
+    {
+      int fieldId = mapped.getShort(position) & 0xFFFF;
+      int fieldLength = mapped.getShort(position + 2) & 0xFFFF;
+      if (fieldId == id) return position + 4;
+      position += 4 + fieldLength;
+    }
+    return -1;
+  }
+
+  private String name(int start, int length, boolean utf8)
+  {
+    byte[] bytes = new byte[length];
+    ByteBuffer name = mapped.duplicate();
+    name.position(start);
+    name.get(bytes);
+    return new String(bytes, utf8 ? StandardCharsets.UTF_8 : CP437);
+  }
+
+  // Names without the UTF-8 flag are in code page 437, which not every JVM has. ASCII names are the same in both.
+  private static Charset cp437()
+  {
+    try
+    {
+      return Charset.forName("IBM437");
+    }
+    catch (IllegalArgumentException e)
+    {
+      return StandardCharsets.ISO_8859_1;
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.Callback;
+
+// Sends a file to the client without blocking a request thread, using Servlet asynchronous I/O.
+//
+// The request is put into asynchronous mode, and the request thread returns to the pool as soon as the file has been
+// handed over. With a Jetty response, the file is memory-mapped and passed to Jetty's asynchronous `sendContent`, which
+// writes it to the network whenever the client can receive more. Other responses get a WriteListener, which copies
+// the next part of the file each time the output stream is ready.
+// In both cases, the file is closed and the asynchronous request is completed when the file has been sent, or when
+// sending it has failed (usually because the client went away).
+
+final class AsyncFileSender implements WriteListener, Callback
+{
+
+  // The size of the parts that are copied when the output stream is ready.
+  private static final int CHUNK_SIZE = 32768;
+
+  private final AsyncContext async;
+  private final FileChannel channel;
+  private final ServletOutputStream out;
+  private final Logger logger;
+  private final String description;
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+  private final AtomicBoolean finished = new AtomicBoolean(false);
+
+  private AsyncFileSender(AsyncContext async, FileChannel channel, ServletOutputStream out, Logger logger, String description)
+  {
+    this.async = async;
+    this.channel = channel;
+    this.out = out;
+    this.logger = logger;
+    this.description = description;
+  }
+
+  // Start sending a file. The response headers must have been set. This returns before the file has been sent.
+  static void send(AsyncContext async, File file, long length, Logger logger, String description) throws IOException
+  {
+    // The file is sent for as long as it takes; a slow client does not hold a thread.
+    async.setTimeout(0L);
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try
+    {
+      ServletOutputStream out = async.getResponse().getOutputStream();
+      AsyncFileSender sender = new AsyncFileSender(async, channel, out, logger, description);
+      if (out instanceof HttpOutput) {
+        if (length <= Integer.MAX_VALUE) {
+          ((HttpOutput) out).sendContent(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), sender);
+        } else {
+          ((HttpOutput) out).sendContent(channel, sender);
+        }
+      } else {
+        out.setWriteListener(sender);
+      }
+    }
+    catch (IOException | RuntimeException e)
+    {
+      channel.close();
+      async.complete();
+      throw e;
+    }
+  }
+
+  /* Callback, for Jetty responses. */
+
+  @Override
+  public void succeeded()
+  {
+    finish();
+  }
+
+  @Override
+  public void failed(Throwable failure)
+  {
+    onError(failure);
+  }
+
+  /* WriteListener, for other responses. */
+
+  @Override
+  public void onWritePossible() throws IOException
+  {
+    while (out.isReady())
+    {
+      int count = channel.read(ByteBuffer.wrap(chunk));
+      if (count < 0)
+      {
+        finish();
+        return;
+      }
+      out.write(chunk, 0, count);
+    }
+  }
+
+  @Override
+  public void onError(Throwable failure)
+  {
+    logger.log(Level.INFO, description + " Sending the file asynchronously failed: " + failure);
+    finish();
+  }
+
+  // Close the file and complete the request, only once.
+  private void finish()
+  {
+    if (!finished.compareAndSet(false, true)) return;
+    try
+    {
+      channel.close();
+    }
+    catch (IOException e)
+    {
+      // There is nothing left to do with the file.
+    }
+    async.complete();
+  }
+
+}
@@ -0,0 +1,367 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// An in-memory index of the regular files under the base path, with their sizes and modification times.
+//
+// With the index, a request does not need to ask the file system whether a file exists and how large it is, which
+// matters on network file systems, where every stat is a round trip. A background thread walks the base path once,
+// and then keeps the index current with WatchService events for every directory: created and modified files are
+// read again, deleted files and directories are removed. The thread knows the files and subdirectories of every
+// indexed directory, so that deleting a directory only removes its own files, and deleting a file that is not in the
+// index (such as a file beyond `maxEntries`) costs nothing. When the WatchService has lost events for a directory
+// (overflow), the thread reads that directory again, and removes the files that it did not see.
+//
+// The index holds at most `maxEntries` files. If there are more, or if a directory cannot be watched, the index is
+// incomplete: it still knows the files that it has, but a file that it does not know may exist. The filter then asks
+// the file system for files that are not in the index. The index is only trusted at all after the first walk.
+// Changes reach the index when the WatchService reports them, which is usually within milliseconds; until then,
+// requests see the previous size and modification time.
+
+final class BasePathIndex implements Runnable
+{
+
+  private final Path base;
+  // The base path as a string, ending with a separator. Keys in the index are relative to this.
+  private final String basePrefix;
+  private final int maxEntries;
+  private final Logger logger;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+  // The keys of the indexed files and directories in each indexed directory, by the key of the directory; the base
+  // path has the key "". Only used by the thread of the index.
+  private final Map<String, Set<String>> children = new HashMap<>();
+  private WatchService watchService;
+  // Set after the first walk; the index is not used before that.
+  private volatile boolean ready = false;
+  // False if files or directories may be missing from the index.
+  private volatile boolean complete = true;
+  private volatile boolean stopped = false;
+  private Thread thread;
+
+  // The attributes of an indexed file. Only the size and modification time are kept.
+  private static final class Entry implements BasicFileAttributes
+  {
+    private final long size;
+    private final long lastModified;
+
+    private Entry(BasicFileAttributes attributes)
+    {
+      this.size = attributes.size();
+      this.lastModified = attributes.lastModifiedTime().toMillis();
+    }
+
+    @Override public FileTime lastModifiedTime() { return FileTime.fromMillis(lastModified); }
+    @Override public FileTime lastAccessTime() { return FileTime.fromMillis(lastModified); }
+    @Override public FileTime creationTime() { return FileTime.fromMillis(lastModified); }
+    @Override public boolean isRegularFile() { return true; }
+    @Override public boolean isDirectory() { return false; }
+    @Override public boolean isSymbolicLink() { return false; }
+    @Override public boolean isOther() { return false; }
+    @Override public long size() { return size; }
+    @Override public Object fileKey() { return null; }
+  }
+
+  BasePathIndex(Path base, int maxEntries, Logger logger)
+  {
+    this.base = base.toAbsolutePath().normalize();
+    this.basePrefix = this.base.toString().endsWith("/") ? this.base.toString() : this.base.toString() + "/";
+    this.maxEntries = maxEntries;
+    this.logger = logger;
+  }
+
+  void start()
+  {
+    thread = new Thread(this, "JBResourceServletFilter base path index");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop()
+  {
+    stopped = true;
+    WatchService service = watchService;
+    if (service != null)
+    {
+      try
+      {
+        service.close();
+      }
+      catch (IOException e)
+      {
+        // Nothing to be done.
+      }
+    }
+    if (thread != null) thread.interrupt();
+  }
+
+  // Does the index know whether this file exists? If so, `get` tells.
+  boolean knows(String path)
+  {
+    return ready && complete && path.startsWith(basePrefix) && !path.contains("/.") && !path.contains("//");
+  }
+
+  // The attributes of an indexed regular file, or null if the file is not in the index.
+  BasicFileAttributes get(String path)
+  {
+    if (!ready || !path.startsWith(basePrefix)) return null;
+    return entries.get(path.substring(basePrefix.length()));
+  }
+
+  @Override
+  public void run()
+  {
+    try
+    {
+      watchService = base.getFileSystem().newWatchService();
+    }
+    catch (IOException | UnsupportedOperationException e)
+    {
+      logger.warning("JBResourceServletFilter: Cannot watch [" + base + "] for changes (" + e + "). The base path index is not used.");
+      return;
+    }
+    if (stopped) return;
+    long start = System.currentTimeMillis();
+    walk(base);
+    ready = true;
+    logger.warning("JBResourceServletFilter: Indexed " + entries.size() + " files under [" + base + "] in " +
+        (System.currentTimeMillis() - start) + " ms" + (complete ? "." : ", but the index is incomplete."));
+    try
+    {
+      while (!stopped)
+      {
+        WatchKey key = watchService.take();
+        Path directory = directories.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            overflow = true;
+          } else if (directory != null) {
+            changed(directory.resolve((Path) event.context()), event.kind());
+          }
+        }
+        if (!key.reset()) directories.remove(key);
+        if (overflow && directory != null) rescan(directory);
+      }
+    }
+    catch (InterruptedException | ClosedWatchServiceException e)
+    {
+      // Stopped.
+    }
+    catch (RuntimeException e)
+    {
+      // Without events, the index would become wrong, so stop using it.
+      ready = false;
+      logger.log(Level.SEVERE, "JBResourceServletFilter: The base path index failed, and is not used anymore.", e);
+    }
+  }
+
+  // Handle an event for a file or directory.
+  private void changed(Path path, WatchEvent.Kind<?> kind)
+  {
+    String key = relative(path);
+    if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+    {
+      remove(key);
+      return;
+    }
+    BasicFileAttributes attributes = attributes(path);
+    if (attributes == null) {
+      remove(key);
+    } else if (attributes.isDirectory()) {
+      // A new directory may already have files, before it is registered.
+      if (kind == StandardWatchEventKinds.ENTRY_CREATE) walk(path);
+    } else if (attributes.isRegularFile()) {
+      put(key, attributes);
+    }
+  }
+
+  // Read a directory again, after its events have been lost: add its files and new subdirectories, and remove the
+  // files and subdirectories that are gone. Subdirectories that were indexed already have their own events.
+  private void rescan(Path directory)
+  {
+    logger.warning("JBResourceServletFilter: Changes in [" + directory + "] were lost. Indexing the directory again.");
+    String key = relative(directory);
+    Set<String> seen = new HashSet<>();
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory))
+    {
+      for (Path path : paths)
+      {
+        String child = relative(path);
+        BasicFileAttributes attributes = attributes(path);
+        if (attributes == null) continue;
+        seen.add(child);
+        if (attributes.isDirectory()) {
+          if (!children.containsKey(child)) walk(path);
+        } else if (attributes.isRegularFile()) {
+          put(child, attributes);
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      // The directory itself is gone, or cannot be read anymore.
+      remove(key);
+      if (attributes(directory) != null) incomplete("Cannot read [" + directory + "]: " + e);
+      return;
+    }
+    Set<String> known = children.get(key);
+    if (known == null) return;
+    for (String child : new ArrayList<>(known))
+    {
+      if (!seen.contains(child)) remove(child);
+    }
+  }
+
+  // Add the files under a directory to the index, and watch its directories.
+  private void walk(Path start)
+  {
+    try
+    {
+      Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>()
+      {
+        @Override
+        public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+        {
+          if (stopped) return FileVisitResult.TERMINATE;
+          String key = relative(directory);
+          if (!children.containsKey(key))
+          {
+            children.put(key, new HashSet<>());
+            if (!key.isEmpty()) addChild(key);
+          }
+          watch(directory);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+        {
+          if (attributes.isRegularFile()) put(relative(file), attributes);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e)
+        {
+          // A link cycle is not a problem; the files are in the index already.
+          if (!(e instanceof FileSystemLoopException)) incomplete("Cannot read [" + file + "]: " + e);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+    catch (IOException e)
+    {
+      incomplete("Cannot index [" + start + "]: " + e);
+    }
+  }
+
+  private void watch(Path directory)
+  {
+    try
+    {
+      WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      directories.put(key, directory);
+    }
+    catch (IOException e)
+    {
+      // E.g., the limit on the number of watches has been reached.
+      incomplete("Cannot watch [" + directory + "]: " + e);
+    }
+  }
+
+  private void put(String key, BasicFileAttributes attributes)
+  {
+    if (!entries.containsKey(key) && entries.size() >= maxEntries)
+    {
+      incomplete("There are more than " + maxEntries + " files under [" + base + "].");
+      return;
+    }
+    entries.put(key, new Entry(attributes));
+    addChild(key);
+  }
+
+  // Remove a file, or a directory with everything under it. Keys that are not in the index are ignored.
+  private void remove(String key)
+  {
+    if (entries.remove(key) == null && !children.containsKey(key)) return;
+    removeDirectory(key);
+    Set<String> siblings = children.get(parent(key));
+    if (siblings != null) siblings.remove(key);
+  }
+
+  // Remove the files and subdirectories of a directory, if it is an indexed directory.
+  private void removeDirectory(String key)
+  {
+    Set<String> removed = children.remove(key);
+    if (removed == null) return;
+    for (String child : removed)
+    {
+      if (entries.remove(child) == null) removeDirectory(child);
+    }
+  }
+
+  private void addChild(String key)
+  {
+    children.computeIfAbsent(parent(key), parent -> new HashSet<>()).add(key);
+  }
+
+  // The key of the directory that contains the file or directory with a key.
+  private static String parent(String key)
+  {
+    int slash = key.lastIndexOf('/');
+    return slash < 0 ? "" : key.substring(0, slash);
+  }
+
+  private void incomplete(String reason)
+  {
+    if (complete)
+    {
+      complete = false;
+      logger.warning("JBResourceServletFilter: The base path index is incomplete. " + reason);
+    }
+  }
+
+  private String relative(Path path)
+  {
+    return base.relativize(path).toString();
+  }
+
+  private static BasicFileAttributes attributes(Path path)
+  {
+    try
+    {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,122 @@
+package nl.benjamins.exist.servlet;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+// A concurrent cache with a bound on the total weight of its values.
+//
+// Lookups and insertions go straight to a ConcurrentHashMap and never wait for each other.
+// When the total weight exceeds the maximum, one thread evicts entries using the 'second chance' (clock) algorithm:
+// entries that have been used since the last eviction round survive once, the others are removed. This approximates
+// LRU without the bookkeeping on every lookup that a real LRU list would need.
+// Threads that find another thread evicting just go on; the cache may briefly be a little over its maximum weight.
+
+final class BoundedCache<K, V>
+{
+
+  private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+  private final long maxWeight;
+  private final ToLongFunction<V> weigher;
+  private final AtomicLong weight = new AtomicLong(0L);
+  private final ReentrantLock evictionLock = new ReentrantLock();
+
+  private static final class Entry<V>
+  {
+    private final V value;
+    private final long weight;
+    private volatile boolean referenced;
+
+    private Entry(V value, long weight)
+    {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  BoundedCache(long maxWeight, ToLongFunction<V> weigher)
+  {
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+  }
+
+  // A cache where every value has weight 1, i.e., the maximum weight is the maximum number of entries.
+  BoundedCache(long maxEntries)
+  {
+    this(maxEntries, value -> 1L);
+  }
+
+  V get(K key)
+  {
+    Entry<V> entry = map.get(key);
+    if (entry == null) return null;
+    if (!entry.referenced) entry.referenced = true;
+    return entry.value;
+  }
+
+  void put(K key, V value)
+  {
+    long valueWeight = weigher.applyAsLong(value);
+    if (valueWeight > maxWeight) return;
+    Entry<V> previous = map.put(key, new Entry<V>(value, valueWeight));
+    long total = weight.addAndGet(previous == null ? valueWeight : valueWeight - previous.weight);
+    if (total > maxWeight) evict();
+  }
+
+  void remove(K key)
+  {
+    Entry<V> entry = map.get(key);
+    if (entry != null && map.remove(key, entry)) weight.addAndGet(-entry.weight);
+  }
+
+  void clear()
+  {
+    for (Map.Entry<K, Entry<V>> entry : map.entrySet())
+    {
+      if (map.remove(entry.getKey(), entry.getValue())) weight.addAndGet(-entry.getValue().weight);
+    }
+  }
+
+  int size()
+  {
+    return map.size();
+  }
+
+  long weight()
+  {
+    return weight.get();
+  }
+
+  // Remove entries until the weight is at most 7/8 of the maximum, so that eviction does not run on every insertion.
+  private void evict()
+  {
+    if (!evictionLock.tryLock()) return;
+    try
+    {
+      long target = maxWeight - maxWeight / 8;
+      // Two rounds are always enough, because the first round clears all 'referenced' flags.
+      for (int round = 0; round < 2 && weight.get() > target; ++round)
+      {
+        Iterator<Map.Entry<K, Entry<V>>> entries = map.entrySet().iterator();
+        while (entries.hasNext() && weight.get() > target)
+        {
+          Map.Entry<K, Entry<V>> entry = entries.next();
+          Entry<V> value = entry.getValue();
+          if (value.referenced) {
+            value.referenced = false;
+          } else if (map.remove(entry.getKey(), value)) {
+            weight.addAndGet(-value.weight);
+          }
+        }
+      }
+    }
+    finally
+    {
+      evictionLock.unlock();
+    }
+  }
+
+}
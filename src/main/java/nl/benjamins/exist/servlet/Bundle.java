@@ -0,0 +1,145 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.eclipse.jetty.http.HttpContent;
+import org.eclipse.jetty.util.BufferUtil;
+
+// A bundle from the mappings file: one URL path whose content is the concatenation of a list of files, in order.
+//
+// A bundle is part of a mappings snapshot, and is immutable. Its content is built by `build`, and kept by the filter
+// until one of the files has changed (see `Content.isCurrent`). A file that does not end with a newline is followed by
+// one, so that a line comment at the end of a JavaScript or CSS file does not swallow the start of the next file.
+//
+// The Last-Modified of a bundle is the latest modification time of its files. Its ETag combines the modification
+// times, sizes and paths of all files, so that it changes when any file changes, or when the list of files changes.
+
+final class Bundle
+{
+
+  private final String url;
+  private final List<File> files;
+  private final String mimeType;
+  // The caching policy of the bundle, or null.
+  private final CachePolicy cachePolicy;
+
+  Bundle(String url, List<File> files, String mimeType, CachePolicy cachePolicy)
+  {
+    this.url = url;
+    this.files = Collections.unmodifiableList(files);
+    this.mimeType = mimeType;
+    this.cachePolicy = cachePolicy;
+  }
+
+  String getUrl()
+  {
+    return url;
+  }
+
+  List<File> getFiles()
+  {
+    return files;
+  }
+
+  CachePolicy getCachePolicy()
+  {
+    return cachePolicy;
+  }
+
+  // Read the files and concatenate them. Returns null if one of the files is not a readable file.
+  // The attributes of the files are read before their content; if a file changes while it is read, the content is
+  // built again for the next request.
+  Content build(Function<File, BasicFileAttributes> readAttributes) throws IOException
+  {
+    int n = files.size();
+    long[] lastModified = new long[n];
+    long[] lengths = new long[n];
+    byte[][] parts = new byte[n][];
+    long length = 0L;
+    long latest = 0L;
+    long hash = 1125899906842597L;
+    for (int i = 0; i < n; ++i)
+    {
+      File file = files.get(i);
+      BasicFileAttributes attributes = readAttributes.apply(file);
+      if (attributes == null) return null;
+      lastModified[i] = attributes.lastModifiedTime().toMillis();
+      lengths[i] = attributes.size();
+      parts[i] = Files.readAllBytes(file.toPath());
+      length += parts[i].length + (needsNewline(parts[i]) ? 1 : 0);
+      latest = Math.max(latest, lastModified[i]);
+      hash = 31 * (31 * (31 * hash + file.getPath().hashCode()) + lastModified[i]) + lengths[i];
+    }
+    if (length > Integer.MAX_VALUE) throw new IOException("The bundle " + url + " is larger than 2 GB.");
+    ByteBuffer buffer = BufferUtil.allocateDirect((int) length);
+    BufferUtil.clearToFill(buffer);
+    for (byte[] part : parts)
+    {
+      buffer.put(part);
+      if (needsNewline(part)) buffer.put((byte) '\n');
+    }
+    BufferUtil.flipToFlush(buffer, 0);
+    String etag = "\"" + Long.toHexString(latest) + "-" + Long.toHexString(length) + "-" + Long.toHexString(hash) + "\"";
+    ResourceVersion version = new ResourceVersion(latest, length, etag);
+    return new Content(this, lastModified, lengths, version, ContentCache.content(mimeType, version, buffer));
+  }
+
+  private static boolean needsNewline(byte[] part)
+  {
+    return part.length > 0 && part[part.length - 1] != '\n';
+  }
+
+  // The content of a bundle, as built from certain versions of its files. Instances are immutable and shared between
+  // requests.
+  static final class Content
+  {
+    private final Bundle bundle;
+    private final long[] lastModified;
+    private final long[] lengths;
+    private final ResourceVersion version;
+    private final HttpContent content;
+
+    private Content(Bundle bundle, long[] lastModified, long[] lengths, ResourceVersion version, HttpContent content)
+    {
+      this.bundle = bundle;
+      this.lastModified = lastModified;
+      this.lengths = lengths;
+      this.version = version;
+      this.content = content;
+    }
+
+    // Was this content built for this bundle, from the current versions of its files?
+    boolean isCurrent(Bundle bundle, Function<File, BasicFileAttributes> readAttributes)
+    {
+      if (this.bundle != bundle) return false;
+      List<File> files = bundle.getFiles();
+      for (int i = 0; i < files.size(); ++i)
+      {
+        BasicFileAttributes attributes = readAttributes.apply(files.get(i));
+        if (attributes == null || attributes.lastModifiedTime().toMillis() != lastModified[i] || attributes.size() != lengths[i])
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    ResourceVersion getVersion()
+    {
+      return version;
+    }
+
+    HttpContent getHttpContent()
+    {
+      return content;
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+package nl.benjamins.exist.servlet;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.DateGenerator;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.PreEncodedHttpField;
+import org.eclipse.jetty.server.Response;
+
+// The caching policy of a mapping, from the `max-age`, `immutable` and `no-store` attributes of its `<map>` element.
+//
+// The Cache-Control header is encoded once, when the mappings file is read. The Expires header depends on the time
+// of the request, so it is formatted at most once per second, and shared by all requests in that second.
+// - `max-age="N"` gives `Cache-Control: public, max-age=N` and an Expires header N seconds after the request.
+// - `immutable="true"` adds `immutable`, which tells browsers not to revalidate at all, even on reload. This is for
+//   versioned (fingerprinted) resources, whose content never changes. Without `max-age`, the max-age is one year.
+// - `no-store="true"` gives `Cache-Control: no-store` and an Expires header in the past.
+// Mappings without these attributes do not have a caching policy, and their responses only have validators.
+
+final class CachePolicy
+{
+
+  // The max-age of immutable resources without an explicit max-age: one year, the most that HTTP/1.1 recommends.
+  static final long IMMUTABLE_MAX_AGE = 31536000L;
+
+  // An Expires header in the past.
+  private static final HttpField EXPIRED = new PreEncodedHttpField(HttpHeader.EXPIRES, DateGenerator.formatDate(0L));
+
+  private final HttpField cacheControl;
+  // The max-age in seconds, or -1 for no-store.
+  private final long maxAge;
+  // The most recent Expires header, and the second for which it was made.
+  private volatile Expires expires = new Expires(Long.MIN_VALUE, null);
+
+  private static final class Expires
+  {
+    private final long second;
+    private final HttpField field;
+
+    private Expires(long second, HttpField field)
+    {
+      this.second = second;
+      this.field = field;
+    }
+  }
+
+  private CachePolicy(String cacheControl, long maxAge)
+  {
+    this.cacheControl = new PreEncodedHttpField(HttpHeader.CACHE_CONTROL, cacheControl);
+    this.maxAge = maxAge;
+  }
+
+  // The caching policy for the attribute values of a mapping, or null if none of them is given.
+  // Empty strings mean that an attribute is missing. Throws an IllegalArgumentException for invalid values.
+  static CachePolicy of(String maxAgeValue, String immutableValue, String noStoreValue, String where)
+  {
+    boolean noStore = booleanAttribute(noStoreValue, "no-store", where);
+    boolean immutable = booleanAttribute(immutableValue, "immutable", where);
+    long maxAge = -1L;
+    if (!maxAgeValue.isEmpty())
+    {
+      try
+      {
+        maxAge = Long.parseLong(maxAgeValue.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        maxAge = -1L;
+      }
+      if (maxAge < 0 || maxAge > Integer.MAX_VALUE) throw new IllegalArgumentException("The max-age of " + where + " must be a number of seconds, not [" + maxAgeValue + "].");
+    }
+    if (noStore)
+    {
+      if (immutable || maxAge >= 0) throw new IllegalArgumentException("The no-store of " + where + " cannot be combined with max-age or immutable.");
+      return new CachePolicy("no-store", -1L);
+    }
+    if (immutable)
+    {
+      if (maxAge < 0) maxAge = IMMUTABLE_MAX_AGE;
+      return new CachePolicy("public, max-age=" + maxAge + ", immutable", maxAge);
+    }
+    if (maxAge >= 0) return new CachePolicy("public, max-age=" + maxAge, maxAge);
+    return null;
+  }
+
+  private static boolean booleanAttribute(String value, String name, String where)
+  {
+    if (value.isEmpty() || value.equals("false")) return false;
+    if (value.equals("true")) return true;
+    throw new IllegalArgumentException("The " + name + " of " + where + " must be true or false, not [" + value + "].");
+  }
+
+  // Put the Cache-Control and Expires headers into a response.
+  void apply(HttpServletResponse response)
+  {
+    HttpField expiresField = maxAge < 0 ? EXPIRED : expires(System.currentTimeMillis());
+    if (response instanceof Response) {
+      ((Response) response).getHttpFields().put(cacheControl);
+      ((Response) response).getHttpFields().put(expiresField);
+    } else {
+      response.setHeader(cacheControl.getName(), cacheControl.getValue());
+      response.setHeader(expiresField.getName(), expiresField.getValue());
+    }
+  }
+
+  private HttpField expires(long now)
+  {
+    long second = now / 1000;
+    Expires current = expires;
+    if (current.second != second)
+    {
+      current = new Expires(second, new PreEncodedHttpField(HttpHeader.EXPIRES, DateGenerator.formatDate((second + maxAge) * 1000)));
+      expires = current;
+    }
+    return current.field;
+  }
+
+}
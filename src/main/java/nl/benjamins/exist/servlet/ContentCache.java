@@ -0,0 +1,287 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jetty.http.CompressedContentFormat;
+import org.eclipse.jetty.http.HttpContent;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.http.PreEncodedHttpField;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.resource.PathResource;
+import org.eclipse.jetty.util.resource.Resource;
+
+// A cache for the content of small, frequently requested resource files (icons, CSS, fonts, ...).
+//
+// The content of a file is kept in a direct ByteBuffer, which Jetty can write to the network without copying it first.
+// The response headers (Content-Type, Content-Length, Last-Modified, ETag) are encoded once, when the file is read.
+// A cached file is only used while its modification time and size are the same as when it was read.
+// The cache is bounded by the total number of bytes, and evicts files that have not been used recently.
+//
+// A content cache can also hold gzip-compressed content of files (see `putCompressed`), for files that do not have
+// a precompressed variant. The file is then compressed only once per version, instead of on every request.
+
+final class ContentCache
+{
+
+  private final BoundedCache<File, CachedContent> cache;
+  private final long maxFileSize;
+
+  ContentCache(long maxBytes, long maxFileSize)
+  {
+    this.cache = new BoundedCache<File, CachedContent>(maxBytes, content -> content.buffer.remaining());
+    this.maxFileSize = maxFileSize;
+  }
+
+  // Can this version of a file be cached?
+  boolean accepts(ResourceVersion version)
+  {
+    return version.getLength() <= maxFileSize;
+  }
+
+  // Get the content of a file from the cache, or null if it is not there or the file has changed.
+  HttpContent get(File file, ResourceVersion version)
+  {
+    CachedContent content = cache.get(file);
+    if (content != null && content.source.isSameAs(version)) {
+      return content;
+    }
+    return null;
+  }
+
+  // Read a file and put its content into the cache.
+  HttpContent put(File file, ResourceVersion version, String mimeType) throws IOException
+  {
+    ByteBuffer buffer = BufferUtil.allocateDirect((int) version.getLength());
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      BufferUtil.clearToFill(buffer);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+      BufferUtil.flipToFlush(buffer, 0);
+    }
+    CachedContent content = new CachedContent(new PathResource(file), mimeType, version, buffer);
+    cache.put(file, content);
+    return content;
+  }
+
+  // Compress a file with gzip and put the compressed content into the cache.
+  // The version is the version of the compressed variant, with the validators of the file and a gzip ETag.
+  HttpContent putCompressed(File file, ResourceVersion version, String mimeType) throws IOException
+  {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.max(32, version.getLength() / 4));
+    try (OutputStream out = new GZIPOutputStream(compressed))
+    {
+      Files.copy(file.toPath(), out);
+    }
+    ByteBuffer buffer = BufferUtil.allocateDirect(compressed.size());
+    BufferUtil.clearToFill(buffer);
+    buffer.put(compressed.toByteArray());
+    BufferUtil.flipToFlush(buffer, 0);
+    CachedContent content = new CachedContent(new PathResource(file), mimeType, version, buffer);
+    cache.put(file, content);
+    return content;
+  }
+
+  // Content with precomputed header fields that is not from a single file, such as a bundle. It is not cached here.
+  static HttpContent content(String mimeType, ResourceVersion version, ByteBuffer buffer)
+  {
+    return new CachedContent(null, mimeType, version, buffer);
+  }
+
+  int size()
+  {
+    return cache.size();
+  }
+
+  long bytes()
+  {
+    return cache.weight();
+  }
+
+
+  // The content of a file with precomputed header fields. Instances are immutable and shared between requests.
+  private static final class CachedContent implements HttpContent
+  {
+    // The file, or null if the content is not from a single file.
+    private final Resource resource;
+    private final String contentType;
+    // The version of the file that the content was made from.
+    private final ResourceVersion source;
+    private final ByteBuffer buffer;
+    private final HttpField contentTypeField;
+    private final HttpField contentEncodingField;
+    private final HttpField contentLengthField;
+    private final HttpField lastModifiedField;
+    private final HttpField etagField;
+
+    private CachedContent(Resource resource, String mimeType, ResourceVersion source, ByteBuffer content)
+    {
+      this.resource = resource;
+      this.contentType = mimeType;
+      this.source = source;
+      this.buffer = content.asReadOnlyBuffer();
+      this.contentTypeField = mimeType == null ? null : new PreEncodedHttpField(HttpHeader.CONTENT_TYPE, mimeType);
+      this.contentEncodingField = source.getContentEncoding() == null ? null : source.getContentEncoding().getContentEncoding();
+      this.contentLengthField = new PreEncodedHttpField(HttpHeader.CONTENT_LENGTH, Long.toString(buffer.remaining()));
+      this.lastModifiedField = new PreEncodedHttpField(HttpHeader.LAST_MODIFIED, source.getLastModifiedValue());
+      this.etagField = new PreEncodedHttpField(HttpHeader.ETAG, source.getETag());
+    }
+
+    @Override
+    public HttpField getContentType()
+    {
+      return contentTypeField;
+    }
+
+    @Override
+    public String getContentTypeValue()
+    {
+      return contentType;
+    }
+
+    @Override
+    public String getCharacterEncoding()
+    {
+      return contentType == null ? null : MimeTypes.getCharsetFromContentType(contentType);
+    }
+
+    @Override
+    public MimeTypes.Type getMimeType()
+    {
+      return contentType == null ? null : MimeTypes.CACHE.get(MimeTypes.getContentTypeWithoutCharset(contentType));
+    }
+
+    @Override
+    public HttpField getContentEncoding()
+    {
+      return contentEncodingField;
+    }
+
+    @Override
+    public String getContentEncodingValue()
+    {
+      return contentEncodingField == null ? null : contentEncodingField.getValue();
+    }
+
+    @Override
+    public HttpField getContentLength()
+    {
+      return contentLengthField;
+    }
+
+    @Override
+    public long getContentLengthValue()
+    {
+      return buffer.remaining();
+    }
+
+    @Override
+    public HttpField getLastModified()
+    {
+      return lastModifiedField;
+    }
+
+    @Override
+    public String getLastModifiedValue()
+    {
+      return lastModifiedField.getValue();
+    }
+
+    @Override
+    public HttpField getETag()
+    {
+      return etagField;
+    }
+
+    @Override
+    public String getETagValue()
+    {
+      return etagField.getValue();
+    }
+
+    // Every request gets its own view on the buffer, because writing it changes the position.
+    @Override
+    public ByteBuffer getIndirectBuffer()
+    {
+      return buffer.duplicate();
+    }
+
+    @Override
+    public ByteBuffer getDirectBuffer()
+    {
+      return buffer.duplicate();
+    }
+
+    @Override
+    public Resource getResource()
+    {
+      return resource;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+      return new BufferInputStream(buffer.duplicate());
+    }
+
+    @Override
+    public ReadableByteChannel getReadableByteChannel() throws IOException
+    {
+      return Channels.newChannel(getInputStream());
+    }
+
+    // The content stays in the cache; there is nothing to release.
+    @Override
+    public void release()
+    {
+    }
+
+    @Override
+    public Map<CompressedContentFormat, ? extends HttpContent> getPrecompressedContents()
+    {
+      return Collections.emptyMap();
+    }
+  }
+
+  // An InputStream over a ByteBuffer.
+  private static final class BufferInputStream extends InputStream
+  {
+    private final ByteBuffer buffer;
+
+    private BufferInputStream(ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+    {
+      if (length == 0) return 0;
+      if (!buffer.hasRemaining()) return -1;
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+  }
+
+}
@@ -0,0 +1,423 @@
+package nl.benjamins.exist.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+// Counters and timers for what the JBResourceServletFilter does, exposed through JMX and the status page.
+//
+// Requests only increment LongAdders and AtomicLongArrays, which do not make concurrent requests wait for each other.
+// Latencies go into histograms with buckets for powers of two microseconds, so recording a latency is a single
+// increment, and percentiles are accurate to within a factor of two.
+// The counters per mapping belong to a mappings snapshot, and start again at 0 when the mappings file has been read.
+
+final class FilterStatistics implements FilterStatisticsMXBean
+{
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder ignored = new LongAdder();
+  private final LongAdder passed = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder notModified = new LongAdder();
+  private final LongAdder partial = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder mappingsReloads = new LongAdder();
+  private final LongAdder mappingsReloadFailures = new LongAdder();
+  private volatile long lastMappingsReloadMillis = 0L;
+  private final HitRatio resolutionCache = new HitRatio();
+  private final HitRatio contentCache = new HitRatio();
+  private final HitRatio compressionCache = new HitRatio();
+  private final Histogram resolutionTime = new Histogram();
+  private final Histogram transferTime = new Histogram();
+  private volatile MappingCounters mappingCounters = new MappingCounters(ResourceMappings.NONE);
+
+  // The caches whose sizes are reported. Each may be null.
+  private final BoundedCache<?, ?> resolutions;
+  private final ContentCache contents;
+  private final ContentCache compressions;
+
+  FilterStatistics(BoundedCache<?, ?> resolutions, ContentCache contents, ContentCache compressions)
+  {
+    this.resolutions = resolutions;
+    this.contents = contents;
+    this.compressions = compressions;
+  }
+
+  /* Recording, by the filter. */
+
+  // Count a request with one of the outcomes of JBResourceServletFilter.
+  void request(String outcome)
+  {
+    requests.increment();
+    switch (outcome)
+    {
+    case JBResourceServletFilter.OUTCOME_IGNORED:
+      ignored.increment();
+      break;
+    case JBResourceServletFilter.OUTCOME_PASSED:
+      passed.increment();
+      break;
+    case JBResourceServletFilter.OUTCOME_SENT:
+      sent.increment();
+      break;
+    case JBResourceServletFilter.OUTCOME_NOT_MODIFIED:
+      notModified.increment();
+      break;
+    case JBResourceServletFilter.OUTCOME_PARTIAL:
+      partial.increment();
+      break;
+    case JBResourceServletFilter.OUTCOME_FAILED:
+      failed.increment();
+      break;
+    default:
+      // Status requests are not counted separately.
+    }
+  }
+
+  void bytesSent(long bytes)
+  {
+    bytesSent.add(bytes);
+  }
+
+  void resolutionTime(long nanos)
+  {
+    resolutionTime.record(nanos);
+  }
+
+  void transferTime(long nanos)
+  {
+    transferTime.record(nanos);
+  }
+
+  void resolutionCache(boolean hit)
+  {
+    resolutionCache.count(hit);
+  }
+
+  void contentCache(boolean hit)
+  {
+    contentCache.count(hit);
+  }
+
+  void compressionCache(boolean hit)
+  {
+    compressionCache.count(hit);
+  }
+
+  // A request was served from a file of a mapping (hit), or passed on because the file did not exist (miss).
+  void mapping(ResourceMappings snapshot, int mapping, boolean hit)
+  {
+    MappingCounters counters = mappingCounters;
+    if (counters.snapshot != snapshot || mapping < 0 || mapping >= counters.hits.length()) return;
+    (hit ? counters.hits : counters.misses).incrementAndGet(mapping);
+  }
+
+  // The mappings file has been read, successfully or not.
+  void mappingsReloaded(ResourceMappings snapshot, long millis)
+  {
+    mappingsReloads.increment();
+    lastMappingsReloadMillis = millis;
+    if (snapshot == null) {
+      mappingsReloadFailures.increment();
+    } else {
+      mappingCounters = new MappingCounters(snapshot);
+    }
+  }
+
+  /* FilterStatisticsMXBean */
+
+  @Override
+  public long getRequests()
+  {
+    return requests.sum();
+  }
+
+  @Override
+  public long getIgnored()
+  {
+    return ignored.sum();
+  }
+
+  @Override
+  public long getPassed()
+  {
+    return passed.sum();
+  }
+
+  @Override
+  public long getSent()
+  {
+    return sent.sum();
+  }
+
+  @Override
+  public long getNotModified()
+  {
+    return notModified.sum();
+  }
+
+  @Override
+  public long getPartial()
+  {
+    return partial.sum();
+  }
+
+  @Override
+  public long getFailed()
+  {
+    return failed.sum();
+  }
+
+  @Override
+  public long getBytesSent()
+  {
+    return bytesSent.sum();
+  }
+
+  @Override
+  public long getMappingsReloads()
+  {
+    return mappingsReloads.sum();
+  }
+
+  @Override
+  public long getMappingsReloadFailures()
+  {
+    return mappingsReloadFailures.sum();
+  }
+
+  @Override
+  public long getLastMappingsReloadMillis()
+  {
+    return lastMappingsReloadMillis;
+  }
+
+  @Override
+  public double getResolutionCacheHitRatio()
+  {
+    return resolutionCache.ratio();
+  }
+
+  @Override
+  public double getContentCacheHitRatio()
+  {
+    return contentCache.ratio();
+  }
+
+  @Override
+  public double getCompressionCacheHitRatio()
+  {
+    return compressionCache.ratio();
+  }
+
+  @Override
+  public long getResolutionCacheEntries()
+  {
+    return resolutions == null ? 0L : resolutions.size();
+  }
+
+  @Override
+  public long getContentCacheBytes()
+  {
+    return contents == null ? 0L : contents.bytes();
+  }
+
+  @Override
+  public long getCompressionCacheBytes()
+  {
+    return compressions == null ? 0L : compressions.bytes();
+  }
+
+  @Override
+  public LatencyStatistics getResolutionTime()
+  {
+    return resolutionTime.statistics();
+  }
+
+  @Override
+  public LatencyStatistics getTransferTime()
+  {
+    return transferTime.statistics();
+  }
+
+  @Override
+  public List<MappingStatistics> getMappings()
+  {
+    MappingCounters counters = mappingCounters;
+    List<Pair<Pattern, String>> mappings = counters.snapshot.getMappings();
+    if (mappings == null) return Collections.emptyList();
+    List<MappingStatistics> statistics = new ArrayList<MappingStatistics>(mappings.size());
+    for (int i = 0; i < mappings.size(); ++i)
+    {
+      statistics.add(new MappingStatistics(i + 1, mappings.get(i).getLeft().pattern(), mappings.get(i).getRight(),
+          counters.hits.get(i), counters.misses.get(i)));
+    }
+    return statistics;
+  }
+
+  /* The status page. */
+
+  // All statistics as a JSON object.
+  String toJson()
+  {
+    StringBuilder json = new StringBuilder(1024);
+    json.append("{\n");
+    field(json, "requests", getRequests());
+    field(json, "ignored", getIgnored());
+    field(json, "passed", getPassed());
+    field(json, "sent", getSent());
+    field(json, "notModified", getNotModified());
+    field(json, "partial", getPartial());
+    field(json, "failed", getFailed());
+    field(json, "bytesSent", getBytesSent());
+    field(json, "mappingsReloads", getMappingsReloads());
+    field(json, "mappingsReloadFailures", getMappingsReloadFailures());
+    field(json, "lastMappingsReloadMillis", getLastMappingsReloadMillis());
+    field(json, "resolutionCacheHitRatio", getResolutionCacheHitRatio());
+    field(json, "contentCacheHitRatio", getContentCacheHitRatio());
+    field(json, "compressionCacheHitRatio", getCompressionCacheHitRatio());
+    field(json, "resolutionCacheEntries", getResolutionCacheEntries());
+    field(json, "contentCacheBytes", getContentCacheBytes());
+    field(json, "compressionCacheBytes", getCompressionCacheBytes());
+    latency(json, "resolutionTime", getResolutionTime());
+    latency(json, "transferTime", getTransferTime());
+    json.append("  \"mappings\": [");
+    String separator = "\n";
+    for (MappingStatistics mapping : getMappings())
+    {
+      json.append(separator).append("    {\"index\": ").append(mapping.getIndex())
+          .append(", \"url\": ").append(quote(mapping.getUrl()))
+          .append(", \"to\": ").append(quote(mapping.getTo()))
+          .append(", \"hits\": ").append(mapping.getHits())
+          .append(", \"misses\": ").append(mapping.getMisses()).append('}');
+      separator = ",\n";
+    }
+    json.append("\n  ]\n}\n");
+    return json.toString();
+  }
+
+  private static void field(StringBuilder json, String name, long value)
+  {
+    json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+  }
+
+  private static void field(StringBuilder json, String name, double value)
+  {
+    json.append("  \"").append(name).append("\": ").append(Double.isNaN(value) ? "null" : Double.toString(value)).append(",\n");
+  }
+
+  private static void latency(StringBuilder json, String name, LatencyStatistics latency)
+  {
+    json.append("  \"").append(name).append("\": {\"count\": ").append(latency.getCount())
+        .append(", \"meanMicros\": ").append(latency.getMeanMicros())
+        .append(", \"p50Micros\": ").append(latency.getP50Micros())
+        .append(", \"p90Micros\": ").append(latency.getP90Micros())
+        .append(", \"p99Micros\": ").append(latency.getP99Micros())
+        .append(", \"maxMicros\": ").append(latency.getMaxMicros()).append("},\n");
+  }
+
+  private static String quote(String text)
+  {
+    StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+    for (int i = 0; i < text.length(); ++i)
+    {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < ' ') {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+
+  // Hits and misses of a cache.
+  private static final class HitRatio
+  {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private void count(boolean hit)
+    {
+      (hit ? hits : misses).increment();
+    }
+
+    private double ratio()
+    {
+      long h = hits.sum();
+      long total = h + misses.sum();
+      return total == 0 ? Double.NaN : (double) h / total;
+    }
+  }
+
+  // A latency histogram. Bucket i counts latencies of less than 2^i microseconds, and at least 2^(i-1).
+  private static final class Histogram
+  {
+    private static final int BUCKETS = 40;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Long::max, 0L);
+
+    private void record(long nanos)
+    {
+      long micros = Math.max(0L, nanos / 1000);
+      buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+      totalMicros.add(micros);
+      maxMicros.accumulate(micros);
+    }
+
+    private LatencyStatistics statistics()
+    {
+      long[] counts = new long[BUCKETS];
+      long count = 0L;
+      for (int i = 0; i < BUCKETS; ++i)
+      {
+        counts[i] = buckets.get(i);
+        count += counts[i];
+      }
+      long max = maxMicros.get();
+      return new LatencyStatistics(count, count == 0 ? 0L : totalMicros.sum() / count,
+          percentile(counts, count, 0.50, max), percentile(counts, count, 0.90, max), percentile(counts, count, 0.99, max), max);
+    }
+
+    private static long percentile(long[] counts, long count, double fraction, long max)
+    {
+      if (count == 0) return 0L;
+      long rank = (long) Math.ceil(count * fraction);
+      long cumulative = 0L;
+      for (int i = 0; i < counts.length; ++i)
+      {
+        cumulative += counts[i];
+        if (cumulative >= rank) return Math.min(max, (1L << i) - 1);
+      }
+      return max;
+    }
+  }
+
+  // The hits and misses per mapping of one mappings snapshot.
+  private static final class MappingCounters
+  {
+    private final ResourceMappings snapshot;
+    private final AtomicLongArray hits;
+    private final AtomicLongArray misses;
+
+    private MappingCounters(ResourceMappings snapshot)
+    {
+      int size = snapshot.getMappings() == null ? 0 : snapshot.getMappings().size();
+      this.snapshot = snapshot;
+      this.hits = new AtomicLongArray(size);
+      this.misses = new AtomicLongArray(size);
+    }
+  }
+
+}
@@ -0,0 +1,66 @@
+package nl.benjamins.exist.servlet;
+
+import java.util.List;
+
+// The management interface of the statistics of a JBResourceServletFilter (see `FilterStatistics`).
+// It is registered in the platform MBean server, and can be inspected with JConsole, VisualVM, or a JMX exporter.
+
+public interface FilterStatisticsMXBean
+{
+
+  // Number of requests that went through the filter.
+  long getRequests();
+
+  // Number of requests for ignored URLs.
+  long getIgnored();
+
+  // Number of requests that were passed on, because there was no resource file.
+  long getPassed();
+
+  // Number of requests that got a whole file.
+  long getSent();
+
+  // Number of requests that got 304 (Not Modified).
+  long getNotModified();
+
+  // Number of range requests that got 206 (Partial Content) or 416 (Range Not Satisfiable).
+  long getPartial();
+
+  // Number of requests that failed with an exception.
+  long getFailed();
+
+  // Number of bytes of resource files sent, not counting headers.
+  long getBytesSent();
+
+  // Number of times the mappings file has been read, and how many of these failed.
+  long getMappingsReloads();
+
+  long getMappingsReloadFailures();
+
+  // How long the most recent reading of the mappings file took, in milliseconds.
+  long getLastMappingsReloadMillis();
+
+  // The fraction of lookups that were found in each cache, or NaN if there have not been any lookups.
+  double getResolutionCacheHitRatio();
+
+  double getContentCacheHitRatio();
+
+  double getCompressionCacheHitRatio();
+
+  // The size of each cache. The content caches are measured in bytes.
+  long getResolutionCacheEntries();
+
+  long getContentCacheBytes();
+
+  long getCompressionCacheBytes();
+
+  // Time from the start of a request until the file and its version were known.
+  LatencyStatistics getResolutionTime();
+
+  // Time from then until the response was handed to Jetty.
+  LatencyStatistics getTransferTime();
+
+  // Hits and misses of each mapping, in document order.
+  List<MappingStatistics> getMappings();
+
+}
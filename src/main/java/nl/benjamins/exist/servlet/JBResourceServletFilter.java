@@ -3,18 +3,37 @@ package nl.benjamins.exist.servlet;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
@@ -24,10 +43,15 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.lang3.tuple.Pair;
+import org.eclipse.jetty.http.CompressedContentFormat;
 import org.eclipse.jetty.http.HttpContent;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.MimeTypes;
 import org.eclipse.jetty.http.ResourceHttpContent;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.InclusiveByteRange;
 import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.MultiPartOutputStream;
 import org.eclipse.jetty.util.resource.PathResource;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -58,10 +82,32 @@ import org.xml.sax.SAXException;
 //   <filter>
 //     <filter-name>static-resource</filter-name>
 //     <filter-class>nl.benjamins.exist.servlet.JBResourceServletFilter</filter-class>
+//     <!-- Only needed for asyncThreshold. -->
+//     <async-supported>true</async-supported>
 //     <init-param>
 //       <param-name>loggerName</param-name>
 //       <param-value>com.benjamins.resource-servlet</param-value>
 //     </init-param>
+//     <!-- Optional. The name of the logger for the access log, with one line per request. No access log if this is missing. -->
+//     <init-param>
+//       <param-name>accessLoggerName</param-name>
+//       <param-value>com.benjamins.resource-servlet.access</param-value>
+//     </init-param>
+//     <!-- Optional, default is 8192. The number of access log entries that can wait for the logger. -->
+//     <init-param>
+//       <param-name>accessLogBufferSize</param-name>
+//       <param-value>8192</param-value>
+//     </init-param>
+//     <!-- Optional, default is true. Set to false to keep no statistics. The statistics are available through JMX. -->
+//     <init-param>
+//       <param-name>statistics</param-name>
+//       <param-value>true</param-value>
+//     </init-param>
+//     <!-- Optional. The URL path of a read-only status page with the statistics as JSON. No status page if this is missing. -->
+//     <init-param>
+//       <param-name>statusPath</param-name>
+//       <param-value>/resource-filter-status</param-value>
+//     </init-param>
 //     <init-param>
 //       <param-name>basePath</param-name>
 //       <param-value>... the base path for all resource files ...</param-value>
@@ -70,6 +116,66 @@ import org.xml.sax.SAXException;
 //       <param-name>mappingsPath</param-name>
 //       <param-value>... the path to the resource mappings file, relative to the base path ...</param-value>
 //     </init-param>
+//     <!-- Optional, default is true. Set to false to try all mappings one by one, without a dispatch index. -->
+//     <init-param>
+//       <param-name>compileMappings</param-name>
+//       <param-value>true</param-value>
+//     </init-param>
+//     <!-- Optional, default is 10000. The maximum number of URLs in the resolution cache. 0 switches the cache off. -->
+//     <init-param>
+//       <param-name>resolutionCacheSize</param-name>
+//       <param-value>10000</param-value>
+//     </init-param>
+//     <!-- Optional, default is 5000. How many milliseconds a URL without a resource file stays in the resolution cache. -->
+//     <init-param>
+//       <param-name>resolutionCacheTtl</param-name>
+//       <param-value>5000</param-value>
+//     </init-param>
+//     <!-- Optional, default is 0. The maximum number of bytes in the content cache. 0 switches the cache off. -->
+//     <init-param>
+//       <param-name>contentCacheMaxBytes</param-name>
+//       <param-value>67108864</param-value>
+//     </init-param>
+//     <!-- Optional, default is 65536. Only files up to this size are put into the content cache. -->
+//     <init-param>
+//       <param-name>contentCacheMaxFileSize</param-name>
+//       <param-value>65536</param-value>
+//     </init-param>
+//     <!-- Optional, default is 1048576. Files of at least this size are sent from a memory-mapped file. 0 switches this off. -->
+//     <init-param>
+//       <param-name>zeroCopyThreshold</param-name>
+//       <param-value>1048576</param-value>
+//     </init-param>
+//     <!-- Optional, default is 0. Files of at least this size are sent asynchronously. 0 switches this off. -->
+//     <init-param>
+//       <param-name>asyncThreshold</param-name>
+//       <param-value>1048576</param-value>
+//     </init-param>
+//     <!-- Optional, default is "br,gzip". Precompressed variants of files that are looked for, in order of preference. Empty switches this off. -->
+//     <init-param>
+//       <param-name>precompressed</param-name>
+//       <param-value>br,gzip</param-value>
+//     </init-param>
+//     <!-- Optional, default is 0. The maximum number of bytes in the compression cache. 0 switches the cache off. -->
+//     <init-param>
+//       <param-name>compressionCacheMaxBytes</param-name>
+//       <param-value>16777216</param-value>
+//     </init-param>
+//     <!-- Optional, default is 1048576. Only files up to this size are compressed into the compression cache. -->
+//     <init-param>
+//       <param-name>compressionCacheMaxFileSize</param-name>
+//       <param-value>1048576</param-value>
+//     </init-param>
+//     <!-- Optional, default is false. Set to true to keep an index of the files under the base path in memory. -->
+//     <init-param>
+//       <param-name>indexBasePath</param-name>
+//       <param-value>true</param-value>
+//     </init-param>
+//     <!-- Optional, default is 1000000. The maximum number of files in the base path index. -->
+//     <init-param>
+//       <param-name>indexMaxEntries</param-name>
+//       <param-value>1000000</param-value>
+//     </init-param>
 //   </filter>
 //
 //   <filter-mapping>
@@ -91,11 +197,80 @@ import org.xml.sax.SAXException;
 //        the next servlet (filter) will be used, which usually is the eXist servlet.
 //   -->
 //   <map url="..." to="..."/>
+//   <!-- Optional caching attributes: max-age (in seconds), immutable (true or false), no-store (true or false). -->
+//   <map url="/assets/(.*)\.[0-9a-f]{8}\.(css|js)" to="assets/$1.$2" immutable="true"/>
+//   <!-- A bundle serves the concatenation of files, in order, from one URL path (not a regular expression).
+//        It has the same optional caching attributes as a map.
+//   -->
+//   <bundle url="/bundles/site.css" max-age="3600">
+//     <file path="css/reset.css"/>
+//     <file path="css/layout.css"/>
+//   </bundle>
+//   <!-- The file path can point to an entry in a zip or jar archive under the base path, after '!/'. -->
+//   <map url="/icons/(.*)" to="icons.zip!/$1"/>
 // </mappings>
 // ```
 //
-// Before a request URL is matched with the mappings, the resource servlet checks if the mappings file has changed,
-// but only if at least `REFRESH_MAPPINGS_MS` milliseconds have passed since the last check.
+// The caching attributes of a mapping give the responses with its files a Cache-Control header and an Expires header
+// (see `CachePolicy`), which are prepared when the mappings file is read. `max-age="N"` lets clients and proxies use the
+// file for N seconds without asking again. `immutable="true"` is for versioned file names, whose content never changes;
+// clients do not even revalidate these on reload, and without `max-age` they are kept for a year. `no-store="true"`
+// forbids caching. Without these attributes, responses only have Last-Modified and ETag, and clients revalidate.
+// A bundle lets a page load several small CSS or JavaScript files with one request (see `Bundle`). Its URL path is
+// compared as it is, and bundles are looked for before the maps, but after the ignore pattern. The files are read and
+// concatenated into memory once, with a newline after each file that does not end with one, and the content is served
+// from memory until one of the files has a different modification time or size. The response has the latest
+// modification time of the files as Last-Modified, and an ETag that combines the versions of all files. If one of the
+// files does not exist, the request is passed on. The content type comes from the extension of the URL path.
+// A mapping whose file path has the form `archive.zip!/entry` serves entries of a zip or jar archive (see `Archive`).
+// This is for asset trees with very many small files, where looking up and opening a file per request is slow. The
+// archive is memory-mapped, and its central directory is read into an index, when the mappings are read (or when it is
+// first used, if the archive path contains a `$n`). Entries are then served from the mapped archive without opening
+// any file. Stored entries are sent as they are, and deflated entries are sent as gzip to clients that accept it, or
+// inflated. The archive is opened again when its modification time or size changes; replace it by moving a new archive
+// over it, not by writing it in place. Archives of up to 2 GB are supported. Range requests get the whole entry.
+//
+// The mappings file is watched by a background thread (see `MappingsWatcher`), which reads it again when it has changed.
+// Where the file system does not report changes, the thread checks the modification time every `REFRESH_MAPPINGS_MS`
+// milliseconds. Requests never check or read the mappings file themselves.
+// A changed mappings file is parsed and checked completely (regular expressions, references to groups) before it
+// replaces the current mappings. A mappings file with errors is logged, and the previous mappings stay in use.
+// When the mappings are read, their URL patterns are compiled into a dispatch index (see `MappingIndex`), so that
+// a request URL is only matched with mappings that could match it, based on the literal prefixes and suffixes of the
+// patterns. The first mapping that matches is still the one that is used.
+// The outcome of matching a URL with the mappings is kept in a bounded resolution cache (see `BoundedCache`), so that
+// frequently requested URLs do not go through the mappings every time. URLs for which there is no resource file are
+// cached as well, but only for `resolutionCacheTtl` milliseconds. For URLs that do have a resource file, the cache only
+// checks that the file still exists. The resolution cache is cleared when the mappings file has been read again.
+// Small resource files can be kept in memory by the content cache (see `ContentCache`), which is off by default.
+// Cached files are served from direct buffers with precomputed headers, as long as their modification time and size
+// have not changed. The cache holds at most `contentCacheMaxBytes` bytes, of files up to `contentCacheMaxFileSize` bytes.
+// Note that direct buffers are not part of the Java heap; the JVM option -XX:MaxDirectMemorySize may need to be raised.
+// Large files, of at least `zeroCopyThreshold` bytes, are memory-mapped and handed to Jetty as a whole. Jetty writes the
+// mapped buffer to the network, so the content goes from the operating system's file cache to the socket without being
+// copied through a buffer on the Java heap. Smaller files are copied to the response as before.
+// Files of at least `asyncThreshold` bytes can be sent asynchronously (see `AsyncFileSender`), which is off by default.
+// The request thread then returns to the pool as soon as the file has been handed to Jetty, instead of waiting until a
+// slow client has received all of it. This needs `<async-supported>true</async-supported>` for the filter, and for
+// the servlets and filters that come before it; otherwise files are sent synchronously as before.
+// Responses have a strong ETag derived from the modification time and size of the file (see `ResourceVersion`).
+// A conditional GET or HEAD request (If-None-Match, If-Modified-Since) for a file that has not changed gets a
+// 304 (Not Modified) response, without opening the file.
+// Range requests are supported, for a single range and for multiple ranges (as multipart/byteranges), also with
+// If-Range. The requested parts are read from their position in the file, without reading what comes before them.
+// With `indexBasePath`, the files under the base path are kept in an index in memory (see `BasePathIndex`), with their
+// sizes and modification times, so that requests do not need to ask the file system whether a file exists. This helps
+// on network file systems. The index is built by a background thread when the filter starts, and kept current with
+// file system watch events. It holds at most `indexMaxEntries` files; for files that are not in an incomplete index,
+// the file system is asked as before. Note that every directory under the base path needs a watch; on Linux, the
+// number of watches is limited by `fs.inotify.max_user_watches`.
+// When the client accepts a compressed encoding, a precompressed variant of the file is sent if there is one, i.e.,
+// `style.css.br` or `style.css.gz` next to `style.css` (see `precompressed`). Text files without a precompressed variant
+// can be compressed with gzip on demand, into the compression cache, which is off by default. A file is then compressed
+// once per version, not on every request. Range requests always get parts of the uncompressed file.
+// The mappings are kept in an immutable snapshot (see `ResourceMappings`), which is replaced as a whole when the
+// mappings file has been read again. Requests never wait for each other or for a reload; while one request reads the
+// mappings file, the other requests keep using the previous snapshot.
 //
 // The servlet filter logs to a logger with the name specified in `loggerName`. This should be configured in `etc/log4j2.xml`.
 // For example:
@@ -113,6 +288,23 @@ import org.xml.sax.SAXException;
 // </Logger>
 // ```
 // The Logger/@name is what has been specified in the loggerName init-param.
+// Messages about single requests (matches, mime-types) are logged at level INFO; they are only built when that level is
+// enabled, so on a busy server the logger should be at WARNING. Repeated messages are collapsed into a count.
+// The access log is separate, and off by default. When `accessLoggerName` is given, every request gets one line with
+// its time, status, outcome (sent, partial, not-modified, passed, ignored), duration and URL path. Requests put their
+// lines into a ring buffer (see `AccessLog`), and a background thread writes them to the access logger, so a slow
+// logger does not slow down requests. If the buffer is full, lines are dropped and the number of dropped lines is logged.
+// The filter keeps statistics (see `FilterStatistics`), which are registered in the platform MBean server as
+// `nl.benjamins.exist.servlet:type=JBResourceServletFilter,name="<filter-name>"`: requests per outcome, bytes sent,
+// hits and misses per mapping, reloads of the mappings file, cache hit ratios and sizes, and latency histograms for
+// resolving a request (finding the file and its version) and for sending the response. For asynchronous responses,
+// the latter is the time until the file has been handed over. The same statistics are available as JSON on the status
+// page at `statusPath`, which is off by default. The status page is not protected; map it to a URL that is not public,
+// or protect it in the web server before eXist.
+// There are JMH benchmarks for matching URLs and serving files in `src/jmh/java`, in the `jmh` profile. Run them with
+// `mvn -Pjmh test-compile exec:exec`, and pass JMH options with `-Djmh.args="..."`.
+// The end-to-end load test in `src/load/java` runs the filter in an embedded Jetty while the mappings file is replaced,
+// and checks every response. Run it with `mvn -Pload test-compile exec:exec`; it fails if a check failed.
 
 
 public class JBResourceServletFilter implements Filter
@@ -124,19 +316,160 @@ public class JBResourceServletFilter implements Filter
   // Name of the logger.
   private static final String loggerNameDefault = "com.benjamins.resource-servlet";
 
-  // Check if mappings have changed every REFRESH_MAPPINGS_MS milliseconds.
+  // Check if mappings have changed every REFRESH_MAPPINGS_MS milliseconds, when the file system does not report changes.
   private static final int REFRESH_MAPPINGS_MS = 10000;
 
+  // A reference to a group in the file path of a mapping.
+  private static final Pattern GROUP_REFERENCE = Pattern.compile("\\$(\\d+)");
+
+  // Separates the path of an archive from the name of an entry in the file path of a mapping.
+  private static final String ARCHIVE_SEPARATOR = "!/";
+
+  // Defaults for the resolution cache.
+  private static final long RESOLUTION_CACHE_SIZE_DEFAULT = 10000L;
+  private static final long RESOLUTION_CACHE_TTL_DEFAULT = 5000L;
+
+  // Defaults for the content cache.
+  private static final long CONTENT_CACHE_MAX_BYTES_DEFAULT = 0L;
+  private static final long CONTENT_CACHE_MAX_FILE_SIZE_DEFAULT = 65536L;
+
+  // Default for the size from which files are sent from a memory-mapped file.
+  private static final long ZERO_COPY_THRESHOLD_DEFAULT = 1048576L;
+
+  // Default for the size from which files are sent asynchronously.
+  private static final long ASYNC_THRESHOLD_DEFAULT = 0L;
+
+  // Default for the maximum number of files in the base path index.
+  private static final long INDEX_MAX_ENTRIES_DEFAULT = 1000000L;
+
+  // Default for the number of entries in the access log buffer.
+  private static final long ACCESS_LOG_BUFFER_SIZE_DEFAULT = 8192L;
+
+  // Outcomes of requests, for the access log and the statistics.
+  static final String OUTCOME_IGNORED = "ignored";
+  static final String OUTCOME_PASSED = "passed";
+  static final String OUTCOME_NOT_MODIFIED = "not-modified";
+  static final String OUTCOME_PARTIAL = "partial";
+  static final String OUTCOME_SENT = "sent";
+  static final String OUTCOME_FAILED = "failed";
+  static final String OUTCOME_STATUS = "status";
+
+  // Requests with more ranges than this get the whole file.
+  private static final int MAX_RANGES = 16;
+
+  // Defaults for compressed variants.
+  private static final String PRECOMPRESSED_DEFAULT = "br,gzip";
+  private static final long COMPRESSION_CACHE_MAX_BYTES_DEFAULT = 0L;
+  private static final long COMPRESSION_CACHE_MAX_FILE_SIZE_DEFAULT = 1048576L;
+  // Smaller files are not worth compressing.
+  private static final long COMPRESSION_MIN_FILE_SIZE = 256L;
+  private static final Variant[] NO_VARIANTS = new Variant[0];
+
   private Logger logger;
   private String loggerName;
   private String basePath;
   private String mappingsPath;
+  private boolean compileMappings;
+  // Guards mostRecentMessage and messageRepeats.
+  private final Object logLock = new Object();
   private String mostRecentMessage;
   private int messageRepeats;
-  private Pattern ignoreUrlPattern;
-  private List<Pair<Pattern, String>> mappings;
-  private long mappingsFileLastModified = 0L;
-  private long whenToLoadMappingsAgain = 0L;
+  // The access log, or null if there is none.
+  private AccessLog accessLog;
+  // The statistics, or null if they are not kept.
+  private FilterStatistics statistics;
+  // The name of the statistics in the platform MBean server, or null if they are not registered.
+  private ObjectName statisticsName;
+  // The URL path of the status page, or null if there is none.
+  private String statusPath;
+  // The current mappings snapshot. It is replaced, never modified.
+  private volatile ResourceMappings mappings = ResourceMappings.NONE;
+  // The modification time of the mappings file when it was last read, whether that succeeded or not.
+  private long mappingsFileLastRead = 0L;
+  // Reads the mappings file again when it has changed.
+  private MappingsWatcher mappingsWatcher;
+  // Cache from URL path to the resolved file, or null if there is no resolution cache.
+  private BoundedCache<String, Resolution> resolutions;
+  private long resolutionCacheTtl;
+  // Cache for the content of small files, or null if there is no content cache.
+  private ContentCache contentCache;
+  // Files of at least this size are sent from a memory-mapped file, if this is larger than 0.
+  private long zeroCopyThreshold;
+  // Files of at least this size are sent asynchronously, if this is larger than 0 and the request supports it.
+  private long asyncThreshold;
+  // The encodings of precompressed variants that are looked for, in order of preference.
+  private CompressedContentFormat[] precompressedFormats;
+  // Cache for gzip-compressed content of files without a precompressed variant, or null if there is none.
+  private ContentCache compressionCache;
+  // The index of the files under the base path, or null if there is none.
+  private BasePathIndex basePathIndex;
+  // The content of bundles by URL path, as most recently built. Cleared when the mappings file has been read again.
+  private final Map<String, Bundle.Content> bundleContents = new ConcurrentHashMap<String, Bundle.Content>();
+  // The archives that mappings point into, as most recently opened. Cleared when the mappings file has been read again.
+  private final Map<File, Archive> archives = new ConcurrentHashMap<File, Archive>();
+  // Only one archive is opened at a time.
+  private final Object archiveLock = new Object();
+
+  // The result of resolving a URL path with the mappings, as kept in the resolution cache.
+  private static final class Resolution
+  {
+    // The mappings snapshot that this resolution was made with.
+    private final ResourceMappings mappings;
+    // The resolved file, or null if there is no mapping or the mapped file does not exist.
+    // For an entry of an archive, this is the archive.
+    private final File file;
+    // The name of the entry in the archive, or null if the file is not an archive.
+    private final String entryName;
+    // The index of the mapping that matched the URL, or -1 if no mapping matched.
+    private final int mapping;
+    // The caching policy of that mapping, or null.
+    private final CachePolicy cachePolicy;
+    // When the file is null, the time after which the URL must be resolved again.
+    private final long expires;
+    // The most recently seen version of the file, with its validators.
+    private volatile ResourceVersion version;
+    // The compressed variants for that version, in order of preference, or null if they have not been looked for.
+    private volatile Variant[] variants;
+
+    private Resolution(ResourceMappings mappings, File file, String entryName, int mapping, long expires)
+    {
+      this.mappings = mappings;
+      this.file = file;
+      this.entryName = entryName;
+      this.mapping = mapping;
+      this.cachePolicy = mapping < 0 ? null : mappings.getCachePolicy(mapping);
+      this.expires = expires;
+    }
+
+    // The version of the file with these attributes. The validators are only computed again when the file has changed.
+    private ResourceVersion version(BasicFileAttributes attributes)
+    {
+      ResourceVersion current = version;
+      if (current == null || !current.matches(attributes))
+      {
+        current = new ResourceVersion(attributes);
+        variants = null;
+        version = current;
+      }
+      return current;
+    }
+  }
+
+  // A compressed variant of a resolved file: either a precompressed file next to it, or the file compressed on demand
+  // into the compression cache.
+  private static final class Variant
+  {
+    private final File file;
+    private final ResourceVersion version;
+    private final boolean compressOnDemand;
+
+    private Variant(File file, ResourceVersion version, boolean compressOnDemand)
+    {
+      this.file = file;
+      this.version = version;
+      this.compressOnDemand = compressOnDemand;
+    }
+  }
 
   public JBResourceServletFilter()
   {
@@ -165,8 +498,65 @@ public class JBResourceServletFilter implements Filter
       throw new ServletException("Missing 'mappingsPath' initialization parameter.");
     }
 
-    // Read the mappings for the first time.
-    readMappingsIfNeeded();
+    // Compile the mappings into a dispatch index, unless this has been switched off.
+    compileMappings = !"false".equals(config.getInitParameter("compileMappings"));
+
+    // Set up the resolution cache.
+    long resolutionCacheSize = longParameter(config, "resolutionCacheSize", RESOLUTION_CACHE_SIZE_DEFAULT);
+    resolutionCacheTtl = longParameter(config, "resolutionCacheTtl", RESOLUTION_CACHE_TTL_DEFAULT);
+    resolutions = resolutionCacheSize > 0 ? new BoundedCache<String, Resolution>(resolutionCacheSize) : null;
+
+    // Set up the content cache.
+    long contentCacheMaxBytes = longParameter(config, "contentCacheMaxBytes", CONTENT_CACHE_MAX_BYTES_DEFAULT);
+    long contentCacheMaxFileSize = longParameter(config, "contentCacheMaxFileSize", CONTENT_CACHE_MAX_FILE_SIZE_DEFAULT);
+    contentCache = contentCacheMaxBytes > 0
+        ? new ContentCache(contentCacheMaxBytes, Math.min(contentCacheMaxFileSize, Integer.MAX_VALUE))
+        : null;
+
+    // Set up sending large files.
+    zeroCopyThreshold = longParameter(config, "zeroCopyThreshold", ZERO_COPY_THRESHOLD_DEFAULT);
+    asyncThreshold = longParameter(config, "asyncThreshold", ASYNC_THRESHOLD_DEFAULT);
+
+    // Set up compressed variants.
+    String precompressed = config.getInitParameter("precompressed");
+    precompressedFormats = compressedFormats(precompressed == null ? PRECOMPRESSED_DEFAULT : precompressed);
+    long compressionCacheMaxBytes = longParameter(config, "compressionCacheMaxBytes", COMPRESSION_CACHE_MAX_BYTES_DEFAULT);
+    long compressionCacheMaxFileSize = longParameter(config, "compressionCacheMaxFileSize", COMPRESSION_CACHE_MAX_FILE_SIZE_DEFAULT);
+    compressionCache = compressionCacheMaxBytes > 0
+        ? new ContentCache(compressionCacheMaxBytes, Math.min(compressionCacheMaxFileSize, Integer.MAX_VALUE))
+        : null;
+
+    // Set up the base path index. It is built in the background; until then, requests ask the file system.
+    if ("true".equals(config.getInitParameter("indexBasePath")))
+    {
+      long indexMaxEntries = longParameter(config, "indexMaxEntries", INDEX_MAX_ENTRIES_DEFAULT);
+      basePathIndex = new BasePathIndex(new File(basePath).toPath(), (int) Math.min(indexMaxEntries, Integer.MAX_VALUE), logger);
+      basePathIndex.start();
+    }
+
+    // Set up the statistics, and register them in the platform MBean server.
+    if (!"false".equals(config.getInitParameter("statistics")))
+    {
+      statistics = new FilterStatistics(resolutions, contentCache, compressionCache);
+      registerStatistics(config.getFilterName());
+    }
+    statusPath = config.getInitParameter("statusPath");
+    if (statusPath != null && statusPath.trim().isEmpty()) statusPath = null;
+
+    // Set up the access log.
+    String accessLoggerName = config.getInitParameter("accessLoggerName");
+    if (accessLoggerName != null && !accessLoggerName.trim().isEmpty())
+    {
+      long accessLogBufferSize = longParameter(config, "accessLogBufferSize", ACCESS_LOG_BUFFER_SIZE_DEFAULT);
+      accessLog = new AccessLog(Logger.getLogger(accessLoggerName.trim()), (int) Math.max(2, Math.min(accessLogBufferSize, 1 << 20)));
+      accessLog.start();
+    }
+
+    // Read the mappings for the first time, and watch the mappings file for changes.
+    readMappingsIfChanged();
+    mappingsWatcher = new MappingsWatcher(new File(basePath + mappingsPath).toPath(), REFRESH_MAPPINGS_MS,
+        this::readMappingsIfChanged, logger);
+    mappingsWatcher.start();
 
     log(Level.INFO, "JBResourceServletFilter: started.");
   }
@@ -178,112 +568,441 @@ public class JBResourceServletFilter implements Filter
     HttpServletRequest request = (HttpServletRequest) servletRequest;
     HttpServletResponse response = (HttpServletResponse) servletResponse;
     String urlPath = request.getRequestURI().substring(request.getContextPath().length());
+    if (accessLog == null && statistics == null)
+    {
+      serve(urlPath, request, response, chain, 0L);
+      return;
+    }
+    long start = System.nanoTime();
+    String outcome = OUTCOME_FAILED;
+    try
+    {
+      outcome = serve(urlPath, request, response, chain, start);
+    }
+    finally
+    {
+      if (statistics != null) statistics.request(outcome);
+      if (accessLog != null) accessLog.record(urlPath, outcome, response.getStatus(), System.nanoTime() - start);
+    }
+  }
+
+  // Serve a request from a resource file, or pass it on. Returns the outcome, for the access log and the statistics.
+  // The start time is only used for the statistics.
+  private String serve(String urlPath, HttpServletRequest request, HttpServletResponse response, FilterChain chain,
+      long start) throws IOException, ServletException
+  {
+    // The status page.
+    if (statusPath != null && statusPath.equals(urlPath))
+    {
+      sendStatus(request, response);
+      return OUTCOME_STATUS;
+    }
 
     // If this URL is ignored, pass on immediately.
-    if  (ignoreUrlPattern != null && ignoreUrlPattern.matcher(urlPath).matches()) {
-      log(Level.INFO, urlPath, " is ignored and passed on.");
+    if  (mappings.isIgnored(urlPath)) {
+      if (logger.isLoggable(Level.INFO)) log(Level.INFO, urlPath, " is ignored and passed on.");
       chain.doFilter(request, response);
-      return;
+      return OUTCOME_IGNORED;
     }
 
-    // Maybe the mappings should be read again.
-    readMappingsIfNeeded();
+    // A bundle is served from memory, as the concatenation of its files.
+    Bundle bundle = mappings.getBundle(urlPath);
+    if (bundle != null)
+    {
+      return serveBundle(urlPath, bundle, request, response, chain, start);
+    }
 
     // Try to find the file that corresponds to this URL.
-    File file = findFile(urlPath);
-    if (file == null)
+    Resolution resolution = resolve(mappings, urlPath);
+    if (resolution.file == null)
     {
       // If there is no resource file for this URL, pass on the request.
+      if (statistics != null) statistics.mapping(resolution.mappings, resolution.mapping, false);
       chain.doFilter(request, response);
-      return;
+      return OUTCOME_PASSED;
     }
 
-    returnFileContent(urlPath, file, response);
+    // An entry of an archive is served from the memory-mapped archive.
+    if (resolution.entryName != null)
+    {
+      return serveArchiveEntry(urlPath, resolution, request, response, chain, start);
+    }
+
+    // Get the modification time and size of the file, which also checks that it still exists.
+    BasicFileAttributes attributes = readAttributes(resolution.file);
+    if (attributes == null)
+    {
+      log(Level.WARNING, urlPath, "maps to [" + resolution.file.getPath() + "] but that is not a readable file anymore.");
+      if (resolutions != null) resolutions.remove(urlPath);
+      if (statistics != null) statistics.mapping(resolution.mappings, resolution.mapping, false);
+      chain.doFilter(request, response);
+      return OUTCOME_PASSED;
+    }
+    ResourceVersion version = resolution.version(attributes);
+    String mimeType = getMimeType(urlPath, resolution.file.getName());
+
+    // Does the client ask for parts of the file? Parts are always taken from the uncompressed file.
+    Enumeration<String> ranges = request.getHeaders(HttpHeader.RANGE.asString());
+    boolean ranged = "GET".equals(request.getMethod()) && ranges != null && ranges.hasMoreElements()
+        && version.isRangeAllowed(request);
+
+    // Use a compressed variant of the file, if there is one that the client accepts.
+    Variant variant = null;
+    Variant[] variants = variants(resolution, version, attributes, mimeType);
+    if (variants.length > 0)
+    {
+      response.setHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT_ENCODING.asString());
+      if (!ranged) variant = selectVariant(resolution, variants, request.getHeader(HttpHeader.ACCEPT_ENCODING.asString()));
+    }
+
+    // The caching policy of the mapping applies to all responses with the file, including 304 and 206.
+    if (resolution.cachePolicy != null) resolution.cachePolicy.apply(response);
+
+    long resolved = 0L;
+    if (statistics != null)
+    {
+      statistics.mapping(resolution.mappings, resolution.mapping, true);
+      resolved = System.nanoTime();
+      statistics.resolutionTime(resolved - start);
+    }
+
+    // If the client already has this version of the file, do not send it again.
+    ResourceVersion sentVersion = variant == null ? version : variant.version;
+    if (sentVersion.isNotModified(request))
+    {
+      sendNotModified(sentVersion, response);
+      return OUTCOME_NOT_MODIFIED;
+    }
+
+    // If the client asks for parts of the file, send only those parts.
+    if (ranged)
+    {
+      if (returnFileRanges(resolution.file, version, mimeType, ranges, response))
+      {
+        if (statistics != null) statistics.transferTime(System.nanoTime() - resolved);
+        return OUTCOME_PARTIAL;
+      }
+    }
+
+    if (variant == null) {
+      returnFileContent(urlPath, resolution.file, version, mimeType, false, request, response);
+    } else {
+      returnFileContent(urlPath, variant.file, variant.version, mimeType, variant.compressOnDemand, request, response);
+    }
+    if (statistics != null) statistics.transferTime(System.nanoTime() - resolved);
+    return OUTCOME_SENT;
   }
 
   @Override
   public void destroy()
   {
+    if (mappingsWatcher != null) mappingsWatcher.stop();
+    if (basePathIndex != null) basePathIndex.stop();
+    if (accessLog != null) accessLog.stop();
+    archives.clear();
+    unregisterStatistics();
     log(Level.WARNING, "An instance of the JBResourceServletFilter has been destroyed.");
   }
 
-  private synchronized void readMappingsIfNeeded() throws ServletException
+  // Read the mappings file if it has changed since it was last read.
+  // The new mappings are parsed and checked completely before they replace the current snapshot. If the file has errors,
+  // they are logged and the current snapshot stays in use, until the file changes again.
+  // This is called by the mappings watcher, never by a request.
+  private synchronized void readMappingsIfChanged()
   {
-    // Wait some time before checking if mappings must be reloaded.
-    if (System.currentTimeMillis() > whenToLoadMappingsAgain) {
-      log(Level.INFO, "JBResourceServletFilter: Check if mappings should be read again.");
+    String mappingsFile = basePath + mappingsPath;
+    File file = new File(mappingsFile);
+    long lastModified = file.lastModified();
+    if (lastModified == 0L || lastModified == mappingsFileLastRead) return;
+    mappingsFileLastRead = lastModified;
 
-      whenToLoadMappingsAgain = System.currentTimeMillis() + REFRESH_MAPPINGS_MS;
+    log(Level.WARNING, "JBResourceServletFilter: Reading resource mappings from [" + mappingsFile + "]");
+    long start = System.nanoTime();
+    try
+    {
+      ResourceMappings newMappings = parseMappings(file, lastModified);
+      // Publish the new snapshot. Requests that are in progress keep using the snapshot they started with.
+      if (statistics != null) statistics.mappingsReloaded(newMappings, (System.nanoTime() - start) / 1000000);
+      mappings = newMappings;
+      if (resolutions != null) resolutions.clear();
+      bundleContents.clear();
+      archives.clear();
+      log(Level.WARNING, "JBResourceServletFilter: Finished reading " + newMappings.getMappings().size() +
+          " resource mappings and " + newMappings.getBundleCount() + " bundles from [" + mappingsFile + "] in " +
+          (System.nanoTime() - start) / 1000000 + " ms.");
+      openArchives(newMappings);
+    }
+    catch (ParserConfigurationException | SAXException | IOException | RuntimeException e)
+    {
+      if (statistics != null) statistics.mappingsReloaded(null, (System.nanoTime() - start) / 1000000);
+      log(Level.SEVERE, "JBResourceServletFilter: Error in mappings file " + mappingsFile + " : " + e.getMessage() +
+          (mappings.isAvailable() ? " The previous mappings are still used." : " No mappings are available."));
+    }
+  }
 
-      String mappingsFile = basePath + mappingsPath;
-      File file = new File(mappingsFile);
+  // Parse and check a mappings file. Throws an IllegalArgumentException for invalid mappings.
+  private ResourceMappings parseMappings(File file, long lastModified)
+      throws ParserConfigurationException, SAXException, IOException
+  {
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    DocumentBuilder db = dbf.newDocumentBuilder();
+    Document doc = db.parse(file);
+    doc.getDocumentElement().normalize();
 
-      if (file.lastModified() > mappingsFileLastModified) {
-        log(Level.WARNING, "JBResourceServletFilter: Reading resource mappings from [" + mappingsFile + "]");
+    Pattern ignoreUrlPattern;
+    String ignore = doc.getDocumentElement().getAttribute("ignore");
+    if (ignore != null && ignore.length() > 0) {
+      ignoreUrlPattern = compilePattern(ignore, "ignore");
+    } else {
+      ignoreUrlPattern = null;
+    }
 
-        mappingsFileLastModified = file.lastModified();
+    NodeList mapNodes = doc.getElementsByTagName("map");
+    int mappingsLength = mapNodes.getLength();
+    List<Pair<Pattern, String>> newMappings = new ArrayList<Pair<Pattern,String>>(mappingsLength);
+    List<CachePolicy> cachePolicies = new ArrayList<CachePolicy>(mappingsLength);
 
-        try
+    for (int i = 0; i < mappingsLength; i++)
+    {
+      Node mappingNode = mapNodes.item(i);
+      if (mappingNode.getNodeType() == Node.ELEMENT_NODE)
+      {
+        Element mappingElement = (Element) mappingNode;
+        String regex = mappingElement.getAttribute("url");
+        String filePath = mappingElement.getAttribute("to");
+        String where = "map " + (i+1);
+        if (regex.isEmpty()) throw new IllegalArgumentException("The url of " + where + " is missing.");
+        if (filePath.isEmpty()) throw new IllegalArgumentException("The to of " + where + " is missing.");
+        Pattern pattern = compilePattern(regex, where);
+        // Every $n in the file path must refer to a group in the URL pattern.
+        Matcher groupReference = GROUP_REFERENCE.matcher(filePath);
+        while (groupReference.find())
         {
-          DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-          DocumentBuilder db = dbf.newDocumentBuilder();
-          Document doc = db.parse(file);
-          doc.getDocumentElement().normalize();
-
-          String ignore = doc.getDocumentElement().getAttribute("ignore");
-          if (ignore != null && ignore.length() > 0) {
-            ignoreUrlPattern = Pattern.compile(ignore);
-          } else {
-            ignoreUrlPattern = null;
+          if (Integer.parseInt(groupReference.group(1)) > pattern.matcher("").groupCount())
+          {
+            throw new IllegalArgumentException("The to of " + where + " refers to " + groupReference.group() +
+                ", but [" + regex + "] does not have that many groups.");
           }
+        }
+        newMappings.add(Pair.of(pattern, filePath));
+        cachePolicies.add(CachePolicy.of(mappingElement.getAttribute("max-age"), mappingElement.getAttribute("immutable"),
+            mappingElement.getAttribute("no-store"), where));
+      }
+    }
+    return new ResourceMappings(ignoreUrlPattern, newMappings, cachePolicies, parseBundles(doc), compileMappings, lastModified);
+  }
+
+  // Parse and check the bundles in a mappings file. Throws an IllegalArgumentException for invalid bundles.
+  private Map<String, Bundle> parseBundles(Document doc)
+  {
+    Map<String, Bundle> bundles = new HashMap<String, Bundle>();
+    NodeList bundleNodes = doc.getElementsByTagName("bundle");
+    for (int i = 0; i < bundleNodes.getLength(); i++)
+    {
+      Element bundleElement = (Element) bundleNodes.item(i);
+      String url = bundleElement.getAttribute("url");
+      String where = "bundle " + (i+1);
+      if (!url.startsWith("/")) throw new IllegalArgumentException("The url of " + where + " must be a URL path starting with '/', not [" + url + "].");
+      if (bundles.containsKey(url)) throw new IllegalArgumentException("The url of " + where + " is the url of an earlier bundle: " + url);
+      List<File> files = new ArrayList<File>();
+      NodeList fileNodes = bundleElement.getElementsByTagName("file");
+      for (int j = 0; j < fileNodes.getLength(); j++)
+      {
+        String filePath = ((Element) fileNodes.item(j)).getAttribute("path");
+        if (filePath.isEmpty()) throw new IllegalArgumentException("The path of file " + (j+1) + " in " + where + " is missing.");
+        files.add(new File(basePath + filePath));
+      }
+      if (files.isEmpty()) throw new IllegalArgumentException("There are no files in " + where + ".");
+      // The mime-type comes from the URL, e.g. /bundles/site.css, or else from the first file.
+      String mimeType = MimeTypes.getDefaultMimeByExtension(url);
+      if (mimeType == null) mimeType = MimeTypes.getDefaultMimeByExtension(files.get(0).getName());
+      CachePolicy cachePolicy = CachePolicy.of(bundleElement.getAttribute("max-age"), bundleElement.getAttribute("immutable"),
+          bundleElement.getAttribute("no-store"), where);
+      bundles.put(url, new Bundle(url, files, mimeType, cachePolicy));
+    }
+    return bundles;
+  }
 
-          NodeList mapNodes = doc.getElementsByTagName("map");
+  private static Pattern compilePattern(String regex, String where)
+  {
+    try
+    {
+      return Pattern.compile(regex);
+    }
+    catch (PatternSyntaxException e)
+    {
+      throw new IllegalArgumentException("Invalid regular expression in " + where + ": " + e.getMessage(), e);
+    }
+  }
 
-          // getLength() gives a NPE sometimes.
-          int mappingsLength;
-          try {
-            mappingsLength = mapNodes.getLength();
-          } catch (Exception e) {
-            log(Level.SEVERE, "JBResourceServletFilter: Computing mapNodes.getLength() gave a "+e.getClass().getName()+". No mappings are available.");
-            mappings = null;
-            return;
-          }
+  // Serve a bundle from its content in memory, which is built again when one of its files has changed.
+  // If one of its files is missing, the request is passed on.
+  private String serveBundle(String urlPath, Bundle bundle, HttpServletRequest request, HttpServletResponse response,
+      FilterChain chain, long start) throws IOException, ServletException
+  {
+    Bundle.Content content = bundleContents.get(urlPath);
+    if (content == null || !content.isCurrent(bundle, this::readAttributes))
+    {
+      content = bundle.build(this::readAttributes);
+      if (content == null)
+      {
+        log(Level.WARNING, urlPath, "is a bundle, but not all of its files are readable files.");
+        chain.doFilter(request, response);
+        return OUTCOME_PASSED;
+      }
+      bundleContents.put(urlPath, content);
+      if (logger.isLoggable(Level.INFO)) log(Level.INFO, urlPath, "is a bundle of " + bundle.getFiles().size() + " files, whose content has been built.");
+    }
 
-          mappings = new ArrayList<Pair<Pattern,String>>(mappingsLength);
+    if (bundle.getCachePolicy() != null) bundle.getCachePolicy().apply(response);
 
-          for (int i = 0; i < mappingsLength; i++)
-          {
-            Node mappingNode = mapNodes.item(i);
-            if (mappingNode.getNodeType() == Node.ELEMENT_NODE)
-            {
-              Element mappingElement = (Element) mappingNode;
-              String regex = mappingElement.getAttribute("url");
-              String filePath = mappingElement.getAttribute("to");
-              Pattern pattern = Pattern.compile(regex);
-              mappings.add(Pair.of(pattern, filePath));
-            }
-          }
+    long resolved = 0L;
+    if (statistics != null)
+    {
+      resolved = System.nanoTime();
+      statistics.resolutionTime(resolved - start);
+    }
 
-          log(Level.WARNING, "JBResourceServletFilter: Finished reading " + mappings.size() + " / " + mappingsLength + " resource mappings from [" + mappingsFile + "]");
-        }
-        catch (ParserConfigurationException | SAXException | IOException e)
+    ResourceVersion version = content.getVersion();
+    if (version.isNotModified(request))
+    {
+      sendNotModified(version, response);
+      return OUTCOME_NOT_MODIFIED;
+    }
+    HttpContent httpContent = content.getHttpContent();
+    countBytesSent(request, httpContent.getContentLengthValue());
+    putCachedHeaders(httpContent, response);
+    sendCachedContent(httpContent, response);
+    if (statistics != null) statistics.transferTime(System.nanoTime() - resolved);
+    return OUTCOME_SENT;
+  }
+
+  // Serve an entry of an archive from the memory-mapped archive. A deflated entry is sent as gzip if the client accepts
+  // that, and inflated otherwise. Range requests get the whole entry.
+  private String serveArchiveEntry(String urlPath, Resolution resolution, HttpServletRequest request,
+      HttpServletResponse response, FilterChain chain, long start) throws IOException, ServletException
+  {
+    // Check that the archive has not changed, or open it again.
+    Archive archive = archive(resolution.file);
+    Archive.Entry entry = archive == null ? null : archive.entry(resolution.entryName);
+    if (entry == null)
+    {
+      log(Level.WARNING, urlPath, "maps to [" + resolution.entryName + "] in [" + resolution.file.getPath() + "] but that is not an entry of a readable archive anymore.");
+      if (resolutions != null) resolutions.remove(urlPath);
+      if (statistics != null) statistics.mapping(resolution.mappings, resolution.mapping, false);
+      chain.doFilter(request, response);
+      return OUTCOME_PASSED;
+    }
+    String mimeType = getMimeType(urlPath, resolution.entryName);
+
+    boolean gzip = false;
+    if (entry.isDeflated())
+    {
+      response.setHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT_ENCODING.asString());
+      String acceptEncoding = request.getHeader(HttpHeader.ACCEPT_ENCODING.asString());
+      gzip = acceptEncoding != null && acceptsEncoding(acceptEncoding, CompressedContentFormat.GZIP.getEncoding());
+    }
+
+    if (resolution.cachePolicy != null) resolution.cachePolicy.apply(response);
+
+    long resolved = 0L;
+    if (statistics != null)
+    {
+      statistics.mapping(resolution.mappings, resolution.mapping, true);
+      resolved = System.nanoTime();
+      statistics.resolutionTime(resolved - start);
+    }
+
+    ResourceVersion version = gzip ? entry.getGzipVersion() : entry.getVersion();
+    if (version.isNotModified(request))
+    {
+      sendNotModified(version, response);
+      return OUTCOME_NOT_MODIFIED;
+    }
+
+    ByteBuffer[] buffers = gzip ? entry.gzip() : new ByteBuffer[] {entry.content()};
+    if (mimeType != null) response.setContentType(mimeType);
+    response.setHeader(HttpHeader.ETAG.asString(), version.getETag());
+    response.setHeader(HttpHeader.LAST_MODIFIED.asString(), version.getLastModifiedValue());
+    if (gzip) response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), CompressedContentFormat.GZIP.getEncoding());
+    response.setContentLengthLong(version.getLength());
+    countBytesSent(request, version.getLength());
+    try (OutputStream out = response.getOutputStream())
+    {
+      if (out instanceof HttpOutput && buffers.length == 1) {
+        ((HttpOutput) out).sendContent(buffers[0]);
+      } else if (out instanceof HttpOutput) {
+        for (ByteBuffer buffer : buffers) ((HttpOutput) out).write(buffer);
+      } else {
+        WritableByteChannel channel = Channels.newChannel(out);
+        for (ByteBuffer buffer : buffers)
         {
-          log(Level.SEVERE, "JBResourceServletFilter: Error parsing XML file " + mappingsFile + " : " + e.getMessage());
-          throw new ServletException("Error parsing XML file " + mappingsFile, e);
+          while (buffer.hasRemaining()) channel.write(buffer);
         }
       }
     }
+    if (statistics != null) statistics.transferTime(System.nanoTime() - resolved);
+    return OUTCOME_SENT;
   }
 
-  private synchronized File findFile(String urlPath) throws ServletException, IOException
+  // Find the file for a URL path, using the resolution cache if there is one.
+  // The file of the resolution is null if there is no file for the URL.
+  // A cached resolution does not check if the file still exists; the caller must do that.
+  private Resolution resolve(ResourceMappings snapshot, String urlPath) throws ServletException, IOException
   {
-    if (mappings == null)
+    if (resolutions != null)
+    {
+      Resolution resolution = resolutions.get(urlPath);
+      // Resolutions made with an older snapshot are not valid anymore.
+      if (resolution != null && resolution.mappings == snapshot &&
+          (resolution.file != null || System.currentTimeMillis() < resolution.expires))
+      {
+        if (statistics != null) statistics.resolutionCache(true);
+        return resolution;
+      }
+      if (statistics != null) statistics.resolutionCache(false);
+    }
+    Resolution resolution = findFile(snapshot, urlPath);
+    if (resolutions != null && snapshot.isAvailable()) resolutions.put(urlPath, resolution);
+    return resolution;
+  }
+
+  // The attributes of a regular file, or null if the file does not exist or is not a regular file.
+  // The base path index answers this without asking the file system, if there is an index and it knows the file.
+  private BasicFileAttributes readAttributes(File file)
+  {
+    if (basePathIndex != null)
+    {
+      String path = file.getPath();
+      BasicFileAttributes attributes = basePathIndex.get(path);
+      if (attributes != null || basePathIndex.knows(path)) return attributes;
+    }
+    try
+    {
+      BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      return attributes.isRegularFile() ? attributes : null;
+    }
+    catch (IOException e)
     {
-      log(Level.SEVERE, urlPath, "No mappings have been read. No resources can be served.");
       return null;
     }
+  }
+
+  // Match a URL path with the mappings, and find the file of the first mapping that matches.
+  // Package-private for the benchmarks in src/jmh/java.
+  Resolution findFile(ResourceMappings snapshot, String urlPath) throws ServletException, IOException
+  {
+    long expires = System.currentTimeMillis() + resolutionCacheTtl;
+    if (!snapshot.isAvailable())
+    {
+      log(Level.SEVERE, urlPath, "No mappings have been read. No resources can be served.");
+      return new Resolution(snapshot, null, null, -1, expires);
+    }
 
-    for (int i = 0; i < mappings.size(); ++i)
+    List<Pair<Pattern, String>> mappings = snapshot.getMappings();
+    // Only try the mappings that may match, if there is a dispatch index.
+    BitSet candidates = snapshot.candidates(urlPath);
+    for (int i = nextMapping(candidates, 0, mappings.size()); i >= 0; i = nextMapping(candidates, i + 1, mappings.size()))
     {
       Pair<Pattern, String> mapping = mappings.get(i);
       Pattern pattern = mapping.getLeft();
@@ -298,71 +1017,510 @@ public class JBResourceServletFilter implements Filter
           if (group == null) group = "";
           filePath = filePath.replace("$" + j, group);
         }
+        // Try to find the entry in the archive, if the filePath has the form archive.zip!/entry.
+        int archiveSeparator = filePath.indexOf(ARCHIVE_SEPARATOR);
+        if (archiveSeparator >= 0)
+        {
+          File archiveFile = new File(basePath + filePath.substring(0, archiveSeparator));
+          String entryName = filePath.substring(archiveSeparator + ARCHIVE_SEPARATOR.length());
+          Archive archive = archive(archiveFile);
+          if (archive != null && archive.entry(entryName) != null) {
+            if (logger.isLoggable(Level.INFO)) log(Level.INFO, urlPath, "matches [" + pattern.pattern() + "] (" + (i+1) + ") which maps to [" + basePath + " " + filePath + "].");
+            return new Resolution(snapshot, archiveFile, entryName, i, Long.MAX_VALUE);
+          } else {
+            log(Level.WARNING, urlPath, "matches [" + pattern.pattern() + "] (" + (i+1) + ") which maps to [" + basePath + " " + filePath + "] but that is not an entry of a readable archive.");
+            return new Resolution(snapshot, null, null, i, expires);
+          }
+        }
         // Try to find the file at this filePath.
         File file = new File(basePath + filePath);
-        if (file.exists() && file.isFile()) {
-          log(Level.INFO, urlPath, "matches [" + pattern.pattern() + "] (" + (i+1) + ") which maps to [" + basePath + " " + filePath + "].");
-          return file;
+        if (readAttributes(file) != null) {
+          if (logger.isLoggable(Level.INFO)) log(Level.INFO, urlPath, "matches [" + pattern.pattern() + "] (" + (i+1) + ") which maps to [" + basePath + " " + filePath + "].");
+          return new Resolution(snapshot, file, null, i, Long.MAX_VALUE);
         } else {
           log(Level.WARNING, urlPath, "matches [" + pattern.pattern() + "] (" + (i+1) + ") which maps to [" + basePath + " " + filePath + "] but that is not a readable file.");
-          return null;
+          return new Resolution(snapshot, null, null, i, expires);
         }
       }
     }
     // No pattern matched. Some other filter or servlet will handle this URL.
-    log(Level.INFO, urlPath, "has no mapping and will be passed on.");
+    if (logger.isLoggable(Level.INFO)) log(Level.INFO, urlPath, "has no mapping and will be passed on.");
+    return new Resolution(snapshot, null, null, -1, expires);
+  }
+
+  // The archive in a file, opened and memory-mapped when it is first used, and opened again when the file has changed.
+  // Returns null if the file does not exist. An archive that cannot be read has no entries, until the file changes.
+  private Archive archive(File file)
+  {
+    BasicFileAttributes attributes = readAttributes(file);
+    if (attributes == null)
+    {
+      archives.remove(file);
+      return null;
+    }
+    Archive archive = archives.get(file);
+    if (archive != null && archive.matches(attributes)) return archive;
+    synchronized (archiveLock)
+    {
+      archive = archives.get(file);
+      if (archive != null && archive.matches(attributes)) return archive;
+      long start = System.nanoTime();
+      try
+      {
+        archive = Archive.open(file, attributes);
+        log(Level.WARNING, "JBResourceServletFilter: Opened the archive [" + file.getPath() + "] with " + archive.size() +
+            " entries in " + (System.nanoTime() - start) / 1000000 + " ms.");
+      }
+      catch (IOException | RuntimeException e)
+      {
+        archive = Archive.unreadable(file, attributes);
+        log(Level.SEVERE, "JBResourceServletFilter: Cannot read the archive [" + file.getPath() + "]: " + e.getMessage());
+      }
+      archives.put(file, archive);
+      return archive;
+    }
+  }
+
+  // Open the archives that mappings point into, if their paths do not depend on the URL, so that the first requests
+  // do not have to wait for them.
+  private void openArchives(ResourceMappings snapshot)
+  {
+    for (Pair<Pattern, String> mapping : snapshot.getMappings())
+    {
+      String filePath = mapping.getRight();
+      int archiveSeparator = filePath.indexOf(ARCHIVE_SEPARATOR);
+      if (archiveSeparator > 0 && filePath.lastIndexOf('$', archiveSeparator) < 0)
+      {
+        archive(new File(basePath + filePath.substring(0, archiveSeparator)));
+      }
+    }
+  }
+
+  // The index of the next mapping to try, starting at from, or -1 if there is none.
+  private static int nextMapping(BitSet candidates, int from, int size)
+  {
+    if (candidates == null) return from < size ? from : -1;
+    return candidates.nextSetBit(from);
+  }
+
+  // The compressed variants of a resolved file, in order of preference: the precompressed files that exist, followed by
+  // gzip compression on demand for text files if there is a compression cache.
+  // They are looked for once per version of the file.
+  private Variant[] variants(Resolution resolution, ResourceVersion version, BasicFileAttributes attributes, String mimeType)
+  {
+    Variant[] variants = resolution.variants;
+    if (variants != null) return variants;
+    List<Variant> found = new ArrayList<Variant>(precompressedFormats.length + 1);
+    for (CompressedContentFormat format : precompressedFormats)
+    {
+      File variantFile = new File(resolution.file.getPath() + format.getExtension());
+      BasicFileAttributes variantAttributes = readAttributes(variantFile);
+      if (variantAttributes != null) found.add(new Variant(variantFile, new ResourceVersion(variantAttributes, version, format), false));
+    }
+    if (compressionCache != null && isCompressible(mimeType) && version.getLength() >= COMPRESSION_MIN_FILE_SIZE
+        && compressionCache.accepts(version) && !hasFormat(found, CompressedContentFormat.GZIP))
+    {
+      found.add(new Variant(resolution.file, new ResourceVersion(attributes, version, CompressedContentFormat.GZIP), true));
+    }
+    variants = found.isEmpty() ? NO_VARIANTS : found.toArray(new Variant[found.size()]);
+    resolution.variants = variants;
+    return variants;
+  }
+
+  // The first variant with an encoding that the client accepts, or null.
+  // A precompressed file is checked before it is used; if it has changed, the variants are looked for again next time.
+  private Variant selectVariant(Resolution resolution, Variant[] variants, String acceptEncoding)
+  {
+    if (acceptEncoding == null) return null;
+    for (Variant variant : variants)
+    {
+      if (!acceptsEncoding(acceptEncoding, variant.version.getContentEncoding().getEncoding())) continue;
+      if (!variant.compressOnDemand)
+      {
+        BasicFileAttributes attributes = readAttributes(variant.file);
+        if (attributes == null || !variant.version.matches(attributes))
+        {
+          resolution.variants = null;
+          return null;
+        }
+      }
+      return variant;
+    }
     return null;
   }
 
-  private void returnFileContent(String urlPath, File file, HttpServletResponse response) throws ServletException, IOException
+  private static boolean hasFormat(List<Variant> variants, CompressedContentFormat format)
+  {
+    for (Variant variant : variants)
+    {
+      if (variant.version.getContentEncoding().equals(format)) return true;
+    }
+    return false;
+  }
+
+  // Is the content of a file with this mime-type worth compressing?
+  private static boolean isCompressible(String mimeType)
+  {
+    if (mimeType == null) return false;
+    return mimeType.startsWith("text/") || mimeType.contains("javascript") || mimeType.contains("json")
+        || mimeType.contains("xml");
+  }
+
+  // Does an Accept-Encoding header accept an encoding? An encoding is not accepted if its quality is 0,
+  // either explicitly or through '*'.
+  static boolean acceptsEncoding(String acceptEncoding, String encoding)
+  {
+    boolean anyAccepted = false;
+    int start = 0;
+    int n = acceptEncoding.length();
+    while (start < n)
+    {
+      int end = acceptEncoding.indexOf(',', start);
+      if (end < 0) end = n;
+      String part = acceptEncoding.substring(start, end);
+      int semicolon = part.indexOf(';');
+      String name = (semicolon < 0 ? part : part.substring(0, semicolon)).trim();
+      boolean accepted = semicolon < 0 || !isZeroQuality(part.substring(semicolon + 1));
+      if (name.equalsIgnoreCase(encoding)) return accepted;
+      if (name.equals("*")) anyAccepted = accepted;
+      start = end + 1;
+    }
+    return anyAccepted;
+  }
+
+  // Do the parameters of an Accept-Encoding element have q=0?
+  private static boolean isZeroQuality(String parameters)
   {
+    for (String parameter : parameters.split(";"))
+    {
+      String[] nameValue = parameter.split("=", 2);
+      if (nameValue.length == 2 && nameValue[0].trim().equalsIgnoreCase("q"))
+      {
+        try
+        {
+          return Double.parseDouble(nameValue[1].trim()) <= 0.0;
+        }
+        catch (NumberFormatException e)
+        {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  // The compressed formats in a comma-separated list of encodings.
+  private static CompressedContentFormat[] compressedFormats(String encodings) throws ServletException
+  {
+    List<CompressedContentFormat> formats = new ArrayList<CompressedContentFormat>();
+    for (String encoding : encodings.split(","))
+    {
+      encoding = encoding.trim();
+      if (encoding.isEmpty()) continue;
+      if (encoding.equals("br")) {
+        formats.add(CompressedContentFormat.BR);
+      } else if (encoding.equals("gzip")) {
+        formats.add(CompressedContentFormat.GZIP);
+      } else {
+        throw new ServletException("Invalid 'precompressed' initialization parameter: unknown encoding " + encoding);
+      }
+    }
+    return formats.toArray(new CompressedContentFormat[formats.size()]);
+  }
+
+  // Send a 304 (Not Modified) response, with the validators of the current version.
+  private void sendNotModified(ResourceVersion version, HttpServletResponse response)
+  {
+    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    response.setHeader(HttpHeader.ETAG.asString(), version.getETag());
+    response.setHeader(HttpHeader.LAST_MODIFIED.asString(), version.getLastModifiedValue());
+  }
+
+  // Send a file, or a compressed variant of a file. The mime-type is the mime-type of the original file.
+  private void returnFileContent(String urlPath, File file, ResourceVersion version, String mimeType, boolean compressOnDemand,
+      HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+  {
+    // Files that are compressed on demand come from the compression cache.
+    if (compressOnDemand)
+    {
+      HttpContent content = compressionCache.get(file, version);
+      if (statistics != null) statistics.compressionCache(content != null);
+      if (content == null) content = compressionCache.putCompressed(file, version, mimeType);
+      countBytesSent(request, content.getContentLengthValue());
+      putCachedHeaders(content, response);
+      sendCachedContent(content, response);
+      return;
+    }
+
+    // Small files may come from the content cache.
+    if (contentCache != null && contentCache.accepts(version))
+    {
+      HttpContent content = contentCache.get(file, version);
+      if (statistics != null) statistics.contentCache(content != null);
+      if (content == null) content = contentCache.put(file, version, mimeType);
+      countBytesSent(request, content.getContentLengthValue());
+      putCachedHeaders(content, response);
+      // Ranges are only taken from uncompressed files.
+      if (version.getContentEncoding() == null) response.setHeader(HttpHeader.ACCEPT_RANGES.asString(), "bytes");
+      sendCachedContent(content, response);
+      return;
+    }
+
 // without Jetty:
 //    response.setContentType(getMimeType(file));
 //    response.setContentLength((int) file.length());
 
     PathResource resource = new PathResource(file);
-    String mimeType = getMimeType(urlPath, file);
     HttpContent content = new ResourceHttpContent(resource, mimeType);
-    Response.putHeaders(response, content, Response.USE_KNOWN_CONTENT_LENGTH, true);
-    response.setDateHeader("Last-Modified", file.lastModified());
+    Response.putHeaders(response, content, Response.USE_KNOWN_CONTENT_LENGTH, false);
+    response.setHeader(HttpHeader.ETAG.asString(), version.getETag());
+    response.setHeader(HttpHeader.LAST_MODIFIED.asString(), version.getLastModifiedValue());
+    if (version.getContentEncoding() != null) {
+      response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), version.getContentEncoding().getEncoding());
+    } else {
+      response.setHeader(HttpHeader.ACCEPT_RANGES.asString(), "bytes");
+    }
+    long length = content.getContentLengthValue();
+    countBytesSent(request, length);
+    if (asyncThreshold > 0 && length >= asyncThreshold && request.isAsyncSupported())
+    {
+      // Large files are sent asynchronously, so that slow clients do not hold a request thread.
+      resource.close();
+      content.release();
+      AsyncFileSender.send(request.startAsync(), file, length, logger, "[" + urlPath + "]");
+      return;
+    }
     try (OutputStream out = response.getOutputStream())
     {
-      Files.copy(file.toPath(), out);
+      if (zeroCopyThreshold > 0 && length >= zeroCopyThreshold && out instanceof HttpOutput) {
+        sendMappedFile(file, length, (HttpOutput) out);
+      } else {
+        Files.copy(file.toPath(), out);
+      }
     }
     if (resource != null) resource.close();
     if (content != null) content.release();
   }
 
-  private String getMimeType(String urlPath, File file) throws IOException
+  // Send the requested ranges of a file, as 206 (Partial Content), or 416 (Range Not Satisfiable).
+  // Returns false if the whole file should be sent instead.
+  private boolean returnFileRanges(File file, ResourceVersion version, String mimeType, Enumeration<String> rangeHeaders,
+      HttpServletResponse response) throws IOException
+  {
+    long length = version.getLength();
+    List<InclusiveByteRange> ranges = InclusiveByteRange.satisfiableRanges(rangeHeaders, length);
+    if (ranges == null || ranges.isEmpty())
+    {
+      response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      response.setHeader(HttpHeader.CONTENT_RANGE.asString(), InclusiveByteRange.to416HeaderRangeString(length));
+      return true;
+    }
+    if (ranges.size() > MAX_RANGES) return false;
+
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setHeader(HttpHeader.ETAG.asString(), version.getETag());
+    response.setHeader(HttpHeader.LAST_MODIFIED.asString(), version.getLastModifiedValue());
+    response.setHeader(HttpHeader.ACCEPT_RANGES.asString(), "bytes");
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+         OutputStream out = response.getOutputStream())
+    {
+      if (ranges.size() == 1)
+      {
+        InclusiveByteRange range = ranges.get(0);
+        if (mimeType != null) response.setContentType(mimeType);
+        response.setContentLengthLong(range.getSize());
+        response.setHeader(HttpHeader.CONTENT_RANGE.asString(), range.toHeaderRangeString(length));
+        sendFileRange(channel, range, out);
+        if (statistics != null) statistics.bytesSent(range.getSize());
+      }
+      else
+      {
+        MultiPartOutputStream multi = new MultiPartOutputStream(out);
+        response.setContentType("multipart/byteranges; boundary=" + multi.getBoundary());
+        for (InclusiveByteRange range : ranges)
+        {
+          multi.startPart(mimeType == null ? "application/octet-stream" : mimeType,
+              new String[] {HttpHeader.CONTENT_RANGE.asString() + ": " + range.toHeaderRangeString(length)});
+          sendFileRange(channel, range, multi);
+          if (statistics != null) statistics.bytesSent(range.getSize());
+        }
+        multi.close();
+      }
+    }
+    return true;
+  }
+
+  // Send one range of a file. A Jetty response gets a memory-mapped region of the file, other responses get the bytes
+  // transferred from the position of the range in the file.
+  private void sendFileRange(FileChannel channel, InclusiveByteRange range, OutputStream out) throws IOException
+  {
+    if (out instanceof HttpOutput && range.getSize() <= Integer.MAX_VALUE) {
+      ((HttpOutput) out).write(channel.map(FileChannel.MapMode.READ_ONLY, range.getFirst(), range.getSize()));
+    } else {
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = range.getFirst();
+      long end = range.getFirst() + range.getSize();
+      while (position < end)
+      {
+        long transferred = channel.transferTo(position, end - position, target);
+        if (transferred <= 0) break;
+        position += transferred;
+      }
+    }
+  }
+
+  // Send a large file from a memory-mapped buffer, which Jetty writes to the network without copying it on the heap.
+  // Files that are too large to be mapped as a single buffer are sent from the file channel.
+  private void sendMappedFile(File file, long length, HttpOutput out) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      if (length <= Integer.MAX_VALUE) {
+        out.sendContent(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+      } else {
+        out.sendContent(channel);
+      }
+    }
+  }
+
+  // Count the bytes of a response body, which HEAD requests do not get.
+  private void countBytesSent(HttpServletRequest request, long bytes)
+  {
+    if (statistics != null && !"HEAD".equals(request.getMethod())) statistics.bytesSent(bytes);
+  }
+
+  // Send the status page, with the statistics as JSON.
+  private void sendStatus(HttpServletRequest request, HttpServletResponse response) throws IOException
+  {
+    String method = request.getMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method))
+    {
+      response.setHeader(HttpHeader.ALLOW.asString(), "GET, HEAD");
+      response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return;
+    }
+    if (statistics == null)
+    {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No statistics are kept.");
+      return;
+    }
+    byte[] json = statistics.toJson().getBytes(StandardCharsets.UTF_8);
+    response.setContentType("application/json; charset=utf-8");
+    response.setHeader(HttpHeader.CACHE_CONTROL.asString(), "no-store");
+    response.setContentLength(json.length);
+    response.getOutputStream().write(json);
+  }
+
+  // Set the headers for cached content. A Jetty response takes the precomputed header fields as they are.
+  private static void putCachedHeaders(HttpContent content, HttpServletResponse response)
   {
-    String mimeType = MimeTypes.getDefaultMimeByExtension(file.getName());
-    log(Level.INFO, urlPath, "File [" + file.getName() + "] has mime-type " + mimeType);
+    if (response instanceof Response) {
+      ((Response) response).putHeaders(content, Response.USE_KNOWN_CONTENT_LENGTH, true);
+    } else {
+      Response.putHeaders(response, content, Response.USE_KNOWN_CONTENT_LENGTH, true);
+    }
+  }
+
+  // Send content from the content cache. Jetty writes the direct buffer to the network without copying it.
+  private void sendCachedContent(HttpContent content, HttpServletResponse response) throws IOException
+  {
+    ServletOutputStream out = response.getOutputStream();
+    if (out instanceof HttpOutput) {
+      ((HttpOutput) out).sendContent(content);
+    } else {
+      try (WritableByteChannel channel = Channels.newChannel(out))
+      {
+        ByteBuffer buffer = content.getIndirectBuffer();
+        while (buffer.hasRemaining()) channel.write(buffer);
+      }
+    }
+  }
+
+  private String getMimeType(String urlPath, String fileName) throws IOException
+  {
+    String mimeType = MimeTypes.getDefaultMimeByExtension(fileName);
+    if (logger.isLoggable(Level.INFO)) log(Level.INFO, urlPath, "File [" + fileName + "] has mime-type " + mimeType);
     return mimeType;
   }
 
+  // Register the statistics as an MXBean. If that fails, the statistics are still available on the status page.
+  private void registerStatistics(String filterName)
+  {
+    try
+    {
+      ObjectName name = new ObjectName("nl.benjamins.exist.servlet:type=JBResourceServletFilter,name=" +
+          ObjectName.quote(filterName == null ? "JBResourceServletFilter" : filterName));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      // A previous instance of the filter (e.g., before a redeployment) may not have been destroyed.
+      if (server.isRegistered(name)) server.unregisterMBean(name);
+      server.registerMBean(new StandardMBean(statistics, FilterStatisticsMXBean.class, true), name);
+      statisticsName = name;
+    }
+    catch (JMException | RuntimeException e)
+    {
+      log(Level.WARNING, "JBResourceServletFilter: The statistics could not be registered in JMX: " + e);
+    }
+  }
+
+  private void unregisterStatistics()
+  {
+    if (statisticsName == null) return;
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+    }
+    catch (JMException | RuntimeException e)
+    {
+      // It is gone already.
+    }
+    statisticsName = null;
+  }
+
+  // Get a numeric initialization parameter.
+  private static long longParameter(FilterConfig config, String name, long defaultValue) throws ServletException
+  {
+    String value = config.getInitParameter(name);
+    if (value == null || value.trim().isEmpty()) return defaultValue;
+    try
+    {
+      return Long.parseLong(value.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      throw new ServletException("Invalid '" + name + "' initialization parameter: " + value);
+    }
+  }
+
   private void log(Level level, String message) {
     log(level, null, message);
   }
 
+  // Log a message, unless it is the same as the previous message. Repeated messages are counted, and the count is
+  // logged before the next different message. Callers on the request path should check the level first, so that the
+  // message is not even built when it is not logged.
   private void log(Level level, String urlPath, String message) {
+    if (!logger.isLoggable(level)) return;
     if (urlPath != null) {
       message = "[" + urlPath + "] " + message;
     }
-    if (message.equals(mostRecentMessage)) {
-      ++messageRepeats;
-      return;
-    }
-    if (messageRepeats > 0) {
-      logger.info(messageRepeats+" more like the above.");
-    }
-    mostRecentMessage = message;
-    messageRepeats = 0;
-    if (Level.SEVERE.equals(level)) {
-      logger.severe (message);
-    } else if (Level.WARNING.equals(level)) {
-      logger.warning(message);
-    } else {
-      logger.info(message);
+    // Comparing, counting and logging must happen together, or concurrent requests would mix up the counts.
+    synchronized (logLock) {
+      if (message.equals(mostRecentMessage)) {
+        ++messageRepeats;
+        return;
+      }
+      if (messageRepeats > 0) {
+        logger.info(messageRepeats+" more like the above.");
+      }
+      mostRecentMessage = message;
+      messageRepeats = 0;
+      if (Level.SEVERE.equals(level)) {
+        logger.severe (message);
+      } else if (Level.WARNING.equals(level)) {
+        logger.warning(message);
+      } else {
+        logger.info(message);
+      }
     }
   }
 
@@ -0,0 +1,56 @@
+package nl.benjamins.exist.servlet;
+
+// A summary of a latency histogram (see `FilterStatistics`), in microseconds.
+// Percentiles are the upper bounds of histogram buckets, whose bounds are powers of two.
+
+public final class LatencyStatistics
+{
+
+  private final long count;
+  private final long meanMicros;
+  private final long p50Micros;
+  private final long p90Micros;
+  private final long p99Micros;
+  private final long maxMicros;
+
+  LatencyStatistics(long count, long meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros)
+  {
+    this.count = count;
+    this.meanMicros = meanMicros;
+    this.p50Micros = p50Micros;
+    this.p90Micros = p90Micros;
+    this.p99Micros = p99Micros;
+    this.maxMicros = maxMicros;
+  }
+
+  public long getCount()
+  {
+    return count;
+  }
+
+  public long getMeanMicros()
+  {
+    return meanMicros;
+  }
+
+  public long getP50Micros()
+  {
+    return p50Micros;
+  }
+
+  public long getP90Micros()
+  {
+    return p90Micros;
+  }
+
+  public long getP99Micros()
+  {
+    return p99Micros;
+  }
+
+  public long getMaxMicros()
+  {
+    return maxMicros;
+  }
+
+}
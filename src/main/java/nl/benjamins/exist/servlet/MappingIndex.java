@@ -0,0 +1,335 @@
+package nl.benjamins.exist.servlet;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+// A dispatch index for the URL patterns of the resource mappings, compiled when the mappings are read.
+//
+// Each URL pattern is analysed for a literal prefix and a literal suffix, i.e., text that every matching URL must
+// start or end with. For example, `/journals/(.*)\.css` has the prefix `/journals/` and the suffix `.css`.
+// The prefixes are put into a trie. For a request URL, walking the trie gives the mappings whose prefix is a prefix
+// of the URL. Together with the mappings that have no prefix, and after checking the suffixes, these are the only
+// mappings that can possibly match the URL.
+//
+// The index does not decide which mapping matches; it only excludes mappings that cannot match. The filter still tries
+// the remaining mappings in document order, so the first mapping that matches wins, as before.
+// A pattern that cannot be analysed safely (top-level alternatives, embedded flags, unusual escapes) simply has no
+// prefix and no suffix, which means that it is always tried.
+
+final class MappingIndex
+{
+
+  private final int size;
+  // The mappings that do not have a literal prefix, and must always be tried.
+  private final BitSet unprefixed;
+  // The root of the prefix trie.
+  private final Node root;
+  // The literal suffix of each mapping, or null if it has none.
+  private final String[] suffixes;
+
+  MappingIndex(List<Pattern> patterns)
+  {
+    size = patterns.size();
+    unprefixed = new BitSet(size);
+    suffixes = new String[size];
+    Builder rootBuilder = new Builder();
+    for (int i = 0; i < size; ++i)
+    {
+      Pattern pattern = patterns.get(i);
+      List<Atom> atoms = pattern.flags() == 0 ? atoms(pattern.pattern()) : null;
+      String prefix = literalPrefix(atoms);
+      String suffix = literalSuffix(atoms);
+      if (prefix.isEmpty()) {
+        unprefixed.set(i);
+      } else {
+        rootBuilder.add(prefix, 0, i);
+      }
+      suffixes[i] = suffix.isEmpty() ? null : suffix;
+    }
+    root = rootBuilder.build();
+  }
+
+  // The mappings that may match the URL, in document order.
+  BitSet candidates(String urlPath)
+  {
+    BitSet candidates = (BitSet) unprefixed.clone();
+    Node node = root;
+    for (int i = 0, n = urlPath.length(); node != null; ++i)
+    {
+      if (node.mappings != null) candidates.or(node.mappings);
+      if (i == n) break;
+      node = node.child(urlPath.charAt(i));
+    }
+    for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+    {
+      if (suffixes[i] != null && !urlPath.endsWith(suffixes[i])) candidates.clear(i);
+    }
+    return candidates;
+  }
+
+
+  // A node in the prefix trie. The children are kept in sorted arrays, to make lookups cheap.
+  private static final class Node
+  {
+    private final char[] keys;
+    private final Node[] children;
+    // The mappings whose prefix ends at this node, or null.
+    private final BitSet mappings;
+
+    private Node(char[] keys, Node[] children, BitSet mappings)
+    {
+      this.keys = keys;
+      this.children = children;
+      this.mappings = mappings;
+    }
+
+    private Node child(char c)
+    {
+      int low = 0;
+      int high = keys.length - 1;
+      while (low <= high)
+      {
+        int middle = (low + high) >>> 1;
+        char key = keys[middle];
+        if (key < c) {
+          low = middle + 1;
+        } else if (key > c) {
+          high = middle - 1;
+        } else {
+          return children[middle];
+        }
+      }
+      return null;
+    }
+  }
+
+  // Mutable version of Node, only used while the trie is built.
+  private static final class Builder
+  {
+    private final TreeMap<Character, Builder> children = new TreeMap<>();
+    private BitSet mappings;
+
+    private void add(String prefix, int position, int mapping)
+    {
+      if (position == prefix.length()) {
+        if (mappings == null) mappings = new BitSet();
+        mappings.set(mapping);
+      } else {
+        children.computeIfAbsent(prefix.charAt(position), c -> new Builder()).add(prefix, position + 1, mapping);
+      }
+    }
+
+    private Node build()
+    {
+      char[] keys = new char[children.size()];
+      Node[] nodes = new Node[children.size()];
+      int i = 0;
+      for (Map.Entry<Character, Builder> child : children.entrySet())
+      {
+        keys[i] = child.getKey();
+        nodes[i] = child.getValue().build();
+        ++i;
+      }
+      return new Node(keys, nodes, mappings);
+    }
+  }
+
+
+  /* Analysis of regular expressions. */
+
+  // Kinds of quantifiers that may follow an atom.
+  private static final int ONCE = 0;
+  private static final int ONE_OR_MORE = 1;
+  private static final int OPTIONAL = 2;
+
+  // A top-level element of a regular expression.
+  private static final class Atom
+  {
+    // The literal character, or -1 if the atom is not a literal character.
+    private final int literal;
+    private int quantifier = ONCE;
+
+    private Atom(int literal)
+    {
+      this.literal = literal;
+    }
+  }
+
+  // The literal text that every string matching the atoms must start with.
+  private static String literalPrefix(List<Atom> atoms)
+  {
+    StringBuilder prefix = new StringBuilder();
+    if (atoms == null) return "";
+    for (Atom atom : atoms)
+    {
+      if (atom.literal < 0 || atom.quantifier == OPTIONAL) break;
+      prefix.append((char) atom.literal);
+      if (atom.quantifier == ONE_OR_MORE) break;
+    }
+    return prefix.toString();
+  }
+
+  // The literal text that every string matching the atoms must end with.
+  private static String literalSuffix(List<Atom> atoms)
+  {
+    StringBuilder suffix = new StringBuilder();
+    if (atoms == null) return "";
+    for (int i = atoms.size() - 1; i >= 0; --i)
+    {
+      Atom atom = atoms.get(i);
+      if (atom.literal < 0 || atom.quantifier == OPTIONAL) break;
+      suffix.append((char) atom.literal);
+      if (atom.quantifier == ONE_OR_MORE) break;
+    }
+    return suffix.reverse().toString();
+  }
+
+  // Split a regular expression into top-level atoms.
+  // Returns null if the regular expression has constructs that make literal prefixes or suffixes unreliable.
+  private static List<Atom> atoms(String regex)
+  {
+    List<Atom> atoms = new ArrayList<>();
+    int n = regex.length();
+    int i = 0;
+    // Anchors at the start and end do not matter, since the whole URL must match.
+    if (i < n && regex.charAt(i) == '^') ++i;
+    if (n > i && regex.charAt(n - 1) == '$' && !isEscaped(regex, n - 1)) --n;
+    while (i < n)
+    {
+      char c = regex.charAt(i);
+      Atom atom;
+      switch (c)
+      {
+      case '\\':
+        if (i + 1 >= n) return null;
+        char escaped = regex.charAt(i + 1);
+        if (Character.isLetterOrDigit(escaped)) {
+          // Escapes like \d, \w, \b are not literals. Escapes that take arguments are not analysed at all.
+          if ("0123456789ceknNpPQEux".indexOf(escaped) >= 0) return null;
+          atom = new Atom(-1);
+        } else {
+          atom = new Atom(escaped);
+        }
+        i += 2;
+        break;
+      case '[':
+        i = skipCharacterClass(regex, i, n);
+        if (i < 0) return null;
+        atom = new Atom(-1);
+        break;
+      case '(':
+        if (i + 2 < n && regex.charAt(i + 1) == '?' && "idmsuxU-".indexOf(regex.charAt(i + 2)) >= 0) return null;
+        i = skipGroup(regex, i, n);
+        if (i < 0) return null;
+        atom = new Atom(-1);
+        break;
+      case '|':
+        // Alternatives at the top level: there are no common prefixes or suffixes.
+        return null;
+      case ')':
+      case ']':
+      case '{':
+      case '}':
+      case '*':
+      case '+':
+      case '?':
+        // Unbalanced or misplaced; do not analyse.
+        return null;
+      case '.':
+      case '^':
+      case '$':
+        atom = new Atom(-1);
+        ++i;
+        break;
+      default:
+        atom = new Atom(c);
+        ++i;
+      }
+      // Look for a quantifier.
+      if (i < n)
+      {
+        char q = regex.charAt(i);
+        if (q == '+') {
+          atom.quantifier = ONE_OR_MORE;
+          ++i;
+        } else if (q == '*' || q == '?') {
+          atom.quantifier = OPTIONAL;
+          ++i;
+        } else if (q == '{') {
+          int close = regex.indexOf('}', i);
+          if (close < 0 || close >= n) return null;
+          atom.quantifier = OPTIONAL;
+          i = close + 1;
+        }
+        // Lazy and possessive quantifiers.
+        if (atom.quantifier != ONCE && i < n && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) ++i;
+      }
+      atoms.add(atom);
+    }
+    return atoms;
+  }
+
+  private static boolean isEscaped(String regex, int position)
+  {
+    int backslashes = 0;
+    while (position - backslashes - 1 >= 0 && regex.charAt(position - backslashes - 1) == '\\') ++backslashes;
+    return backslashes % 2 == 1;
+  }
+
+  // Returns the position after the character class that starts at position start, or -1.
+  private static int skipCharacterClass(String regex, int start, int n)
+  {
+    int depth = 0;
+    int i = start;
+    while (i < n)
+    {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (c == '[') {
+        ++depth;
+        // A ']' directly after '[' or '[^' is a literal.
+        if (i + 1 < n && regex.charAt(i + 1) == '^') ++i;
+        if (i + 1 < n && regex.charAt(i + 1) == ']') ++i;
+      } else if (c == ']') {
+        if (--depth == 0) return i + 1;
+      }
+      ++i;
+    }
+    return -1;
+  }
+
+  // Returns the position after the group that starts at position start, or -1.
+  private static int skipGroup(String regex, int start, int n)
+  {
+    int depth = 0;
+    int i = start;
+    while (i < n)
+    {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (c == '[') {
+        i = skipCharacterClass(regex, i, n);
+        if (i < 0) return -1;
+        continue;
+      }
+      if (c == '(') {
+        ++depth;
+      } else if (c == ')') {
+        if (--depth == 0) return i + 1;
+      }
+      ++i;
+    }
+    return -1;
+  }
+
+}
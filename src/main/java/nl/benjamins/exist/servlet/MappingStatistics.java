@@ -0,0 +1,51 @@
+package nl.benjamins.exist.servlet;
+
+// The statistics of one mapping (see `FilterStatistics`), since the mappings file was last read.
+// Hits are requests that were served from a file of the mapping. Misses are requests whose URL matched the mapping,
+// but whose file did not exist, so that they were passed on.
+
+public final class MappingStatistics
+{
+
+  private final int index;
+  private final String url;
+  private final String to;
+  private final long hits;
+  private final long misses;
+
+  MappingStatistics(int index, String url, String to, long hits, long misses)
+  {
+    this.index = index;
+    this.url = url;
+    this.to = to;
+    this.hits = hits;
+    this.misses = misses;
+  }
+
+  // The position of the mapping in the mappings file, starting at 1.
+  public int getIndex()
+  {
+    return index;
+  }
+
+  public String getUrl()
+  {
+    return url;
+  }
+
+  public String getTo()
+  {
+    return to;
+  }
+
+  public long getHits()
+  {
+    return hits;
+  }
+
+  public long getMisses()
+  {
+    return misses;
+  }
+
+}
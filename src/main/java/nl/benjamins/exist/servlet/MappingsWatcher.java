@@ -0,0 +1,151 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// A background thread that notices changes to the resource mappings file, so that requests never have to check it.
+//
+// The directory of the mappings file is watched with a WatchService. Editors often save a file by writing a new file
+// and renaming it, so both modified and created entries count. Events come in bursts while a file is written, so the
+// watcher waits a little and collects the whole burst before it reports a change, but not longer than SETTLE_MAX_MS.
+// The watcher also reports a possible change every `pollInterval` milliseconds when there are no events. This is the
+// fallback for file systems where a WatchService does not see changes (e.g., network file systems), or has no
+// native support at all. If the directory cannot be watched, the watcher only polls.
+// The listener must find out for itself whether the file has really changed, e.g. from its modification time.
+
+final class MappingsWatcher implements Runnable
+{
+
+  // How long to wait for more events after the last event of a burst, and how long a burst may last at most. A file
+  // that is written all the time is still reported, once per SETTLE_MAX_MS.
+  private static final long SETTLE_MS = 200L;
+  private static final long SETTLE_MAX_MS = 5 * SETTLE_MS;
+
+  private final Path file;
+  private final long pollInterval;
+  private final Runnable listener;
+  private final Logger logger;
+  private volatile boolean stopped = false;
+  private volatile WatchService watchService;
+  private Thread thread;
+
+  MappingsWatcher(Path file, long pollInterval, Runnable listener, Logger logger)
+  {
+    this.file = file.toAbsolutePath();
+    this.pollInterval = pollInterval;
+    this.listener = listener;
+    this.logger = logger;
+  }
+
+  void start()
+  {
+    thread = new Thread(this, "JBResourceServletFilter mappings watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop()
+  {
+    stopped = true;
+    closeWatchService();
+    if (thread != null) thread.interrupt();
+  }
+
+  @Override
+  public void run()
+  {
+    watchService = newWatchService();
+    if (stopped) closeWatchService();
+    while (!stopped)
+    {
+      try
+      {
+        waitForChange();
+        if (!stopped) listener.run();
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      catch (RuntimeException e)
+      {
+        // The watcher must keep running, whatever happens to one reload.
+        logger.log(Level.SEVERE, "JBResourceServletFilter: Checking the mappings failed.", e);
+      }
+    }
+  }
+
+  // Wait until there are events for the mappings file, or until it is time to poll.
+  private void waitForChange() throws InterruptedException
+  {
+    WatchService service = watchService;
+    if (service == null)
+    {
+      Thread.sleep(pollInterval);
+      return;
+    }
+    try
+    {
+      WatchKey key = service.poll(pollInterval, TimeUnit.MILLISECONDS);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MAX_MS);
+      while (key != null)
+      {
+        key.pollEvents();
+        if (!key.reset())
+        {
+          // The directory is gone; from now on, only poll.
+          logger.warning("JBResourceServletFilter: The directory of the mappings file cannot be watched anymore. Polling for changes.");
+          closeWatchService();
+          return;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) return;
+        // Events that arrive after the deadline are left for the next call, which reports them right away.
+        key = service.poll(Math.min(TimeUnit.MILLISECONDS.toNanos(SETTLE_MS), remaining), TimeUnit.NANOSECONDS);
+      }
+    }
+    catch (ClosedWatchServiceException e)
+    {
+      // Stopped, or the directory is gone.
+    }
+  }
+
+  private WatchService newWatchService()
+  {
+    Path directory = file.getParent();
+    try
+    {
+      WatchService service = file.getFileSystem().newWatchService();
+      directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      return service;
+    }
+    catch (IOException | UnsupportedOperationException e)
+    {
+      logger.warning("JBResourceServletFilter: Cannot watch [" + directory + "] for changes (" + e + "). Polling for changes.");
+      return null;
+    }
+  }
+
+  private void closeWatchService()
+  {
+    WatchService service = watchService;
+    watchService = null;
+    if (service == null) return;
+    try
+    {
+      service.close();
+    }
+    catch (IOException e)
+    {
+      // Nothing to be done.
+    }
+  }
+
+}
@@ -0,0 +1,99 @@
+package nl.benjamins.exist.servlet;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+// An immutable snapshot of the resource mappings file.
+//
+// The JBResourceServletFilter builds a new snapshot whenever the mappings file has changed, and publishes it by
+// replacing a single volatile reference. Requests read whatever snapshot is current, without taking a lock.
+// Everything a request needs from the mappings file must therefore be in this class, and must never be modified
+// after construction.
+
+final class ResourceMappings
+{
+
+  // The snapshot that is used before the mappings file has been read.
+  static final ResourceMappings NONE = new ResourceMappings(null, null, null, null, false, 0L);
+
+  // Pattern for URLs that are passed on without looking at the mappings, or null.
+  private final Pattern ignoreUrlPattern;
+
+  // The mappings from URL pattern to file path, in document order, or null if no mappings are available.
+  private final List<Pair<Pattern, String>> mappings;
+
+  // The caching policy of each mapping, or null for mappings without one.
+  private final List<CachePolicy> cachePolicies;
+
+  // The bundles by URL path. Never null.
+  private final Map<String, Bundle> bundles;
+
+  // The compiled dispatch index for the mappings, or null if the mappings are tried one by one.
+  private final MappingIndex index;
+
+  // The modification time of the mappings file that this snapshot was read from.
+  private final long lastModified;
+
+  ResourceMappings(Pattern ignoreUrlPattern, List<Pair<Pattern, String>> mappings, List<CachePolicy> cachePolicies,
+      Map<String, Bundle> bundles, boolean compile, long lastModified)
+  {
+    this.ignoreUrlPattern = ignoreUrlPattern;
+    this.mappings = mappings == null ? null : Collections.unmodifiableList(mappings);
+    this.cachePolicies = cachePolicies == null ? null : Collections.unmodifiableList(cachePolicies);
+    this.bundles = bundles == null ? Collections.emptyMap() : Collections.unmodifiableMap(bundles);
+    this.index = mappings != null && compile
+        ? new MappingIndex(mappings.stream().map(Pair::getLeft).collect(Collectors.toList()))
+        : null;
+    this.lastModified = lastModified;
+  }
+
+  boolean isIgnored(String urlPath)
+  {
+    return ignoreUrlPattern != null && ignoreUrlPattern.matcher(urlPath).matches();
+  }
+
+  boolean isAvailable()
+  {
+    return mappings != null;
+  }
+
+  List<Pair<Pattern, String>> getMappings()
+  {
+    return mappings;
+  }
+
+  // The caching policy of a mapping, or null if it has none.
+  CachePolicy getCachePolicy(int mapping)
+  {
+    return cachePolicies == null ? null : cachePolicies.get(mapping);
+  }
+
+  // The bundle for a URL path, or null if there is none.
+  Bundle getBundle(String urlPath)
+  {
+    return bundles.get(urlPath);
+  }
+
+  int getBundleCount()
+  {
+    return bundles.size();
+  }
+
+  // The mappings that may match the URL, in document order, or null if every mapping must be tried.
+  BitSet candidates(String urlPath)
+  {
+    return index == null ? null : index.candidates(urlPath);
+  }
+
+  long getLastModified()
+  {
+    return lastModified;
+  }
+
+}
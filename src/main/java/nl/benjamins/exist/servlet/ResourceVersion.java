@@ -0,0 +1,171 @@
+package nl.benjamins.exist.servlet;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.http.CompressedContentFormat;
+import org.eclipse.jetty.http.DateGenerator;
+import org.eclipse.jetty.http.HttpHeader;
+
+// The validators of a version of a resource file: its modification time and size, and the ETag derived from them.
+//
+// The ETag is a strong entity tag of the form "<modification time>-<size>", both in hexadecimal, like the ETags of
+// most web servers. It is computed once per version of a file, and kept with the resolution of its URL.
+// With the validators, a conditional request (If-None-Match, If-Modified-Since) can be answered with
+// 304 Not Modified without opening the file.
+//
+// A precompressed variant of a file (e.g., `style.css.gz` for `style.css`) has its own modification time and size,
+// but its ETag is the ETag of the original file with a suffix for the encoding (e.g., "--gzip"), as Jetty does.
+// Conditional requests ignore these suffixes, so that an ETag of one variant validates all variants.
+
+final class ResourceVersion
+{
+
+  private final long lastModified;
+  private final long length;
+  private final String etag;
+  private final String lastModifiedValue;
+  // The content encoding of a compressed variant, or null.
+  private final CompressedContentFormat contentEncoding;
+
+  ResourceVersion(BasicFileAttributes attributes)
+  {
+    this.lastModified = attributes.lastModifiedTime().toMillis();
+    this.length = attributes.size();
+    this.etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+    this.lastModifiedValue = DateGenerator.formatDate(lastModified);
+    this.contentEncoding = null;
+  }
+
+  // The version of a compressed variant of the original file, which has the given attributes.
+  ResourceVersion(BasicFileAttributes attributes, ResourceVersion original, CompressedContentFormat contentEncoding)
+  {
+    this.lastModified = attributes.lastModifiedTime().toMillis();
+    this.length = attributes.size();
+    this.etag = contentEncoding.etag(original.etag);
+    this.lastModifiedValue = DateGenerator.formatDate(lastModified);
+    this.contentEncoding = contentEncoding;
+  }
+
+  // A version with its own validators, for content that is not a single file, such as a bundle.
+  ResourceVersion(long lastModified, long length, String etag)
+  {
+    this.lastModified = lastModified;
+    this.length = length;
+    this.etag = etag;
+    this.lastModifiedValue = DateGenerator.formatDate(lastModified);
+    this.contentEncoding = null;
+  }
+
+  // Is this the version of the file with these attributes?
+  boolean matches(BasicFileAttributes attributes)
+  {
+    return lastModified == attributes.lastModifiedTime().toMillis() && length == attributes.size();
+  }
+
+  // Is this the same version of the same file as the other version?
+  boolean isSameAs(ResourceVersion other)
+  {
+    return lastModified == other.lastModified && length == other.length && etag.equals(other.etag);
+  }
+
+  long getLastModified()
+  {
+    return lastModified;
+  }
+
+  long getLength()
+  {
+    return length;
+  }
+
+  String getETag()
+  {
+    return etag;
+  }
+
+  // The content encoding, or null for an uncompressed file.
+  CompressedContentFormat getContentEncoding()
+  {
+    return contentEncoding;
+  }
+
+  // The modification time formatted as an HTTP date.
+  String getLastModifiedValue()
+  {
+    return lastModifiedValue;
+  }
+
+  // Does the request already have this version, according to its conditional headers?
+  // If-None-Match takes precedence over If-Modified-Since (RFC 7232, section 6).
+  boolean isNotModified(HttpServletRequest request)
+  {
+    String method = request.getMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method)) return false;
+    Enumeration<String> ifNoneMatch = request.getHeaders(HttpHeader.IF_NONE_MATCH.asString());
+    if (ifNoneMatch != null && ifNoneMatch.hasMoreElements())
+    {
+      while (ifNoneMatch.hasMoreElements())
+      {
+        if (matchesAny(ifNoneMatch.nextElement())) return true;
+      }
+      return false;
+    }
+    long ifModifiedSince;
+    try
+    {
+      ifModifiedSince = request.getDateHeader(HttpHeader.IF_MODIFIED_SINCE.asString());
+    }
+    catch (IllegalArgumentException e)
+    {
+      // An invalid date is ignored.
+      return false;
+    }
+    // HTTP dates have a resolution of seconds.
+    return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+
+  // May a Range header in the request be used for this version, according to If-Range?
+  // An entity tag in If-Range must be equal to the ETag (strong comparison), a date must be equal to the modification time.
+  boolean isRangeAllowed(HttpServletRequest request)
+  {
+    String ifRange = request.getHeader(HttpHeader.IF_RANGE.asString());
+    if (ifRange == null) return true;
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.equals(etag);
+    try
+    {
+      return request.getDateHeader(HttpHeader.IF_RANGE.asString()) / 1000 == lastModified / 1000;
+    }
+    catch (IllegalArgumentException e)
+    {
+      return false;
+    }
+  }
+
+  // Does a list of entity tags contain this version's ETag? Comparison is weak, as required for If-None-Match.
+  private boolean matchesAny(String entityTags)
+  {
+    int start = 0;
+    int n = entityTags.length();
+    while (start < n)
+    {
+      int end = entityTags.indexOf(',', start);
+      if (end < 0) end = n;
+      String tag = entityTags.substring(start, end).trim();
+      if (tag.equals("*")) return true;
+      if (tag.startsWith("W/")) tag = tag.substring(2);
+      if (stripEncoding(tag).equals(stripEncoding(etag))) return true;
+      start = end + 1;
+    }
+    return false;
+  }
+
+  // Remove the suffix that a compressed variant adds to an ETag.
+  private static String stripEncoding(String tag)
+  {
+    return CompressedContentFormat.BR.stripSuffixes(CompressedContentFormat.GZIP.stripSuffixes(tag));
+  }
+
+}
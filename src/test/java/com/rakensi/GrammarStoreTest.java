@@ -0,0 +1,179 @@
+package com.rakensi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * A parser that is written to the grammar store and read back must parse every input as the generated parser does,
+ * and files that are damaged or written by another version of Markup Blitz must not be used.
+ */
+public class GrammarStoreTest {
+
+    private static final String DATE_GRAMMAR =
+        "date = year, -'-', month, -'-', day . year = d, d, d, d . month = '0', d | '1', ['0'|'1'|'2'] . " +
+        "day = ['0'|'1'|'2'], d | '3', ['0'|'1'] . -d = ['0'-'9'] .";
+    private static final String[] DATE_INPUTS = {"2024-01-31", "1999-12-09", "2024-13-01", "2024-1-1", ""};
+
+    // A modification time of the stored files, to see whether a file was written again.
+    private static final FileTime OLD = FileTime.fromMillis(1000000000000L);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void smallGrammarRoundTrip() throws Exception {
+        roundTrip(DATE_GRAMMAR, DATE_INPUTS);
+    }
+
+    @Test
+    public void ixmlGrammarRoundTrip() throws Exception {
+        final String ixml = ixmlGrammar();
+        // The grammar of ixml parses grammars, and fails on inputs that are not grammars.
+        roundTrip(ixml, ixml, DATE_GRAMMAR, "s = 'x' .", "s = 'x'", "s: 'x'.", "not a grammar");
+    }
+
+    @Test
+    public void optionsAreStoredSeparately() throws Exception {
+        final Path directory = folder.newFolder("store").toPath();
+        final ParserCache cache = cache(directory);
+        cache.get(DATE_GRAMMAR);
+        cache.get(DATE_GRAMMAR, Blitz.Option.FAIL_ON_ERROR);
+        assertEquals(2, storedFiles(directory).size());
+    }
+
+    @Test
+    public void damagedFileIsDeletedWhenTheStoreIsOpened() throws Exception {
+        final Path directory = folder.newFolder("store").toPath();
+        cache(directory).get(DATE_GRAMMAR);
+        final Path file = storedFiles(directory).get(0);
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x55;
+        Files.write(file, bytes);
+        Files.write(directory.resolve("left-behind.tmp"), new byte[] {1, 2, 3});
+        Files.write(directory.resolve("short.blitz"), new byte[] {1, 2, 3});
+
+        final ParserCache cache = cache(directory);
+        assertTrue(storedFiles(directory).isEmpty());
+        assertFalse(Files.exists(directory.resolve("left-behind.tmp")));
+        // The parser is generated and stored again.
+        assertSameResults(Blitz.generate(DATE_GRAMMAR), cache.get(DATE_GRAMMAR), DATE_INPUTS);
+        assertEquals(1, storedFiles(directory).size());
+    }
+
+    @Test
+    public void damagedFileIsReplacedWhenItIsLoaded() throws Exception {
+        final Path directory = folder.newFolder("store").toPath();
+        // Without a cache, every parser is read from the store.
+        final ParserCache uncached = new ParserCache(0, 0);
+        uncached.setStoreDirectory(directory);
+        uncached.get(DATE_GRAMMAR);
+        // Damaged after the store was opened.
+        final Path file = storedFiles(directory).get(0);
+        final byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 100));
+
+        assertSameResults(Blitz.generate(DATE_GRAMMAR), uncached.get(DATE_GRAMMAR), DATE_INPUTS);
+        assertArrayEquals(bytes, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void fileOfAnotherBlitzVersionIsDeleted() throws Exception {
+        final Path directory = folder.newFolder("store").toPath();
+        cache(directory).get(DATE_GRAMMAR);
+        final Path file = storedFiles(directory).get(0);
+        // The same file, with a valid checksum, as another version of Markup Blitz would have written it.
+        Files.write(file, withVersion(Files.readAllBytes(file), "0.0-other"));
+
+        final ParserCache cache = cache(directory);
+        assertTrue(storedFiles(directory).isEmpty());
+        assertSameResults(Blitz.generate(DATE_GRAMMAR), cache.get(DATE_GRAMMAR), DATE_INPUTS);
+        assertEquals(1, storedFiles(directory).size());
+    }
+
+    // Generate a parser into an empty store, read it back in another cache, and compare the results of both.
+    private void roundTrip(final String grammar, final String... inputs) throws Exception {
+        final Path directory = folder.newFolder("store").toPath();
+        final Parser generated = cache(directory).get(grammar);
+        final List<Path> files = storedFiles(directory);
+        assertEquals(1, files.size());
+        Files.setLastModifiedTime(files.get(0), OLD);
+
+        final Parser stored = cache(directory).get(grammar);
+        assertNotSame(generated, stored);
+        // The parser was read, not generated and written again.
+        assertEquals(files, storedFiles(directory));
+        assertEquals(OLD, Files.getLastModifiedTime(files.get(0)));
+        assertSameResults(generated, stored, inputs);
+    }
+
+    private static void assertSameResults(final Parser expected, final Parser actual, final String... inputs) {
+        boolean failed = false;
+        for (final String input : inputs) {
+            final String output = expected.parse(input);
+            failed |= output.contains("ixml:state=\"failed\"");
+            assertEquals("'" + input + "'", output, actual.parse(input));
+        }
+        assertTrue("Some inputs must fail", failed);
+    }
+
+    // A cache that keeps every parser, with a store in a directory.
+    private static ParserCache cache(final Path directory) {
+        final ParserCache cache = new ParserCache(ParserCache.DEFAULT_MAX_COUNT, Long.MAX_VALUE);
+        cache.setStoreDirectory(directory);
+        return cache;
+    }
+
+    private static List<Path> storedFiles(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".blitz")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static String ixmlGrammar() throws IOException {
+        try (final InputStream in = Blitz.class.getResourceAsStream("blitz/ixml.ixml")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // A stored file with another Markup Blitz version in its header, and the checksum that goes with it.
+    private static byte[] withVersion(final byte[] bytes, final String version) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(content);
+        out.writeInt(in.readInt());
+        out.writeInt(in.readInt());
+        in.readUTF();
+        out.writeUTF(version);
+        out.write(in.readAllBytes());
+        final CRC32 crc = new CRC32();
+        crc.update(content.toByteArray());
+        out.writeLong(crc.getValue());
+        return content.toByteArray();
+    }
+}
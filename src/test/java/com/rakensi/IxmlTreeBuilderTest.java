@@ -0,0 +1,127 @@
+package com.rakensi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.memtree.SAXAdapter;
+import org.exist.xquery.XQueryContext;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * The document that IxmlTreeBuilder builds from the output of Markup Blitz must be the same as the one that an XML
+ * parser builds from it, as fn:parse-xml did, also for parse trees that are too deep for recursion.
+ */
+public class IxmlTreeBuilderTest {
+
+    @Test
+    public void deeplyNestedParseTree() throws Exception {
+        final Parser parser = Blitz.generate("s: 'a', s? .");
+        // Markup Blitz writes its output recursively, so it needs a larger stack than the tree builder.
+        final String[] output = new String[1];
+        final Thread thread = new Thread(null, () -> output[0] = parser.parse("a".repeat(5000)), "parser", 256L << 20);
+        thread.start();
+        thread.join();
+        final Document document = IxmlTreeBuilder.build(output[0], new MemTreeBuilder());
+        assertSameTree(parseXml(output[0]), document);
+        assertEquals(5000, depth(document));
+    }
+
+    @Test
+    public void attributesNamespacesAndEscapes() throws Exception {
+        final Parser parser = Blitz.generate(
+            "record = field++-',' . field = @name, -'=', value . @name = ['a'-'z']+ . value = ~[',']* .");
+        for (final String input : new String[] {"a=<&>\"',b=", "x=1", "no equals sign"}) {
+            final String output = parser.parse(input);
+            assertSameTree(parseXml(output), IxmlTreeBuilder.build(output, new MemTreeBuilder()));
+        }
+    }
+
+    // The document that an XML parser builds from the output, as fn:parse-xml does.
+    private static Document parseXml(final String xml) throws Exception {
+        final SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final XMLReader reader = factory.newSAXParser().getXMLReader();
+        final SAXAdapter adapter = new SAXAdapter(new XQueryContext());
+        reader.setContentHandler(adapter);
+        reader.parse(new InputSource(new StringReader(xml)));
+        return adapter.getDocument();
+    }
+
+    // Compare two trees in document order, without recursion.
+    private static void assertSameTree(final Node expected, final Node actual) {
+        Node e = expected;
+        Node a = actual;
+        while (e != null) {
+            assertSameNode(e, a);
+            if (e.getFirstChild() != null) {
+                e = e.getFirstChild();
+                a = a.getFirstChild();
+                continue;
+            }
+            assertNull(a.getFirstChild());
+            while (e != null && e != expected && e.getNextSibling() == null) {
+                assertNull(a.getNextSibling());
+                e = e.getParentNode();
+                a = a.getParentNode();
+            }
+            if (e == null || e == expected) {
+                return;
+            }
+            e = e.getNextSibling();
+            a = a.getNextSibling();
+        }
+    }
+
+    private static void assertSameNode(final Node expected, final Node actual) {
+        assertEquals(expected.getNodeType(), actual.getNodeType());
+        assertEquals(expected.getNamespaceURI(), actual.getNamespaceURI());
+        assertEquals(expected.getNodeName(), actual.getNodeName());
+        if (expected.getNodeType() == Node.TEXT_NODE) {
+            assertEquals(expected.getNodeValue(), actual.getNodeValue());
+        }
+        assertEquals(attributes(expected), attributes(actual));
+    }
+
+    // The attributes and namespace declarations of a node, sorted by name.
+    private static List<String> attributes(final Node node) {
+        final List<String> attributes = new ArrayList<>();
+        final NamedNodeMap map = node.getAttributes();
+        for (int i = 0; map != null && i < map.getLength(); ++i) {
+            final Node attribute = map.item(i);
+            attributes.add(attribute.getNodeName() + " {" + attribute.getNamespaceURI() + "} " + attribute.getNodeValue());
+        }
+        Collections.sort(attributes);
+        return attributes;
+    }
+
+    // The number of nested elements.
+    private static int depth(final Document document) {
+        int depth = 0;
+        Node element = document.getDocumentElement();
+        while (element != null) {
+            ++depth;
+            Node child = element.getFirstChild();
+            while (child != null && child.getNodeType() != Node.ELEMENT_NODE) {
+                child = child.getNextSibling();
+            }
+            element = child;
+        }
+        return depth;
+    }
+}
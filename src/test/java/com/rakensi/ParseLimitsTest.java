@@ -0,0 +1,126 @@
+package com.rakensi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.ValueSequence;
+import org.junit.After;
+import org.junit.Test;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * Parses with a timeout, also those of rxf:invisible-xml-parse-many, run on a bounded number of threads. A parse that
+ * goes on after its timeout keeps its thread, and when all threads are taken, another parse with a timeout fails at once.
+ */
+public class ParseLimitsTest {
+
+    // An ambiguous grammar, for which the time of a parse grows exponentially with the length of the input.
+    private static final String SLOW_GRAMMAR = "s = s, s | 'x' .";
+    private static final Parser SLOW_PARSER = Blitz.generate(SLOW_GRAMMAR);
+    private static final String SLOW_INPUT = "x".repeat(14);
+
+    @After
+    public void resetTimeoutThreads() {
+        ParseLimits.setTimeoutThreads(0);
+    }
+
+    @Test
+    public void parseWithinTimeout() throws XPathException {
+        assertTrue(limits(10000).parse(null, SLOW_PARSER, "xx", "The input").contains("<s>"));
+    }
+
+    @Test
+    public void runawayParseHoldsItsThread() throws Exception {
+        ParseLimits.setTimeoutThreads(1);
+        final ParseLimits limits = limits(100);
+        try {
+            limits.parse(null, SLOW_PARSER, SLOW_INPUT, "The input");
+            fail("The parse takes seconds");
+        } catch (final XPathException e) {
+            assertEquals(ParseLimits.RXIX0001, e.getErrorCode());
+            assertTrue(e.getMessage(), e.getMessage().contains("within timeout 100 ms"));
+        }
+        // The runaway parse still has the only thread.
+        try {
+            limits(10000).parse(null, SLOW_PARSER, "xx", "The input");
+            fail("All threads are busy");
+        } catch (final XPathException e) {
+            assertEquals(ParseLimits.RXIX0001, e.getErrorCode());
+            assertTrue(e.getMessage(), e.getMessage().contains("are busy"));
+        }
+        // When the runaway parse has ended, its thread can be used again.
+        final long end = System.currentTimeMillis() + 120000;
+        while (true) {
+            try {
+                assertTrue(limits(10000).parse(null, SLOW_PARSER, "xx", "The input").contains("<s>"));
+                break;
+            } catch (final XPathException e) {
+                assertTrue("The runaway parse does not end", System.currentTimeMillis() < end);
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @Test
+    public void runawayParseManyHoldsTheThreadsForParsingWithATimeout() throws Exception {
+        ParseLimits.setTimeoutThreads(1);
+        try {
+            parseMany(100L, SLOW_INPUT, SLOW_INPUT);
+            fail("The parse takes seconds");
+        } catch (final XPathException e) {
+            assertEquals(ParseLimits.RXIX0001, e.getErrorCode());
+            assertTrue(e.getMessage(), e.getMessage().contains("within timeout 100 ms"));
+        }
+        try {
+            parseMany(10000L, "xx");
+            fail("All threads for parsing with a timeout are busy");
+        } catch (final XPathException e) {
+            assertEquals(ParseLimits.RXIX0001, e.getErrorCode());
+            assertTrue(e.getMessage(), e.getMessage().contains("are busy"));
+        }
+        // Without a timeout, the pool of rxf:invisible-xml-parse-many is used, which the runaway parse does not hold.
+        assertEquals(2, parseMany(null, "xx", "xxx").getItemCount());
+        // The runaway task takes no more inputs after the timeout, so its thread is free after one input.
+        final long end = System.currentTimeMillis() + 120000;
+        while (true) {
+            try {
+                assertEquals(1, parseMany(10000L, "xx").getItemCount());
+                break;
+            } catch (final XPathException e) {
+                assertTrue("The runaway parse does not end", System.currentTimeMillis() < end);
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // Parse inputs with rxf:invisible-xml-parse-many and the slow grammar, with or without a timeout.
+    private static Sequence parseMany(final Long timeout, final String... inputs) throws XPathException {
+        final XQueryContext context = new XQueryContext();
+        final MapType options = new MapType(context);
+        if (timeout != null) {
+            options.add(new StringValue(ParseLimits.TIMEOUT), new IntegerValue(timeout));
+        }
+        final ValueSequence strings = new ValueSequence();
+        for (final String input : inputs) {
+            strings.add(new StringValue(input));
+        }
+        return new FnInvisibleXmlParseMany(context, FnInvisibleXmlParseMany.FS_INVISIBLE_XML_PARSE_MANY)
+            .eval(new Sequence[] {new StringValue(SLOW_GRAMMAR), strings, options}, null);
+    }
+
+    // The limits for an options map with a timeout.
+    private static ParseLimits limits(final long timeout) throws XPathException {
+        final MapType options = new MapType(new XQueryContext());
+        options.add(new StringValue(ParseLimits.TIMEOUT), new IntegerValue(timeout));
+        return ParseLimits.get(null, options);
+    }
+}
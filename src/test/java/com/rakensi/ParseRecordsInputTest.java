@@ -0,0 +1,93 @@
+package com.rakensi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.exist.security.Subject;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.AnyURIValue;
+import org.exist.xquery.value.Base64BinaryValueType;
+import org.exist.xquery.value.BinaryValueFromBinaryString;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The input of rxf:invisible-xml-parse-records that cannot be read, or that is not valid in its encoding, raises an
+ * XQuery error.
+ */
+public class ParseRecordsInputTest {
+
+    private static final String GRAMMAR = "word = [L]+ .";
+    private static final byte[] LATIN_1 = "café\nnaïve\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final XQueryContext context = new DbaContext();
+
+    // eXist loads the module, which registers its functions, before a function is made.
+    @BeforeClass
+    public static void loadModule() {
+        assertNotNull(ExtensionFunctionsModule.functions);
+    }
+
+    @Test
+    public void binaryInputInTheDeclaredEncoding() throws XPathException {
+        final Sequence result = parseRecords(binary(LATIN_1), "ISO-8859-1");
+        assertEquals(2, result.getItemCount());
+        assertEquals("café", result.itemAt(0).getStringValue());
+        assertEquals("naïve", result.itemAt(1).getStringValue());
+    }
+
+    @Test
+    public void binaryInputInAnotherEncodingRaisesAnError() throws XPathException {
+        try {
+            parseRecords(binary(LATIN_1), null);
+            fail("The input is not UTF-8");
+        } catch (final XPathException e) {
+            assertEquals(ErrorCodes.FOUT1190, e.getErrorCode());
+            assertTrue(e.getMessage(), e.getMessage().contains("UTF-8"));
+        }
+    }
+
+    @Test
+    public void uriThatIsNotAFileRaisesAnError() throws XPathException {
+        try {
+            parseRecords(new AnyURIValue("xmldb:exist:///db/data/dates.txt"), null);
+            fail("The URI is not a file");
+        } catch (final XPathException e) {
+            assertEquals(ErrorCodes.FODC0002, e.getErrorCode());
+            assertTrue(e.getMessage(), e.getMessage().contains("xmldb:exist:///db/data/dates.txt"));
+        }
+    }
+
+    private Sequence parseRecords(final Sequence input, final String encoding) throws XPathException {
+        final MapType options = new MapType(context);
+        if (encoding != null) {
+            options.add(new StringValue("encoding"), new StringValue(encoding));
+        }
+        return new FnInvisibleXmlParseRecords(context, FnInvisibleXmlParseRecords.FS_INVISIBLE_XML_PARSE_RECORDS[0])
+            .eval(new Sequence[] {new StringValue(GRAMMAR), input, options}, null);
+    }
+
+    private static Sequence binary(final byte[] bytes) throws XPathException {
+        return new BinaryValueFromBinaryString(new Base64BinaryValueType(), Base64.getEncoder().encodeToString(bytes));
+    }
+
+    // A context of a DBA, who may read files on the server, without a database.
+    private static final class DbaContext extends XQueryContext {
+        @Override
+        public Subject getSubject() {
+            return (Subject) Proxy.newProxyInstance(Subject.class.getClassLoader(), new Class<?>[] {Subject.class},
+                (proxy, method, args) -> "hasDbaRole".equals(method.getName()) ? Boolean.TRUE : null);
+        }
+    }
+}
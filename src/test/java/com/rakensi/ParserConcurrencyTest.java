@@ -0,0 +1,151 @@
+package com.rakensi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * Stress test for ixml parsers that are shared by concurrent queries: one cached parser is used by many threads at the
+ * same time, and every result must be the same as when the input is parsed alone.
+ */
+public class ParserConcurrencyTest {
+
+    private static final String DATE_GRAMMAR =
+        "date = year, -'-', month, -'-', day . year = d, d, d, d . month = '0', d | '1', ['0'|'1'|'2'] . " +
+        "day = ['0'|'1'|'2'], d | '3', ['0'|'1'] . -d = ['0'-'9'] .";
+    private static final String RECORD_GRAMMAR =
+        "record = field++-',' . field = @name, -'=', value . @name = ['a'-'z']+ . value = ~[',']* .";
+
+    private static final int THREADS = 8;
+    private static final int PARSES_PER_THREAD = 2000;
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void startThreads() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterClass
+    public static void stopThreads() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void sharedParserGivesTheSameResultsAsAlone() throws Exception {
+        final Random random = new Random(24);
+        final List<Parser> parsers = new ArrayList<>();
+        final List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            parsers.add(ParserCache.getInstance().get(DATE_GRAMMAR));
+            // Some dates cannot be parsed, and give a document with ixml:state="failed".
+            inputs.add(String.format("%04d-%02d-%02d", random.nextInt(10000), 1 + random.nextInt(14), 1 + random.nextInt(33)));
+            parsers.add(ParserCache.getInstance().get(RECORD_GRAMMAR));
+            inputs.add("alpha=<" + i + ">,beta=\"&" + random.nextInt() + "\",gamma=" + "x".repeat(random.nextInt(500)));
+        }
+        // Every grammar is generated once, and its parser is shared.
+        for (int i = 2; i < parsers.size(); ++i) {
+            assertSame(parsers.get(i % 2), parsers.get(i));
+        }
+        // The results of parsing every input alone.
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); ++i) {
+            expected.add(parseAndDump(parsers.get(i), inputs.get(i)));
+        }
+        assertTrue(expected.stream().anyMatch(dump -> dump.contains("state=failed")));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Queue<String> failures = new ConcurrentLinkedQueue<>();
+        final AtomicInteger parses = new AtomicInteger();
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; ++t) {
+            final Random threadRandom = new Random(t);
+            futures.add(executor.submit((Callable<Void>) () -> {
+                start.await();
+                for (int n = 0; n < PARSES_PER_THREAD; ++n) {
+                    final int i = threadRandom.nextInt(inputs.size());
+                    final String dump = parseAndDump(parsers.get(i), inputs.get(i));
+                    if (!dump.equals(expected.get(i))) {
+                        failures.add("input " + i + ": " + dump);
+                    }
+                    parses.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (final Future<?> future : futures) {
+            future.get(5, TimeUnit.MINUTES);
+        }
+        assertEquals(THREADS * PARSES_PER_THREAD, parses.get());
+        assertTrue("Different results: " + failures.peek(), failures.isEmpty());
+    }
+
+    @Test
+    public void concurrentRequestsGenerateAParserOnce() throws Exception {
+        final ParserCache cache = new ParserCache(ParserCache.DEFAULT_MAX_COUNT, ParserCache.DEFAULT_MAX_SIZE);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Parser>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; ++t) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return cache.get(DATE_GRAMMAR, Blitz.Option.FAIL_ON_ERROR);
+            }));
+        }
+        start.countDown();
+        final Parser parser = futures.get(0).get(5, TimeUnit.MINUTES);
+        for (final Future<Parser> future : futures) {
+            assertSame(parser, future.get(5, TimeUnit.MINUTES));
+        }
+        assertEquals(1, cache.count());
+    }
+
+    // Parse an input, build its document, and write the document as a string that can be compared.
+    private static String parseAndDump(final Parser parser, final String input) throws Exception {
+        final String output = parser.parse(input);
+        final StringBuilder dump = new StringBuilder(output).append('\n');
+        dump(IxmlTreeBuilder.build(output, new MemTreeBuilder()), dump);
+        return dump.toString();
+    }
+
+    private static void dump(final Node node, final StringBuilder dump) {
+        dump.append(node.getNodeType()).append('{').append(node.getNamespaceURI()).append('}').append(node.getNodeName());
+        if (node.getNodeType() == Node.TEXT_NODE) {
+            dump.append('[').append(node.getNodeValue()).append(']');
+        }
+        final NamedNodeMap attributes = node.getAttributes();
+        for (int i = 0; attributes != null && i < attributes.getLength(); ++i) {
+            final Node attribute = attributes.item(i);
+            dump.append(" {").append(attribute.getNamespaceURI()).append('}').append(attribute.getNodeName())
+                .append('=').append(attribute.getNodeValue());
+        }
+        dump.append('(');
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            dump(child, dump);
+        }
+        dump.append(')');
+    }
+}
@@ -0,0 +1,102 @@
+package com.rakensi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.BooleanValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.ValueSequence;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * A parser that rxf:invisible-xml returns is used by rxf:invisible-xml-parse-many and rxf:invisible-xml-parse-records
+ * with the option `fail-on-error` of the call, whatever the parser was made with.
+ */
+public class ParserOptionsTest {
+
+    private static final String GRAMMAR = "s = 'x'+ .";
+
+    private final XQueryContext context = new XQueryContext();
+
+    @Test
+    public void strictParserInLenientCallGivesFailedDocuments() throws XPathException {
+        final Sequence result = parseMany(parser(true), options(false), "xx", "y");
+        assertEquals(2, result.getItemCount());
+        assertFalse(isFailed(result, 0));
+        assertTrue(isFailed(result, 1));
+    }
+
+    @Test
+    public void lenientParserInStrictCallRaisesAnError() throws XPathException {
+        try {
+            parseMany(parser(false), options(true), "xx", "y");
+            fail("The second input cannot be parsed");
+        } catch (final XPathException e) {
+            assertEquals(FnInvisibleXml.FOIX0002, e.getErrorCode());
+            assertTrue(e.getMessage(), e.getMessage().contains("Input 2"));
+        }
+    }
+
+    @Test
+    public void callWithoutOptionsIsLenient() throws XPathException {
+        final Sequence result = parseMany(parser(true), Sequence.EMPTY_SEQUENCE, "y");
+        assertTrue(isFailed(result, 0));
+    }
+
+    @Test
+    public void strictParserInLenientParseRecordsGivesFailedDocuments() throws XPathException {
+        final Sequence result = parseRecords(parser(true), options(false), "\nxx\n\ny\n");
+        assertEquals(2, result.getItemCount());
+        assertFalse(isFailed(result, 0));
+        assertTrue(isFailed(result, 1));
+    }
+
+    @Test
+    public void lenientParserInStrictParseRecordsRaisesAnErrorWithTheLineNumber() throws XPathException {
+        try {
+            parseRecords(parser(false), options(true), "\nxx\n\ny\n");
+            fail("The fourth line cannot be parsed");
+        } catch (final XPathException e) {
+            assertEquals(FnInvisibleXml.FOIX0002, e.getErrorCode());
+            assertTrue(e.getMessage(), e.getMessage().contains("Record 4 "));
+        }
+    }
+
+    // A function returned by rxf:invisible-xml for the grammar, with a fail-on-error option.
+    private Sequence parser(final boolean failOnError) throws XPathException {
+        return new FnInvisibleXml(context, FnInvisibleXml.FS_INVISIBLE_XML)
+            .eval(new Sequence[] {new StringValue(GRAMMAR), options(failOnError)}, null);
+    }
+
+    private Sequence parseMany(final Sequence parser, final Sequence options, final String... inputs) throws XPathException {
+        final ValueSequence strings = new ValueSequence();
+        for (final String input : inputs) {
+            strings.add(new StringValue(input));
+        }
+        return new FnInvisibleXmlParseMany(context, FnInvisibleXmlParseMany.FS_INVISIBLE_XML_PARSE_MANY)
+            .eval(new Sequence[] {parser, strings, options}, null);
+    }
+
+    private Sequence parseRecords(final Sequence parser, final Sequence options, final String input) throws XPathException {
+        return new FnInvisibleXmlParseRecords(context, FnInvisibleXmlParseRecords.FS_INVISIBLE_XML_PARSE_RECORDS[0])
+            .eval(new Sequence[] {parser, new StringValue(input), options}, null);
+    }
+
+    private MapType options(final boolean failOnError) throws XPathException {
+        final MapType options = new MapType(context);
+        options.add(new StringValue("fail-on-error"), BooleanValue.valueOf(failOnError));
+        return options;
+    }
+
+    private static boolean isFailed(final Sequence documents, final int index) throws XPathException {
+        final Document document = (Document) documents.itemAt(index);
+        return "failed".equals(document.getDocumentElement().getAttributeNS("http://invisiblexml.org/NS", "state"));
+    }
+}
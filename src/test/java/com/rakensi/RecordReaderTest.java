@@ -0,0 +1,91 @@
+package com.rakensi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Records and their numbers, with empty records at the start, in the middle and at the end of the input.
+ */
+public class RecordReaderTest {
+
+    @Test
+    public void leadingAndConsecutiveBlankLinesAreCounted() throws IOException {
+        assertEquals(Arrays.asList("1:", "2:first", "3:", "4:third"),
+            read(RecordReader.separated(new StringReader("\nfirst\n\nthird"), RecordReader.LINES)));
+    }
+
+    @Test
+    public void allLineEnds() throws IOException {
+        assertEquals(Arrays.asList("1:", "2:", "3:a", "4:", "5:b", "6:c"),
+            read(RecordReader.separated(new StringReader("\r\n\ra\r\n\nb\rc\n"), RecordReader.LINES)));
+        assertEquals(Arrays.asList("1:"), read(RecordReader.separated(new StringReader("\n"), RecordReader.LINES)));
+        assertEquals(Arrays.asList(), read(RecordReader.separated(new StringReader(""), RecordReader.LINES)));
+    }
+
+    @Test
+    public void separatorAtTheStartGivesAnEmptyRecord() throws IOException {
+        final Pattern separator = Pattern.compile(";+|--");
+        assertEquals(Arrays.asList("1:", "2:a", "3:b", "4:", "5:c"),
+            read(RecordReader.separated(new StringReader(";a;;;b----c;"), separator)));
+    }
+
+    @Test
+    public void separatorThatIsSplitBetweenReads() throws IOException {
+        // `\r` is only a separator if it is not followed by `\n`, which the reader only sees after the next read.
+        final Pattern separator = Pattern.compile("\r\n|\r|\\|");
+        assertEquals(Arrays.asList("1:", "2:a", "3:b", "4:", "5:c", "6:d"),
+            read(RecordReader.separated(new OneCharReader("\r\na\rb||c\r\nd"), separator)));
+    }
+
+    @Test
+    public void emptyMatchesDoNotSeparate() throws IOException {
+        assertEquals(Arrays.asList("1:a", "2:b"),
+            read(RecordReader.separated(new StringReader("a,b"), Pattern.compile(",*"))));
+    }
+
+    @Test
+    public void fixedLength() throws IOException {
+        assertEquals(Arrays.asList("1:abc", "2:def", "3:g"),
+            read(RecordReader.fixedLength(new OneCharReader("abcdefg"), 3)));
+    }
+
+    // The records of a reader, with their numbers.
+    private static List<String> read(final RecordReader records) throws IOException {
+        final List<String> result = new ArrayList<>();
+        try (final RecordReader reader = records) {
+            String record;
+            while ((record = reader.next()) != null) {
+                result.add(reader.getNumber() + ":" + record);
+            }
+        }
+        return result;
+    }
+
+    // A reader that gives one character at a time, as a slow stream could.
+    private static final class OneCharReader extends Reader {
+        private final StringReader reader;
+
+        OneCharReader(final String content) {
+            this.reader = new StringReader(content);
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length) throws IOException {
+            return length == 0 ? 0 : reader.read(buffer, offset, 1);
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+}
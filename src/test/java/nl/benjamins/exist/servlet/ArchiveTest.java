@@ -0,0 +1,264 @@
+package nl.benjamins.exist.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Archives written by ZipOutputStream, and a zip64 archive written by hand, must list their entries and give their
+// content as it is stored, uncompressed, and as gzip.
+public class ArchiveTest
+{
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void storedAndDeflatedEntries() throws IOException
+  {
+    Map<String, byte[]> contents = new LinkedHashMap<>();
+    contents.put("stored.txt", text("stored ", 100));
+    contents.put("deflated.css", text("body { color: black; }\n", 500));
+    contents.put("dir/random.bin", random(70000));
+    contents.put("dir/empty.txt", new byte[0]);
+    contents.put("ünïcode.txt", text("ü", 10));
+    File file = folder.newFile("test.zip");
+    try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file.toPath())))
+    {
+      zip.putNextEntry(new ZipEntry("dir/"));
+      zip.closeEntry();
+      for (Map.Entry<String, byte[]> content : contents.entrySet())
+      {
+        ZipEntry entry = new ZipEntry(content.getKey());
+        if (content.getKey().startsWith("stored")) {
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(content.getValue().length);
+          entry.setCrc(crc(content.getValue()));
+        }
+        zip.putNextEntry(entry);
+        zip.write(content.getValue());
+        zip.closeEntry();
+      }
+    }
+
+    Archive archive = open(file);
+    assertEquals(contents.size(), archive.size());
+    assertNull("Directories are not entries", archive.entry("dir/"));
+    assertNull(archive.entry("missing.txt"));
+    Archive.Entry stored = archive.entry("stored.txt");
+    assertFalse(stored.isDeflated());
+    assertArrayEquals(contents.get("stored.txt"), bytes(stored.data()));
+    assertTrue(archive.entry("deflated.css").isDeflated());
+    for (Map.Entry<String, byte[]> content : contents.entrySet())
+    {
+      checkEntry(archive, content.getKey(), content.getValue());
+    }
+  }
+
+  @Test
+  public void zip64DirectoryWithManyEntries() throws IOException
+  {
+    // More than 65535 entries make ZipOutputStream write a zip64 end of central directory.
+    int count = 0x10000 + 10;
+    File file = folder.newFile("many.zip");
+    try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file.toPath())))
+    {
+      zip.setLevel(Deflater.BEST_SPEED);
+      for (int i = 0; i < count; ++i)
+      {
+        zip.putNextEntry(new ZipEntry("e" + i));
+        zip.write(text("entry " + i + " ", 3));
+        zip.closeEntry();
+      }
+    }
+
+    Archive archive = open(file);
+    assertEquals(count, archive.size());
+    for (int i : new int[] {0, 0xFFFF, count - 1})
+    {
+      checkEntry(archive, "e" + i, text("entry " + i + " ", 3));
+    }
+  }
+
+  @Test
+  public void zip64ExtraFields() throws IOException
+  {
+    // ZipOutputStream only writes zip64 extra fields for entries of 4 GB, so this archive is written by hand, with
+    // the sizes and offsets of every entry in zip64 extra fields.
+    Map<String, byte[]> contents = new LinkedHashMap<>();
+    contents.put("stored.txt", text("stored ", 50));
+    contents.put("deflated.txt", text("deflated ", 200));
+    File file = folder.newFile("zip64.zip");
+    Files.write(file.toPath(), zip64(contents));
+    // The hand-written archive is valid for the JDK as well.
+    try (ZipFile zip = new ZipFile(file))
+    {
+      for (Map.Entry<String, byte[]> content : contents.entrySet())
+      {
+        try (InputStream in = zip.getInputStream(zip.getEntry(content.getKey())))
+        {
+          assertArrayEquals(content.getValue(), in.readAllBytes());
+        }
+      }
+    }
+
+    Archive archive = open(file);
+    assertEquals(2, archive.size());
+    assertFalse(archive.entry("stored.txt").isDeflated());
+    assertArrayEquals(contents.get("stored.txt"), bytes(archive.entry("stored.txt").data()));
+    assertTrue(archive.entry("deflated.txt").isDeflated());
+    for (Map.Entry<String, byte[]> content : contents.entrySet())
+    {
+      checkEntry(archive, content.getKey(), content.getValue());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void notAZipArchive() throws IOException
+  {
+    File file = folder.newFile("not.zip");
+    Files.write(file.toPath(), text("not a zip archive ", 10));
+    open(file);
+  }
+
+  // The content of an entry, its raw data, and for deflated entries its gzip stream, against the original.
+  private static void checkEntry(Archive archive, String name, byte[] original) throws IOException
+  {
+    Archive.Entry entry = archive.entry(name);
+    assertNotNull(name, entry);
+    assertArrayEquals(name, original, bytes(entry.content()));
+    assertEquals(name, original.length, entry.getVersion().getLength());
+    if (!entry.isDeflated()) {
+      assertArrayEquals(name, original, bytes(entry.data()));
+      return;
+    }
+    byte[] gzip = bytes(entry.gzip());
+    assertEquals(name, gzip.length, entry.getGzipVersion().getLength());
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip)))
+    {
+      assertArrayEquals(name, original, in.readAllBytes());
+    }
+  }
+
+  private static Archive open(File file) throws IOException
+  {
+    return Archive.open(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+  }
+
+  private static byte[] bytes(ByteBuffer... buffers)
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (ByteBuffer buffer : buffers)
+    {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.duplicate().get(bytes);
+      out.write(bytes, 0, bytes.length);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] text(String text, int times)
+  {
+    return text.repeat(times).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] random(int size)
+  {
+    byte[] bytes = new byte[size];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static long crc(byte[] bytes)
+  {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+  // An archive in which every local and central header has its sizes, and the central header its offset, in a zip64
+  // extra field, with a zip64 end of central directory. Entries whose name starts with "deflated" are deflated.
+  private static byte[] zip64(Map<String, byte[]> contents) throws IOException
+  {
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    ByteArrayOutputStream central = new ByteArrayOutputStream();
+    for (Map.Entry<String, byte[]> content : contents.entrySet())
+    {
+      byte[] name = content.getKey().getBytes(StandardCharsets.UTF_8);
+      byte[] original = content.getValue();
+      boolean deflated = content.getKey().startsWith("deflated");
+      byte[] data = deflated ? deflate(original) : original;
+      long offset = archive.size();
+      write(archive, little(30).putInt(0x04034b50).putShort((short) 45).putShort((short) 0x800)
+          .putShort((short) (deflated ? 8 : 0)).putInt(0).putInt((int) crc(original)).putInt(-1).putInt(-1)
+          .putShort((short) name.length).putShort((short) 20), name,
+          little(20).putShort((short) 1).putShort((short) 16).putLong(original.length).putLong(data.length).array(), data);
+      write(central, little(46).putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0x800)
+          .putShort((short) (deflated ? 8 : 0)).putInt(0).putInt((int) crc(original)).putInt(-1).putInt(-1)
+          .putShort((short) name.length).putShort((short) 28).putShort((short) 0).putShort((short) 0).putShort((short) 0)
+          .putInt(0).putInt(-1), name,
+          little(28).putShort((short) 1).putShort((short) 24).putLong(original.length).putLong(data.length).putLong(offset).array());
+    }
+    long directoryOffset = archive.size();
+    central.writeTo(archive);
+    long zip64End = archive.size();
+    write(archive, little(56).putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+        .putLong(contents.size()).putLong(contents.size()).putLong(central.size()).putLong(directoryOffset));
+    write(archive, little(20).putInt(0x07064b50).putInt(0).putLong(zip64End).putInt(1));
+    write(archive, little(22).putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) -1)
+        .putShort((short) -1).putInt(central.size()).putInt(-1).putShort((short) 0));
+    return archive.toByteArray();
+  }
+
+  private static ByteBuffer little(int size)
+  {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void write(OutputStream out, ByteBuffer header, byte[]... parts) throws IOException
+  {
+    out.write(header.array(), 0, header.position());
+    for (byte[] part : parts) out.write(part);
+  }
+
+  // Raw deflated data, as in a zip archive.
+  private static byte[] deflate(byte[] bytes)
+  {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(bytes);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+    deflater.end();
+    return out.toByteArray();
+  }
+
+}
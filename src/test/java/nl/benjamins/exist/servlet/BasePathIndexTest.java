@@ -0,0 +1,149 @@
+package nl.benjamins.exist.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// The index follows files and directories that are created, changed, moved away and deleted under the base path.
+public class BasePathIndexTest
+{
+
+  private static final long WAIT_MILLIS = 10000;
+  private static final Logger logger = Logger.getLogger("jb-base-path-index-test");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path base;
+  private Path outside;
+  private BasePathIndex index;
+
+  @Before
+  public void createFiles() throws IOException
+  {
+    base = folder.newFolder("base").toPath();
+    outside = folder.newFolder("outside").toPath();
+    write("a.txt", "a");
+    write("d/b.txt", "bb");
+    write("d/e/c.txt", "ccc");
+    write("de/f.txt", "ffff");
+  }
+
+  @After
+  public void stopIndex()
+  {
+    if (index != null) index.stop();
+  }
+
+  @Test
+  public void movingADirectoryAwayRemovesOnlyItsSubtree() throws Exception
+  {
+    start(100);
+    assertEquals(3, index.get(path("d/e/c.txt")).size());
+    Files.move(base.resolve("d"), outside.resolve("d"));
+    waitFor(() -> index.get(path("d/b.txt")) == null && index.get(path("d/e/c.txt")) == null);
+    // "de" starts with "d", but is not under it.
+    assertNotNull(index.get(path("de/f.txt")));
+    assertNotNull(index.get(path("a.txt")));
+    // A directory that is moved back is indexed again, with its subdirectories.
+    Files.move(outside.resolve("d"), base.resolve("d"));
+    waitFor(() -> index.get(path("d/e/c.txt")) != null);
+    assertNotNull(index.get(path("d/b.txt")));
+  }
+
+  @Test
+  public void filesAreAddedChangedAndDeleted() throws Exception
+  {
+    start(100);
+    assertNull(index.get(path("d/new.txt")));
+    write("d/new.txt", "new");
+    waitFor(() -> index.get(path("d/new.txt")) != null);
+    write("d/new.txt", "newer");
+    waitFor(() -> index.get(path("d/new.txt")).size() == 5);
+    Files.delete(base.resolve("d/new.txt"));
+    waitFor(() -> index.get(path("d/new.txt")) == null);
+    assertNotNull(index.get(path("d/b.txt")));
+  }
+
+  @Test
+  public void deletingFilesThatAreNotIndexedKeepsTheIndex() throws Exception
+  {
+    // With room for one file, the index is incomplete and does not know all files.
+    start(1);
+    String indexed = null;
+    for (String file : new String[] { "a.txt", "d/b.txt", "d/e/c.txt", "de/f.txt" })
+    {
+      if (index.get(path(file)) != null) {
+        assertNull("More than one file is indexed", indexed);
+        indexed = file;
+      }
+    }
+    assertFalse(index.knows(path("a.txt")));
+    for (String file : new String[] { "a.txt", "d/b.txt", "d/e/c.txt", "de/f.txt" })
+    {
+      if (index.get(path(file)) == null) Files.delete(base.resolve(file));
+    }
+    write("marker.txt", "m");
+    Files.delete(base.resolve("marker.txt"));
+    // The events are handled in order, so the deletes have been handled when the directory is gone from the index.
+    Files.move(base.resolve("d"), outside.resolve("d"));
+    Files.move(base.resolve("de"), outside.resolve("de"));
+    waitFor(() -> index.get(path("d/b.txt")) == null && index.get(path("d/e/c.txt")) == null
+        && index.get(path("de/f.txt")) == null);
+    assertEquals(indexed.equals("a.txt"), index.get(path("a.txt")) != null);
+  }
+
+  private void start(int maxEntries) throws InterruptedException
+  {
+    logger.setLevel(Level.SEVERE);
+    index = new BasePathIndex(base, maxEntries, logger);
+    index.start();
+    // The index is ready after the first walk; an index with more files than it can hold never knows.
+    if (maxEntries > 4) {
+      waitFor(() -> index.knows(path("a.txt")));
+    } else {
+      waitFor(() -> index.get(path("a.txt")) != null || index.get(path("d/b.txt")) != null
+          || index.get(path("d/e/c.txt")) != null || index.get(path("de/f.txt")) != null);
+      // Let the walk come to its end.
+      Thread.sleep(200);
+    }
+  }
+
+  private String path(String relative)
+  {
+    return base.toAbsolutePath().normalize().resolve(relative).toString();
+  }
+
+  private void write(String relative, String content) throws IOException
+  {
+    Path file = base.resolve(relative);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes("UTF-8"));
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException
+  {
+    long end = System.currentTimeMillis() + WAIT_MILLIS;
+    while (!condition.getAsBoolean())
+    {
+      assertTrue("Timed out waiting for the index", System.currentTimeMillis() < end);
+      Thread.sleep(10);
+    }
+  }
+
+}
@@ -0,0 +1,283 @@
+package nl.benjamins.exist.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jetty.http.DateGenerator;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.benjamins.exist.servlet.FilterTester.HttpResult;
+
+// Conditional GET (ResourceVersion.isNotModified) and Range requests (ResourceVersion.isRangeAllowed,
+// JBResourceServletFilter.returnFileRanges) on a file with a precompressed gzip variant.
+public class ConditionalRangeTest
+{
+
+  @ClassRule
+  public static final TemporaryFolder folder = new TemporaryFolder();
+
+  private static final byte[] CONTENT = content(200);
+  private static final String ETAG = "\"" + Long.toHexString(FilterTester.LAST_MODIFIED.toEpochMilli()) + "-" +
+      Long.toHexString(CONTENT.length) + "\"";
+  private static final String LAST_MODIFIED = DateGenerator.formatDate(FilterTester.LAST_MODIFIED.toEpochMilli());
+  private static final String EARLIER = DateGenerator.formatDate(FilterTester.LAST_MODIFIED.toEpochMilli() - 1000);
+  private static final String LATER = DateGenerator.formatDate(FilterTester.LAST_MODIFIED.toEpochMilli() + 1000);
+
+  private static FilterTester tester;
+
+  @BeforeClass
+  public static void start() throws Exception
+  {
+    tester = new FilterTester(folder.getRoot().toPath(), "<mappings><map url=\"/r/(.*)\" to=\"files/$1\"/></mappings>");
+    tester.write("files/style.css", CONTENT);
+    tester.write("files/style.css.gz", gzip(CONTENT));
+  }
+
+  @AfterClass
+  public static void stop() throws Exception
+  {
+    tester.stop();
+  }
+
+  @Test
+  public void responseHasValidators() throws Exception
+  {
+    HttpResult result = tester.request("GET", "/r/style.css");
+    assertEquals(200, result.status);
+    assertEquals(ETAG, result.header("ETag"));
+    assertEquals(LAST_MODIFIED, result.header("Last-Modified"));
+    assertEquals("bytes", result.header("Accept-Ranges"));
+    assertArrayEquals(CONTENT, result.body);
+  }
+
+  @Test
+  public void ifNoneMatchComparesWeakly() throws Exception
+  {
+    assertNotModified(tester.request("GET", "/r/style.css", "If-None-Match: " + ETAG), ETAG);
+    assertNotModified(tester.request("GET", "/r/style.css", "If-None-Match: W/" + ETAG), ETAG);
+    assertNotModified(tester.request("GET", "/r/style.css", "If-None-Match: \"other\", " + ETAG), ETAG);
+    assertNotModified(tester.request("GET", "/r/style.css", "If-None-Match: \"other\"", "If-None-Match: " + ETAG), ETAG);
+    assertNotModified(tester.request("GET", "/r/style.css", "If-None-Match: *"), ETAG);
+    assertNotModified(tester.request("HEAD", "/r/style.css", "If-None-Match: " + ETAG), ETAG);
+    assertEquals(200, tester.request("GET", "/r/style.css", "If-None-Match: \"other\"").status);
+  }
+
+  @Test
+  public void ifNoneMatchTakesPrecedenceOverIfModifiedSince() throws Exception
+  {
+    assertEquals(200, tester.request("GET", "/r/style.css", "If-None-Match: \"other\"", "If-Modified-Since: " + LATER).status);
+    assertNotModified(tester.request("GET", "/r/style.css", "If-None-Match: " + ETAG, "If-Modified-Since: " + EARLIER), ETAG);
+  }
+
+  @Test
+  public void ifModifiedSinceComparesSeconds() throws Exception
+  {
+    assertNotModified(tester.request("GET", "/r/style.css", "If-Modified-Since: " + LAST_MODIFIED), ETAG);
+    assertNotModified(tester.request("GET", "/r/style.css", "If-Modified-Since: " + LATER), ETAG);
+    assertEquals(200, tester.request("GET", "/r/style.css", "If-Modified-Since: " + EARLIER).status);
+    assertEquals(200, tester.request("GET", "/r/style.css", "If-Modified-Since: not a date").status);
+  }
+
+  @Test
+  public void encodingSuffixesOfETagsAreIgnored() throws Exception
+  {
+    HttpResult gzipped = tester.request("GET", "/r/style.css", "Accept-Encoding: gzip");
+    assertEquals(200, gzipped.status);
+    assertEquals("gzip", gzipped.header("Content-Encoding"));
+    assertEquals(etag("--gzip"), gzipped.header("ETag"));
+    assertArrayEquals(CONTENT, gunzip(gzipped.body));
+    // An ETag of one variant validates the others, and the 304 has the ETag of the variant that would be sent.
+    assertNotModified(tester.request("GET", "/r/style.css", "If-None-Match: " + etag("--gzip")), ETAG);
+    assertNotModified(tester.request("GET", "/r/style.css", "If-None-Match: " + etag("--br")), ETAG);
+    assertNotModified(tester.request("GET", "/r/style.css", "Accept-Encoding: gzip", "If-None-Match: " + ETAG), etag("--gzip"));
+    assertNotModified(tester.request("GET", "/r/style.css", "Accept-Encoding: gzip", "If-None-Match: W/" + etag("--gzip")), etag("--gzip"));
+  }
+
+  @Test
+  public void singleRange() throws Exception
+  {
+    assertPartial(tester.request("GET", "/r/style.css", "Range: bytes=10-19"), 10, 19);
+    assertPartial(tester.request("GET", "/r/style.css", "Range: bytes=-5"), 195, 199);
+    assertPartial(tester.request("GET", "/r/style.css", "Range: bytes=190-"), 190, 199);
+    assertPartial(tester.request("GET", "/r/style.css", "Range: bytes=190-500"), 190, 199);
+  }
+
+  @Test
+  public void rangesAreTakenFromTheUncompressedFile() throws Exception
+  {
+    HttpResult result = tester.request("GET", "/r/style.css", "Accept-Encoding: gzip", "Range: bytes=10-19");
+    assertPartial(result, 10, 19);
+    assertNull(result.header("Content-Encoding"));
+  }
+
+  @Test
+  public void unsatisfiableRange() throws Exception
+  {
+    HttpResult result = tester.request("GET", "/r/style.css", "Range: bytes=500-600");
+    assertEquals(416, result.status);
+    assertEquals("bytes */" + CONTENT.length, result.header("Content-Range"));
+  }
+
+  @Test
+  public void multipleRanges() throws Exception
+  {
+    HttpResult result = tester.request("GET", "/r/style.css", "Range: bytes=0-4,10-14,-3");
+    assertEquals(206, result.status);
+    assertEquals(ETAG, result.header("ETag"));
+    String contentType = result.header("Content-Type");
+    assertTrue(contentType, contentType.startsWith("multipart/byteranges; boundary="));
+    String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+    List<String[]> parts = parts(result.bodyText(), boundary);
+    assertEquals(3, parts.size());
+    int[][] ranges = {{0, 4}, {10, 14}, {197, 199}};
+    for (int i = 0; i < ranges.length; ++i)
+    {
+      assertTrue(parts.get(i)[0], parts.get(i)[0].contains("Content-Range: bytes " + ranges[i][0] + "-" + ranges[i][1] + "/" + CONTENT.length));
+      assertTrue(parts.get(i)[0], parts.get(i)[0].contains("Content-Type: text/css"));
+      assertEquals(slice(ranges[i][0], ranges[i][1]), parts.get(i)[1]);
+    }
+  }
+
+  @Test
+  public void ifRangeComparesETagsStrongly() throws Exception
+  {
+    assertPartial(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-Range: " + ETAG), 10, 19);
+    assertFull(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-Range: W/" + ETAG));
+    assertFull(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-Range: \"other\""));
+    assertFull(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-Range: " + etag("--gzip")));
+  }
+
+  @Test
+  public void ifRangeComparesDatesExactly() throws Exception
+  {
+    assertPartial(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-Range: " + LAST_MODIFIED), 10, 19);
+    assertFull(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-Range: " + LATER));
+    assertFull(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-Range: " + EARLIER));
+    assertFull(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-Range: not a date"));
+  }
+
+  @Test
+  public void notModifiedTakesPrecedenceOverRange() throws Exception
+  {
+    assertNotModified(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-None-Match: " + ETAG), ETAG);
+    assertNotModified(tester.request("GET", "/r/style.css", "Range: bytes=500-600", "If-Modified-Since: " + LAST_MODIFIED), ETAG);
+    assertPartial(tester.request("GET", "/r/style.css", "Range: bytes=10-19", "If-None-Match: \"other\""), 10, 19);
+  }
+
+  @Test
+  public void onlyUncompressedFilesAcceptRanges() throws Exception
+  {
+    FilterTester cached = new FilterTester(folder.newFolder().toPath(), "<mappings><map url=\"/r/(.*)\" to=\"files/$1\"/></mappings>",
+        "contentCacheMaxBytes", "1048576");
+    try
+    {
+      cached.write("files/style.css", CONTENT);
+      cached.write("files/style.css.gz", gzip(CONTENT));
+      // The second request of each comes from the content cache.
+      for (int i = 0; i < 2; ++i)
+      {
+        HttpResult gzipped = cached.request("GET", "/r/style.css", "Accept-Encoding: gzip");
+        assertEquals("gzip", gzipped.header("Content-Encoding"));
+        assertNull(gzipped.header("Accept-Ranges"));
+        assertArrayEquals(CONTENT, gunzip(gzipped.body));
+        HttpResult plain = cached.request("GET", "/r/style.css");
+        assertEquals("bytes", plain.header("Accept-Ranges"));
+        assertArrayEquals(CONTENT, plain.body);
+      }
+    }
+    finally
+    {
+      cached.stop();
+    }
+  }
+
+
+  private static void assertNotModified(HttpResult result, String etag)
+  {
+    assertEquals(304, result.status);
+    assertEquals(etag, result.header("ETag"));
+    assertEquals(LAST_MODIFIED, result.header("Last-Modified"));
+    assertEquals(0, result.body.length);
+  }
+
+  private static void assertPartial(HttpResult result, int first, int last)
+  {
+    assertEquals(206, result.status);
+    assertEquals("bytes " + first + "-" + last + "/" + CONTENT.length, result.header("Content-Range"));
+    assertEquals(ETAG, result.header("ETag"));
+    assertEquals(slice(first, last), result.bodyText());
+  }
+
+  private static void assertFull(HttpResult result)
+  {
+    assertEquals(200, result.status);
+    assertNull(result.header("Content-Range"));
+    assertArrayEquals(CONTENT, result.body);
+  }
+
+  private static String etag(String suffix)
+  {
+    return ETAG.substring(0, ETAG.length() - 1) + suffix + "\"";
+  }
+
+  private static String slice(int first, int last)
+  {
+    return new String(Arrays.copyOfRange(CONTENT, first, last + 1), StandardCharsets.ISO_8859_1);
+  }
+
+  // The headers and the content of the parts of a multipart body.
+  private static List<String[]> parts(String body, String boundary)
+  {
+    List<String[]> parts = new ArrayList<>();
+    String[] segments = body.split("\r?\n?--" + boundary);
+    for (String segment : segments)
+    {
+      if (segment.startsWith("--") || !segment.contains("\r\n\r\n")) continue;
+      int headerEnd = segment.indexOf("\r\n\r\n");
+      parts.add(new String[] {segment.substring(0, headerEnd), segment.substring(headerEnd + 4)});
+    }
+    return parts;
+  }
+
+  private static byte[] content(int length)
+  {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; ++i) content[i] = (byte) ('a' + i % 26);
+    return content;
+  }
+
+  private static byte[] gzip(byte[] content) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out))
+    {
+      gzip.write(content);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] gunzip(byte[] content) throws IOException
+  {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(content)))
+    {
+      return in.readAllBytes();
+    }
+  }
+
+}
@@ -0,0 +1,158 @@
+package nl.benjamins.exist.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BufferUtil;
+
+// The filter in an embedded Jetty with a LocalConnector, for tests that send raw HTTP requests without a network.
+// Requests that the filter passes on are answered by a servlet with status 404 and the body "passed".
+
+final class FilterTester
+{
+
+  static final String MAPPINGS_FILE = "mappings.xml";
+  private static final String LOGGER_NAME = "jb-resource-filter-test";
+  // The logger of the filter, kept here so that its level is not lost.
+  private static final Logger filterLogger = Logger.getLogger(LOGGER_NAME);
+  // The modification time of the files, a whole second, so that HTTP dates compare exactly.
+  static final Instant LAST_MODIFIED = Instant.parse("2024-01-02T03:04:05Z");
+
+  final Path base;
+  private final Server server;
+  private final LocalConnector connector;
+
+  // Start the filter on a base path with a mappings file, and init-params as name/value pairs.
+  FilterTester(Path base, String mappings, String... parameters) throws Exception
+  {
+    this.base = base;
+    filterLogger.setLevel(Level.WARNING);
+    Files.write(base.resolve(MAPPINGS_FILE), mappings.getBytes(StandardCharsets.UTF_8));
+    server = new Server();
+    connector = new LocalConnector(server);
+    server.addConnector(connector);
+    ServletContextHandler context = new ServletContextHandler();
+    FilterHolder filter = new FilterHolder(JBResourceServletFilter.class);
+    filter.setInitParameter("loggerName", LOGGER_NAME);
+    filter.setInitParameter("basePath", base.toString());
+    filter.setInitParameter("mappingsPath", MAPPINGS_FILE);
+    filter.setInitParameter("statistics", "false");
+    for (int i = 0; i + 1 < parameters.length; i += 2) filter.setInitParameter(parameters[i], parameters[i + 1]);
+    context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST));
+    context.addServlet(new ServletHolder(new PassedServlet()), "/*");
+    server.setHandler(context);
+    server.start();
+  }
+
+  void stop() throws Exception
+  {
+    server.stop();
+  }
+
+  // Write a file under the base path, with the fixed modification time.
+  Path write(String path, byte[] content) throws IOException
+  {
+    Path file = base.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content);
+    Files.setLastModifiedTime(file, FileTime.from(LAST_MODIFIED));
+    return file;
+  }
+
+  // Send a request with a method, a URL path and header lines.
+  HttpResult request(String method, String path, String... headers) throws Exception
+  {
+    StringBuilder request = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: localhost\r\n");
+    for (String header : headers) request.append(header).append("\r\n");
+    request.append("Connection: close\r\n\r\n");
+    ByteBuffer response = connector.getResponse(BufferUtil.toBuffer(request.toString(), StandardCharsets.ISO_8859_1));
+    return new HttpResult(BufferUtil.toArray(response), "HEAD".equals(method));
+  }
+
+  // A parsed HTTP response. The body is kept as bytes, and as a string with one char per byte.
+  static final class HttpResult
+  {
+    final int status;
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
+    final byte[] body;
+
+    private HttpResult(byte[] response, boolean head)
+    {
+      String text = new String(response, StandardCharsets.ISO_8859_1);
+      int headerEnd = text.indexOf("\r\n\r\n");
+      String[] lines = text.substring(0, headerEnd).split("\r\n");
+      status = Integer.parseInt(lines[0].split(" ")[1]);
+      for (int i = 1; i < lines.length; ++i)
+      {
+        int colon = lines[i].indexOf(':');
+        headers.computeIfAbsent(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), name -> new ArrayList<>())
+            .add(lines[i].substring(colon + 1).trim());
+      }
+      String content = head ? "" : text.substring(headerEnd + 4);
+      if ("chunked".equalsIgnoreCase(header("Transfer-Encoding"))) content = dechunk(content);
+      body = content.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // The first value of a header, or null.
+    String header(String name)
+    {
+      List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+      return values == null ? null : values.get(0);
+    }
+
+    String bodyText()
+    {
+      return new String(body, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String dechunk(String chunked)
+    {
+      StringBuilder content = new StringBuilder();
+      int position = 0;
+      while (true)
+      {
+        int lineEnd = chunked.indexOf("\r\n", position);
+        int size = Integer.parseInt(chunked.substring(position, lineEnd).split(";")[0].trim(), 16);
+        if (size == 0) return content.toString();
+        content.append(chunked, lineEnd + 2, lineEnd + 2 + size);
+        position = lineEnd + 2 + size + 2;
+      }
+    }
+  }
+
+  private static final class PassedServlet extends HttpServlet
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      response.getWriter().write("passed");
+    }
+  }
+
+}
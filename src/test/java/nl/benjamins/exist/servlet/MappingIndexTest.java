@@ -0,0 +1,107 @@
+package nl.benjamins.exist.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+// The dispatch index must give the same first matching mapping as trying all mappings in document order.
+public class MappingIndexTest
+{
+
+  // Sets of mappings, each tried with all URLs.
+  private static final String[][] MAPPINGS = {
+    // Overlapping prefixes and suffixes.
+    { "/journals/(.*)\\.css", "/journals/(.*)", "/journals/special/(.*)\\.css", "/j(.*)", "/(.*)\\.css", "(.*)" },
+    // Anchors.
+    { "^/a/(.*)$", "^/a/b/(.*)", "/a/(.*)\\$", "(.*)/b$", "^(.*)\\$$" },
+    // Alternation, at the top level and in groups.
+    { "/a/x|/b/(.*)", "/(a|b)/(.*)\\.js", "(/a|/b)/y", "/a/(.*)|(.*)\\.css" },
+    // Inline flags and flags of the pattern.
+    { "(?i)/UPPER/(.*)", "/mixed(?i)CASE", "(?i:/a)/(.*)", "/upper/(.*)", "(?x) /a / (.*) # comment" },
+    // Escapes.
+    { "/a\\.b/(.*)", "/a\\Q.b\\E/(.*)", "/a\\x2Eb/(.*)", "/a\\u002eb/(.*)", "/a\\/b\\-c", "\\d+/(.*)", "/a\\\\b", "/a\\sb", "/a.b/(.*)" },
+    // Quantifiers on the prefix and the suffix.
+    { "/ab+c/(.*)", "/ab*c/(.*)", "/ab?c/(.*)", "/ab{2}c/(.*)", "/ab{0,1}c", "/a+/(.*)", "/a++b", "/a*?b", "(.*)x+", "(.*)\\.cs?s" },
+    // Character classes and groups.
+    { "/[ab]/(.*)", "/[]a]/(.*)", "/[^]a]x", "/(?:a|b)c/(.*)", "/(?<name>a)/(.*)", "/[a-c&&[b]]/(.*)", "/a(?=b)(.*)", "/(.*)(?<=\\.js)" },
+  };
+
+  private static final String[] URLS = {
+    "", "/", "/journals/", "/journals/a.css", "/journals/special/b.css", "/journals/x.js", "/jx", "/j", "/x.css", "/other",
+    "/a/", "/a/b/c", "/a/x", "/a/x$", "/b", "/b/", "/b/y", "/a/y", "/b/x.js", "/c/x.js", "/a/x.css", "x/b", "$", "/a/$",
+    "/UPPER/x", "/upper/x", "/Upper/x", "/mixedCASE", "/mixedcase", "/MIXEDCASE", "/A/x", "/a/ x",
+    "/a.b/x", "/aXb/x", "/a/b-c", "/a-b", "12/x", "/a\\b", "/a b", "/a\tb",
+    "/abc/x", "/abbc/x", "/ac/x", "/ab", "/abc", "/aaa/x", "/ab", "/aab", "/b", "fooxxx", "foo.cs", "foo.css", "foo.c",
+    "/a/x", "/]/x", "/]x", "/ax", "/bx", "/ac/x", "/bc/x", "/a/x", "/b/x", "/ab", "/abc", "/x.js", "/x.jsx",
+  };
+
+  @Test
+  public void indexGivesTheSameFirstMatchAsLinearScan()
+  {
+    for (String[] regexes : MAPPINGS)
+    {
+      List<Pattern> patterns = new ArrayList<>();
+      for (String regex : regexes) patterns.add(Pattern.compile(regex));
+      // A pattern with flags that are not in its text.
+      patterns.add(Pattern.compile("/flags/(.*)", Pattern.CASE_INSENSITIVE));
+      MappingIndex index = new MappingIndex(patterns);
+      for (String url : URLS)
+      {
+        String where = Arrays.toString(regexes) + " for '" + url + "'";
+        BitSet candidates = index.candidates(url);
+        for (int i = 0; i < patterns.size(); ++i)
+        {
+          if (patterns.get(i).matcher(url).matches()) {
+            assertTrue("Mapping " + i + " is excluded but matches, in " + where, candidates.get(i));
+          }
+        }
+        assertEquals(where, linearMatch(patterns, url), indexMatch(patterns, candidates, url));
+      }
+    }
+  }
+
+  @Test
+  public void mappingsWithLiteralPrefixesAreExcluded()
+  {
+    MappingIndex index = new MappingIndex(Arrays.asList(
+      Pattern.compile("/journals/(.*)\\.css"), Pattern.compile("/books/(.*)"), Pattern.compile("(.*)\\.js")));
+    assertEquals(bits(0), index.candidates("/journals/a.css"));
+    assertEquals(bits(1), index.candidates("/books/a.css"));
+    assertEquals(bits(2), index.candidates("/other/a.js"));
+    assertEquals(bits(), index.candidates("/other/a.css"));
+  }
+
+  private static int linearMatch(List<Pattern> patterns, String url)
+  {
+    for (int i = 0; i < patterns.size(); ++i)
+    {
+      if (patterns.get(i).matcher(url).matches()) return i;
+    }
+    return -1;
+  }
+
+  // As in JBResourceServletFilter, only the candidates are tried, in document order.
+  private static int indexMatch(List<Pattern> patterns, BitSet candidates, String url)
+  {
+    for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+    {
+      if (patterns.get(i).matcher(url).matches()) return i;
+    }
+    return -1;
+  }
+
+  private static BitSet bits(int... indexes)
+  {
+    BitSet bits = new BitSet();
+    for (int i : indexes) bits.set(i);
+    return bits;
+  }
+
+}
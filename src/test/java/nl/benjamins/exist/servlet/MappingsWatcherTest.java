@@ -0,0 +1,75 @@
+package nl.benjamins.exist.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// The watcher reports changes to the mappings file, also while the file keeps being written.
+public class MappingsWatcherTest
+{
+
+  // Much longer than a burst may last, so that a report comes from the events and not from polling.
+  private static final long POLL_MILLIS = 60000;
+  private static final long WAIT_MILLIS = 10000;
+  private static final Logger logger = Logger.getLogger("jb-mappings-watcher-test");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void reportsAChange() throws IOException, InterruptedException
+  {
+    Path file = folder.newFile("mappings.xml").toPath();
+    CountDownLatch changed = new CountDownLatch(1);
+    MappingsWatcher watcher = new MappingsWatcher(file, POLL_MILLIS, changed::countDown, logger);
+    watcher.start();
+    try
+    {
+      // Give the watcher time to register the directory.
+      Thread.sleep(200);
+      Files.write(file, "<mappings/>".getBytes(StandardCharsets.UTF_8));
+      assertTrue("The change is reported", changed.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+    finally
+    {
+      watcher.stop();
+    }
+  }
+
+  @Test
+  public void reportsChangesWhileTheFileIsWrittenAllTheTime() throws IOException, InterruptedException
+  {
+    Path file = folder.newFile("mappings.xml").toPath();
+    CountDownLatch changed = new CountDownLatch(2);
+    MappingsWatcher watcher = new MappingsWatcher(file, POLL_MILLIS, changed::countDown, logger);
+    watcher.start();
+    try
+    {
+      Thread.sleep(200);
+      // Write the file more often than the settle time, until the watcher has reported two changes.
+      long end = System.currentTimeMillis() + WAIT_MILLIS;
+      for (int i = 0; changed.getCount() > 0 && System.currentTimeMillis() < end; i++)
+      {
+        Files.write(file, ("<mappings n=\"" + i + "\"/>").getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(50);
+      }
+      assertEquals("Changes are reported while the file is written", 0, changed.getCount());
+    }
+    finally
+    {
+      watcher.stop();
+    }
+  }
+
+}